@@ -0,0 +1,106 @@
+import simpledb.server.SimpleDB;
+import simpledb.planner.Planner;
+import simpledb.query.*;
+import simpledb.tx.Transaction;
+
+// Exercises crash recovery, in two runs of the program.
+//    java RecoveryTest crash      creates the database, commits the winners,
+//                                 leaves a loser active, and halts the JVM
+//    java RecoveryTest check      restarts the database, which recovers it,
+//                                 and verifies its contents
+// The winners must survive although their buffers were never written,
+// and the loser must be undone although some of its buffers were.
+//
+// The crash phase uses only the original SimpleDB API and SQL, so it can also
+// be compiled and run against a server built before the log format was
+// stored with the database; the check phase then verifies that a
+// database with a log of the legacy format is recovered.
+// Each phase takes an optional database name (default "recoverytestdb").
+
+public class RecoveryTest {
+	private static final int ROWS = 400;
+
+	public static void main(String[] args) {
+		String dbname = (args.length > 1) ? args[1] : "recoverytestdb";
+		SimpleDB.init(dbname);
+		if (args.length > 0 && args[0].equals("crash"))
+			crash();
+		else
+			check();
+	}
+
+	private static void crash() {
+		Planner planner = SimpleDB.planner();
+		Transaction tx = new Transaction();
+		planner.executeUpdate("create table acct (id int, grp int, name varchar(20), bal int)", tx);
+		planner.executeUpdate("create table other (id int)", tx);
+		for (int i=0; i<ROWS; i++)
+			planner.executeUpdate("insert into acct (id, grp, name, bal) values ("
+					+ i + ", " + group(i) + ", 'n" + i + "', 100)", tx);
+		tx.commit();
+
+		// the winner's changes are committed, but unless commits force
+		// the modified buffers, they may be only in the log
+		Transaction winner = new Transaction();
+		planner.executeUpdate("update acct set bal = 200 where grp = 0", winner);
+		winner.commit();
+
+		// the loser starts before a later winner commits; the later winner
+		// commits before the loser locks anything, since the original
+		// server may refresh its statistics in the loser's transaction
+		Transaction loser = new Transaction();
+		Transaction late = new Transaction();
+		planner.executeUpdate("insert into other (id) values (7)", late);
+		late.commit();
+
+		// the loser changes every block of the table; with few buffers, many are written
+		planner.executeUpdate("update acct set bal = 0 where grp = 2", loser);
+		planner.executeUpdate("delete from acct where grp = 1", loser);
+		planner.executeUpdate("insert into acct (id, grp, name, bal) values (9999, 3, 'loser', 1)", loser);
+
+		System.out.println("crashing with an active loser");
+		Runtime.getRuntime().halt(0);
+	}
+
+	private static void check() {
+		Transaction tx = new Transaction();
+		int rows = 0, total = 0, deleted = 0;
+		boolean loserRow = false;
+		Scan s = SimpleDB.planner().createQueryPlan("select id, grp, bal from acct", tx).open();
+		while (s.next()) {
+			int id = s.getInt("id");
+			rows++;
+			total += s.getInt("bal");
+			if (s.getInt("grp") == 1)
+				deleted++;
+			if (id == 9999)
+				loserRow = true;
+		}
+		s.close();
+		int others = 0;
+		s = SimpleDB.planner().createQueryPlan("select id from other", tx).open();
+		while (s.next())
+			others++;
+		s.close();
+		tx.commit();
+
+		boolean ok = true;
+		ok &= expect("rows", rows, ROWS);
+		ok &= expect("total balance", total, 100*200 + (ROWS-100)*100);
+		ok &= expect("rows deleted by the loser", deleted, 50);
+		ok &= expect("rows inserted by the loser", loserRow ? 1 : 0, 0);
+		ok &= expect("rows inserted by the later winner", others, 1);
+		System.out.println(ok ? "recovery OK" : "recovery FAILED");
+	}
+
+	// rows 0-99 are updated by the winner, and the loser
+	// deletes rows 100-149 and updates the others
+	private static int group(int id) {
+		return (id < 100) ? 0 : (id < 150) ? 1 : 2;
+	}
+
+	private static boolean expect(String what, int actual, int expected) {
+		System.out.println(what + ": " + actual + " (expected " + expected + ")");
+		return actual == expected;
+	}
+}
@@ -0,0 +1,157 @@
+import java.util.*;
+import simpledb.server.SimpleDB;
+import simpledb.record.*;
+import simpledb.tx.Transaction;
+
+// Exercises the slotted record pages of a table with a string field.
+//    compaction: deletes every other record of a full block, and
+//        checks that new records are inserted into the block
+//    rollback: rolls back insertions that compact the block
+//    overflow: grows the strings of a full block, so that
+//        some of them move to the table's overflow file
+// After each step, every record must have the value it was last given.
+
+public class SlottedPageTest {
+	private static TableInfo ti;
+	private static Map<Integer,String> expected = new HashMap<Integer,String>();
+	private static boolean ok = true;
+
+	public static void main(String[] args) {
+		SimpleDB.SLOTTED_RECORDS = true;
+		SimpleDB.init("slottedtest");
+		Transaction tx = new Transaction();
+		SimpleDB.planner().executeUpdate("create table slot (id int, s varchar(60))", tx);
+		ti = SimpleDB.mdMgr().getTableInfo("slot", tx);
+		tx.commit();
+		if (!ti.isSlotted()) {
+			System.out.println("the table does not use slotted pages");
+			return;
+		}
+
+		// fill block 0 with long strings
+		tx = new Transaction();
+		RecordFile rf = new RecordFile(ti, tx);
+		int id = 0;
+		while (true) {
+			rf.insert();
+			if (rf.currentRid().blockNumber() > 0) {
+				rf.delete();
+				break;
+			}
+			set(rf, id++, 60);
+		}
+		rf.close();
+		tx.commit();
+		int full = id;
+		check("filled block 0 with " + full + " records", full);
+
+		// delete every other record; new ones must reuse the dead space
+		tx = new Transaction();
+		rf = new RecordFile(ti, tx);
+		while (rf.next())
+			if (rf.getInt("id") % 2 == 0) {
+				expected.remove(rf.getInt("id"));
+				rf.delete();
+			}
+		rf.close();
+		tx.commit();
+		check("deleted every other record", full - (full+1)/2);
+		tx = new Transaction();
+		rf = new RecordFile(ti, tx);
+		int inblock0 = insertInto0(rf, id, full/3);
+		rf.close();
+		tx.commit();
+		id += full/3;
+		report("records inserted into block 0 after compaction", inblock0, full/3);
+		check("compacted block 0", full - (full+1)/2 + full/3);
+
+		// delete some records and commit, then roll back compacting insertions
+		tx = new Transaction();
+		rf = new RecordFile(ti, tx);
+		int deleted = 0;
+		while (rf.next() && deleted < full/3)
+			if (rf.getInt("id") % 3 == 0) {
+				expected.remove(rf.getInt("id"));
+				rf.delete();
+				deleted++;
+			}
+		rf.close();
+		tx.commit();
+		Map<Integer,String> committed = new HashMap<Integer,String>(expected);
+		tx = new Transaction();
+		rf = new RecordFile(ti, tx);
+		inblock0 = insertInto0(rf, id, deleted);
+		rf.close();
+		tx.rollback();
+		expected = committed;
+		report("records inserted into block 0 and rolled back", inblock0, deleted);
+		check("rolled back the insertions", committed.size());
+
+		// refill block 0 with short strings, then grow every string of the block
+		tx = new Transaction();
+		rf = new RecordFile(ti, tx);
+		while (true) {
+			rf.insert();
+			if (rf.currentRid().blockNumber() > 0) {
+				rf.delete();
+				break;
+			}
+			set(rf, id++, 1);
+		}
+		rf.beforeFirst();
+		while (rf.next() && rf.currentRid().blockNumber() == 0)
+			set(rf, rf.getInt("id"), 60);
+		rf.close();
+		tx.commit();
+		int ovf = SimpleDB.fileMgr().size(ti.overflowFileName());
+		report("blocks in the overflow file", ovf > 0 ? 1 : 0, 1);
+		check("grew the strings of block 0", expected.size());
+
+		System.out.println(ok ? "slotted pages OK" : "slotted pages FAILED");
+	}
+
+	// inserts records until one is not in block 0, and returns how many were
+	private static int insertInto0(RecordFile rf, int firstid, int count) {
+		int inblock0 = 0;
+		for (int i=0; i<count; i++) {
+			rf.insert();
+			if (rf.currentRid().blockNumber() == 0)
+				inblock0++;
+			set(rf, firstid + i, 60);
+		}
+		return inblock0;
+	}
+
+	// sets the fields of the current record, with a string of the specified length
+	private static void set(RecordFile rf, int id, int len) {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < len)
+			sb.append(id).append('-');
+		String s = sb.substring(0, len);
+		rf.setInt("id", id);
+		rf.setString("s", s);
+		expected.put(id, s);
+	}
+
+	// reads the table, and compares every record with its expected value
+	private static void check(String what, int count) {
+		Transaction tx = new Transaction();
+		RecordFile rf = new RecordFile(ti, tx);
+		int found = 0, wrong = 0;
+		while (rf.next()) {
+			found++;
+			if (!rf.getString("s").equals(expected.get(rf.getInt("id"))))
+				wrong++;
+		}
+		rf.close();
+		tx.commit();
+		report(what + ": records", found, count);
+		report(what + ": wrong values", wrong, 0);
+	}
+
+	private static void report(String what, int actual, int expected) {
+		ok &= (actual == expected);
+		System.out.println(what + ": " + actual
+				+ (actual == expected ? "" : " (expected " + expected + ")"));
+	}
+}
@@ -0,0 +1,109 @@
+import simpledb.server.SimpleDB;
+import simpledb.planner.Planner;
+import simpledb.query.*;
+import simpledb.tx.Transaction;
+
+// Exercises the snapshots of read-only transactions.
+// Each update runs in its own thread, while the main thread reads.
+//    RO1 starts; W1 deletes, inserts, updates row 50 and commits.
+//    W2 deletes; RO2 starts; W2 rolls back; RO3 starts.
+// RO1 must see the original rows throughout, and
+// RO2 and RO3 must see the rows committed by W1.
+
+public class SnapshotTest {
+	private static Planner planner;
+	private static boolean ok = true;
+
+	public static void main(String[] args) {
+		SimpleDB.init("snapshottest");
+		planner = SimpleDB.planner();
+		Transaction tx = new Transaction();
+		planner.executeUpdate("create table snap (a int, b varchar(10))", tx);
+		for (int i=0; i<100; i++)
+			planner.executeUpdate("insert into snap (a, b) values (" + i + ", 'v" + i + "')", tx);
+		tx.commit();
+
+		Transaction ro1 = new Transaction(true);
+		check("RO1 before W1", ro1, 4950, "v50");
+
+		Transaction w1 = new Transaction();
+		inThread(new Update(w1, "delete from snap where a = 5"));
+		inThread(new Update(w1, "insert into snap (a, b) values (1000, 'new')"));
+		inThread(new Update(w1, "update snap set b = 'changed' where a = 50"));
+		check("RO1 while W1 is active", ro1, 4950, "v50");
+		inThread(new Update(w1, null));
+		check("RO1 after W1 commits", ro1, 4950, "v50");
+
+		// W1 deleted one row and inserted one; W2 deletes the rows it inserted
+		Transaction w2 = new Transaction();
+		inThread(new Update(w2, "delete from snap where b = 'changed'"));
+		inThread(new Update(w2, "delete from snap where a = 1000"));
+		Transaction ro2 = new Transaction(true);
+		check("RO2 while W2 is active", ro2, 5945, "changed");
+		inThread(new Rollback(w2));
+		check("RO2 after W2 rolls back", ro2, 5945, "changed");
+		check("RO1 after W2 rolls back", ro1, 4950, "v50");
+		Transaction ro3 = new Transaction(true);
+		check("RO3", ro3, 5945, "changed");
+
+		ro1.commit();
+		ro2.commit();
+		ro3.commit();
+		System.out.println(ok ? "snapshots OK" : "snapshots FAILED");
+	}
+
+	// reads the table in a read-only transaction;
+	// the rows seen are identified by the sum of their values of a
+	private static void check(String what, Transaction ro, int sum, String b50) {
+		int total = 0;
+		String b = null;
+		Scan s = planner.createQueryPlan("select a, b from snap", ro).open();
+		while (s.next()) {
+			total += s.getInt("a");
+			if (s.getInt("a") == 50)
+				b = s.getString("b");
+		}
+		s.close();
+		boolean good = (total == sum) && b50.equals(b);
+		ok &= good;
+		System.out.println(what + ": sum " + total + ", row 50 is '" + b + "'"
+				+ (good ? "" : " (expected " + sum + ", '" + b50 + "')"));
+	}
+
+	private static void inThread(Runnable r) {
+		Thread th = new Thread(r);
+		th.start();
+		try {
+			th.join();
+		}
+		catch (InterruptedException e) {}
+	}
+}
+
+// executes an update statement, or commits if there is none
+class Update implements Runnable {
+	private Transaction tx;
+	private String cmd;
+	public Update(Transaction tx, String cmd) {
+		this.tx = tx;
+		this.cmd = cmd;
+	}
+
+	public void run() {
+		if (cmd == null)
+			tx.commit();
+		else
+			SimpleDB.planner().executeUpdate(cmd, tx);
+	}
+}
+
+class Rollback implements Runnable {
+	private Transaction tx;
+	public Rollback(Transaction tx) {
+		this.tx = tx;
+	}
+
+	public void run() {
+		tx.rollback();
+	}
+}
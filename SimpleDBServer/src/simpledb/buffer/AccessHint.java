@@ -0,0 +1,57 @@
+package simpledb.buffer;
+
+/**
+ * A hint, given when a block is pinned, that describes
+ * how the block is being accessed.
+ * Blocks pinned with a hint other than NORMAL are read into
+ * a small ring of buffers that belongs to the transaction,
+ * and the ring's buffers are reused for each new block.
+ * Thus a large scan occupies only a few buffers,
+ * instead of replacing every block in the pool.
+ * @see BufferRing
+ */
+public enum AccessHint {
+   /**
+    * A block that may be used again soon, such as a
+    * catalog block, an index block, or a block found through an index.
+    */
+   NORMAL(0),
+
+   /**
+    * A block of a table that is being scanned from beginning to end.
+    */
+   SEQUENTIAL(8),
+
+   /**
+    * A block of a temporary table, such as a sorted run
+    * or a materialized result.
+    * These blocks are usually written, so their ring is larger,
+    * to spread out the writes that happen when a buffer is reused.
+    */
+   TEMP(16);
+
+   private int ringSize;
+
+   private AccessHint(int ringSize) {
+      this.ringSize = ringSize;
+   }
+
+   /**
+    * Returns the number of buffers in a ring for this hint.
+    * @return the preferred ring size
+    */
+   int ringSize() {
+      return ringSize;
+   }
+
+   /**
+    * Returns the hint to use for scanning the specified file.
+    * Temporary files (i.e. those beginning with "temp") are
+    * given the TEMP hint, and all other files the SEQUENTIAL hint.
+    * @param filename the name of the file
+    * @return the hint for a scan of that file
+    */
+   public static AccessHint scanOf(String filename) {
+      return filename.startsWith("temp") ? TEMP : SEQUENTIAL;
+   }
+}
@@ -1,146 +1,679 @@
 package simpledb.buffer;
 
 import simpledb.file.*;
+import simpledb.server.SimpleDB;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.LinkedHashSet;
 import java.util.Map;
-import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * Manages the pinning and unpinning of buffers to blocks.
+ * The buffer pool is split into partitions, and each block
+ * is assigned to a partition according to its hash code.
+ * Each partition has its own lock and its own list of
+ * unpinned buffers, so that pins of blocks belonging to
+ * different partitions do not contend with each other.
+ * The mapping from blocks to buffers is kept in a single
+ * concurrent page table.
+ * The choice of which unpinned buffer to replace is delegated
+ * to a {@link ReplacementPolicy}, one per partition.
+ * <p>
+ * An unpinned buffer is in exactly one of three places:
+ * it is a candidate of its partition's replacement policy;
+ * or it is held by the {@link BufferRing} that read its block;
+ * or it is "cold", meaning that it has never been used
+ * or that its ring has been released.
+ * Cold buffers are replaced first, and ring buffers last.
+ * <p>
+ * No disk I/O is done while a partition lock is held.
+ * A thread that replaces a buffer first claims it as a victim
+ * under the lock of its old block's partition, then writes the
+ * buffer (if dirty) without the lock, and only then removes the
+ * old block from the page table; a pin of the old block in the
+ * meantime takes the buffer back.
+ * The new block is entered in the page table before it is read,
+ * and other threads that pin it wait on the buffer's latch
+ * until the read completes.
  * @author Edward Sciore
  *
  */
 class BasicBufferMgr {
-   private Queue<Buffer> availableBuffers = new LinkedList<>();
-   private Map<Block, Buffer> bufferMap = new HashMap<>();
+   /**
+    * The minimum number of buffers in a partition.
+    * Small buffer pools therefore have a single partition,
+    * and behave exactly like an unpartitioned pool.
+    */
+   private static final int MIN_PARTITION_SIZE = 16;
+
+   private Map<Block, Buffer> bufferMap = new ConcurrentHashMap<>();
+   private AtomicInteger numAvailable = new AtomicInteger();
+   private Partition[] partitions;
    private Buffer[] bufferpool;
-   
+
    /**
-    * Creates a buffer manager having the specified number 
+    * Creates a buffer manager having the specified number
     * of buffer slots.
     * This constructor depends on both the {@link FileMgr} and
-    * {@link simpledb.log.LogMgr LogMgr} objects 
+    * {@link simpledb.log.LogMgr LogMgr} objects
     * that it gets from the class
     * {@link simpledb.server.SimpleDB}.
     * Those objects are created during system initialization.
-    * Thus this constructor cannot be called until 
+    * Thus this constructor cannot be called until
     * {@link simpledb.server.SimpleDB#initFileAndLogMgr(String)} or
     * is called first.
     * @param numbuffs the number of buffer slots to allocate
+    * @param policy the name of the replacement policy
     */
-   BasicBufferMgr(int numbuffs) {
+   BasicBufferMgr(int numbuffs, String policy) {
+      int maxparts = 2 * Runtime.getRuntime().availableProcessors();
+      int numparts = Math.max(1, Math.min(maxparts, numbuffs / MIN_PARTITION_SIZE));
+      partitions = new Partition[numparts];
+      for (int i=0; i<numparts; i++)
+         partitions[i] = new Partition(ReplacementPolicy.newPolicy(policy, numbuffs, numparts));
       bufferpool = new Buffer[numbuffs];
       for (int i=0; i<numbuffs; i++) {
          bufferpool[i] = new Buffer(i);
-         availableBuffers.add(bufferpool[i]);
+         partitions[i % numparts].cold.add(bufferpool[i]);
       }
+      numAvailable.set(numbuffs);
    }
-   
+
    /**
-    * Flushes the dirty buffers modified by the specified transaction.
+    * Flushes the dirty buffers modified by the specified transaction,
+    * and forces the written files to disk.
     * @param txnum the transaction's id number
     */
-   synchronized void flushAll(int txnum) {
+   void flushAll(int txnum) {
       for (Buffer buff : bufferpool)
          if (buff.isModifiedBy(txnum))
             buff.flush();
+      SimpleDB.fileMgr().force();
+   }
+
+   /**
+    * Flushes every dirty buffer,
+    * and forces the written files to disk.
+    */
+   void flushAll() {
+      for (Buffer buff : bufferpool)
+         buff.flush();
+      SimpleDB.fileMgr().force();
+   }
+
+   /**
+    * Flushes every buffer whose first unwritten change was logged
+    * before the specified LSN, and forces the written files to disk.
+    * @param lsn the LSN
+    */
+   void flushOlderThan(long lsn) {
+      for (Buffer buff : bufferpool) {
+         long reclsn = buff.recoveryLSN();
+         if (reclsn >= 0 && reclsn < lsn)
+            buff.flush();
+      }
+      SimpleDB.fileMgr().force();
    }
-   
+
+   /**
+    * Returns the dirty page table: a map from the block of each
+    * buffer that holds logged changes not yet written to disk
+    * to the buffer's recovery LSN.
+    * Each buffer is examined while holding its shared latch,
+    * so that a change is never logged but missing from the table.
+    * @return the dirty page table
+    */
+   Map<Block,Long> dirtyPages() {
+      Map<Block,Long> result = new HashMap<Block,Long>();
+      for (Buffer buff : bufferpool) {
+         buff.latchShared();
+         try {
+            long reclsn = buff.recoveryLSN();
+            if (reclsn >= 0)
+               result.put(buff.block(), reclsn);
+         }
+         finally {
+            buff.unlatchShared();
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Writes at most the specified number of dirty, unpinned buffers
+    * to disk, in block order.
+    * Each buffer is written while holding its shared latch,
+    * so that it cannot be modified during the write;
+    * no partition lock is held, so pins are not delayed.
+    * As with any flush, the log is first written up to the
+    * buffer's LSN.
+    * @param max the maximum number of buffers to write
+    * @return the number of buffers written
+    */
+   int writeDirty(int max) {
+      List<Buffer> dirty = new ArrayList<>();
+      final List<Block> blocks = new ArrayList<>();
+      for (Buffer buff : bufferpool) {
+         Block blk = buff.block();
+         if (blk != null && buff.isModified() && !buff.isPinned()) {
+            dirty.add(buff);
+            blocks.add(blk);
+         }
+      }
+      List<Integer> order = new ArrayList<>();
+      for (int i=0; i<dirty.size(); i++)
+         order.add(i);
+      Collections.sort(order, new Comparator<Integer>() {
+         public int compare(Integer i1, Integer i2) {
+            Block b1 = blocks.get(i1), b2 = blocks.get(i2);
+            int result = b1.fileName().compareTo(b2.fileName());
+            return result != 0 ? result : Integer.compare(b1.number(), b2.number());
+         }
+      });
+      int written = 0;
+      for (int i : order) {
+         if (written >= max)
+            break;
+         Buffer buff = dirty.get(i);
+         if (buff.block() != blocks.get(i) || buff.isPinned() || !buff.isModified())
+            continue;
+         buff.flush();
+         written++;
+      }
+      return written;
+   }
+
    /**
-    * Pins a buffer to the specified block. 
+    * Pins a buffer to the specified block.
     * If there is already a buffer assigned to that block
-    * then that buffer is used;  
+    * then that buffer is used;
     * otherwise, an unpinned buffer from the pool is chosen.
+    * If a ring is specified, then the buffer is preferably
+    * chosen from the ring.
     * Returns a null value if there are no available buffers.
     * @param blk a reference to a disk block
+    * @param ring the ring of the pinning transaction, or null
     * @return the pinned buffer
     */
-   synchronized Buffer pin(Block blk) {
-      Buffer buff = findExistingBuffer(blk);
-      if (buff == null) {
-         buff = chooseUnpinnedBuffer();
+   Buffer pin(Block blk, BufferRing ring) {
+      while (true) {
+         Buffer buff = pinExisting(blk, ring);
+         if (buff != null) {
+            buff.waitForRead();
+            return buff;
+         }
+         buff = takeVictim(ring);
+         if (buff == null)
+            return null;
+         if (install(blk, buff, ring, true)) {
+            read(blk, buff);
+            return buff;
+         }
+         discard(buff);
+      }
+   }
+
+   /**
+    * Pins the buffer assigned to the specified block,
+    * if the block is in the pool.
+    * A buffer that another thread has claimed as a victim
+    * is taken back from that thread.
+    * @param blk a reference to a disk block
+    * @param ring the ring of the pinning transaction, or null
+    * @return the pinned buffer, or null if the block is not in the pool
+    */
+   private Buffer pinExisting(Block blk, BufferRing ring) {
+      Partition part = partitionOf(blk);
+      part.lock.lock();
+      try {
+         Buffer buff = bufferMap.get(blk);
          if (buff == null)
             return null;
-         if (buff.block() != null)
-            bufferMap.remove(buff.block());
+         if (!buff.isPinned()) {
+            if (buff.replacer() != null)
+               buff.setReplacer(null);
+            else {
+               part.cold.remove(buff);
+               part.ringHeld.remove(buff);
+               numAvailable.decrementAndGet();
+            }
+         }
+         if (ring == null && buff.ring() != null) {
+            // the block is in general use, so it leaves the ring
+            buff.ring().remove(buff);
+            buff.setRing(null);
+         }
+         part.policy.pinned(buff, true);
+         buff.pin();
+         return buff;
+      }
+      finally {
+         part.lock.unlock();
+      }
+   }
+
+   /**
+    * Assigns the specified victim buffer to the specified block,
+    * and enters it in the page table, unless another thread
+    * has entered the block first.
+    * The block is read afterwards, without the partition lock,
+    * by {@link #read(Block, Buffer)}.
+    * A pinned buffer is pinned, and the pin counts as a miss;
+    * otherwise it becomes a replacement candidate, or stays with its ring,
+    * and the read is not counted as a pin.
+    * @param blk a reference to a disk block
+    * @param buff the victim buffer
+    * @param ring the ring of the reading transaction, or null
+    * @param pin true if the buffer is to be pinned
+    * @return true if the buffer was assigned to the block
+    */
+   private boolean install(Block blk, Buffer buff, BufferRing ring, boolean pin) {
+      Partition part = partitionOf(blk);
+      part.lock.lock();
+      try {
+         if (bufferMap.containsKey(blk))
+            return false;
          buff.assignToBlock(blk);
          bufferMap.put(blk, buff);
+         if (pin)
+            part.policy.pinned(buff, false);
+         else
+            part.policy.access(buff, false);
+         if (ring != null && buff.ring() == null && ring.add(buff))
+            buff.setRing(ring);
+         if (pin)
+            buff.pin();
+         else {
+            if (buff.ring() != null)
+               part.ringHeld.add(buff);
+            else
+               part.policy.unpinned(buff);
+            numAvailable.incrementAndGet();
+         }
+         return true;
+      }
+      finally {
+         part.lock.unlock();
+      }
+   }
+
+   /**
+    * Reads the block of a buffer entered in the page table by
+    * {@link #install(Block, Buffer, BufferRing, boolean)}.
+    * If the read fails, then the block is removed from the page table,
+    * so that a later pin reads it again.
+    * @param blk a reference to the block
+    * @param buff the buffer
+    */
+   private void read(Block blk, Buffer buff) {
+      try {
+         buff.readBlock();
+      }
+      catch (RuntimeException e) {
+         Partition part = partitionOf(blk);
+         part.lock.lock();
+         try {
+            bufferMap.remove(blk, buff);
+         }
+         finally {
+            part.lock.unlock();
+         }
+         throw e;
+      }
+   }
+
+   /**
+    * Returns an evicted victim buffer that was not needed,
+    * because another thread read the block first.
+    * The buffer becomes cold.
+    * @param buff the buffer
+    */
+   private void discard(Buffer buff) {
+      Partition part = partitionOf(buff.block());
+      part.lock.lock();
+      try {
+         if (buff.ring() != null) {
+            buff.ring().remove(buff);
+            buff.setRing(null);
+         }
+         part.cold.add(buff);
+         numAvailable.incrementAndGet();
+      }
+      finally {
+         part.lock.unlock();
       }
-      buff.pin();
-      return buff;
    }
-   
+
    /**
     * Allocates a new block in the specified file, and
-    * pins a buffer to it. 
-    * Returns null (without allocating the block) if 
+    * pins a buffer to it.
+    * Returns null (without allocating the block) if
     * there are no available buffers.
     * @param filename the name of the file
     * @param fmtr a pageformatter object, used to format the new block
+    * @param ring the ring of the pinning transaction, or null
     * @return the pinned buffer
     */
-   synchronized Buffer pinNew(String filename, PageFormatter fmtr) {
-      Buffer buff = chooseUnpinnedBuffer();
+   Buffer pinNew(String filename, PageFormatter fmtr, BufferRing ring) {
+      Buffer buff = takeVictim(ring);
       if (buff == null)
          return null;
-      if (buff.block() != null)
-         bufferMap.remove(buff.block());
+      // the buffer is in no partition at this point,
+      // so no other thread can reach it
       buff.assignToNew(filename, fmtr);
-      bufferMap.put(buff.block(), buff);
-      buff.pin();
-      return buff;
+      Partition part = partitionOf(buff.block());
+      part.lock.lock();
+      try {
+         bufferMap.put(buff.block(), buff);
+         part.policy.pinned(buff, false);
+         if (ring != null && buff.ring() == null && ring.add(buff))
+            buff.setRing(ring);
+         buff.pin();
+         return buff;
+      }
+      finally {
+         part.lock.unlock();
+      }
    }
-   
+
+   /**
+    * Reads the specified block into an unpinned buffer,
+    * so that a later pin of the block will find it in the pool.
+    * If a ring is specified, then the buffer is preferably
+    * chosen from the ring.
+    * Nothing is done if the block is already in the pool,
+    * if the ring has been released,
+    * or if there are no available buffers.
+    * @param blk a reference to a disk block
+    * @param ring the ring of the reading transaction, or null
+    */
+   void prefetch(Block blk, BufferRing ring) {
+      if (ring != null && ring.isReleased())
+         return;
+      if (bufferMap.containsKey(blk))
+         return;
+      Buffer buff = takeVictim(ring);
+      if (buff == null)
+         return;
+      if (install(blk, buff, ring, false))
+         read(blk, buff);
+      else
+         discard(buff);
+   }
+
    /**
     * Unpins the specified buffer.
+    * A buffer that belongs to a ring stays with the ring;
+    * any other buffer becomes a candidate of the replacement policy.
     * @param buff the buffer to be unpinned
     */
-   synchronized void unpin(Buffer buff) {
-      buff.unpin();
-      if (!buff.isPinned()) {
-         availableBuffers.add(buff);
+   void unpin(Buffer buff) {
+      Partition part = partitionOf(buff.block());
+      part.lock.lock();
+      try {
+         buff.unpin();
+         if (!buff.isPinned()) {
+            if (buff.ring() != null)
+               part.ringHeld.add(buff);
+            else
+               part.policy.unpinned(buff);
+            numAvailable.incrementAndGet();
+         }
+      }
+      finally {
+         part.lock.unlock();
+      }
+   }
+
+   /**
+    * Releases the buffers of the specified ring.
+    * The unpinned buffers of the ring become cold,
+    * so they will be the first to be replaced.
+    * @param ring the ring
+    */
+   void release(BufferRing ring) {
+      ring.close();
+      for (Buffer buff : ring.buffers())
+         if (buff != null)
+            releaseFromRing(buff, ring);
+   }
+
+   /**
+    * Removes the buffer from the ring, if it is still there.
+    * A prefetch can reassign the buffer to a different block
+    * (and hence a different partition) at any time,
+    * so the block is read again once the partition is locked.
+    * @param buff the buffer
+    * @param ring the ring
+    */
+   private void releaseFromRing(Buffer buff, BufferRing ring) {
+      while (true) {
+         Block blk = buff.block();
+         Partition part = partitionOf(blk);
+         part.lock.lock();
+         try {
+            if (buff.block() != blk)
+               continue;
+            if (buff.ring() == ring) {
+               ring.remove(buff);
+               buff.setRing(null);
+               if (part.ringHeld.remove(buff)) {
+                  part.policy.remove(buff);
+                  part.cold.add(buff);
+               }
+            }
+            return;
+         }
+         finally {
+            part.lock.unlock();
+         }
       }
    }
-   
+
    /**
     * Returns the number of available (i.e. unpinned) buffers.
     * @return the number of available buffers
     */
    int available() {
-      return availableBuffers.size();
+      return numAvailable.get();
    }
-   
-   private Buffer findExistingBuffer(Block blk) {
-      Buffer b;
-      if ((b = bufferMap.get(blk)) != null) {
-         return b;
+
+   /**
+    * Returns the fraction of pins, over all partitions,
+    * that found their block already in the pool.
+    * Prefetches are not pins, and are not counted.
+    * @return the hit ratio of the buffer pool
+    */
+   double hitRatio() {
+      long hits = 0, total = 0;
+      for (Partition part : partitions) {
+         part.lock.lock();
+         try {
+            hits  += part.policy.hits();
+            total += part.policy.hits() + part.policy.misses();
+         }
+         finally {
+            part.lock.unlock();
+         }
+      }
+      return total == 0 ? 0.0 : (double) hits / total;
+   }
+
+   /**
+    * Takes an unpinned buffer for a block that is not in the pool,
+    * preferably from the specified ring.
+    * The buffer is written to disk (if dirty) and its old block
+    * is removed from the page table.
+    * A buffer that is pinned again while it is being written
+    * is left to the pinning thread, and another buffer is taken.
+    * @param ring the ring of the pinning transaction, or null
+    * @return an unpinned buffer that is in no partition,
+    * or null if there are no unpinned buffers
+    */
+   private Buffer takeVictim(BufferRing ring) {
+      while (true) {
+         Buffer buff = null;
+         if (ring != null)
+            buff = reuseRingBuffer(ring);
+         if (buff == null)
+            buff = chooseUnpinnedBuffer();
+         if (buff == null)
+            return null;
+         if (evict(buff)) {
+            if (ring != null)
+               ring.reused(buff);
+            return buff;
+         }
+      }
+   }
+
+   /**
+    * Claims the oldest unpinned buffer of the specified ring.
+    * The buffer stays in the ring.
+    * @param ring the ring
+    * @return a buffer of the ring, or null if none is unpinned
+    */
+   private Buffer reuseRingBuffer(BufferRing ring) {
+      for (Buffer buff : ring.buffers()) {
+         if (buff == null)
+            continue;
+         Block blk = buff.block();
+         Partition part = partitionOf(blk);
+         part.lock.lock();
+         try {
+            if (buff.ring() != ring || buff.block() != blk || !part.ringHeld.remove(buff))
+               continue;
+            part.policy.remove(buff);
+            claim(buff);
+            return buff;
+         }
+         finally {
+            part.lock.unlock();
+         }
       }
       return null;
    }
 
    /**
-    * chooses unpinned buffer from the queue.
-    * Checks for isPinned because there can be a case
-    * where the buffer in the queue becomes pinned
-    * Case:: If there is already a buffer assigned
-    *        to a block then that buffer is used. This
-    *        buffer is allocated but unpinned, meaning
-    *        it is in the unpinned queue. Since elements
-    *        in the queue cannot be manipulated, this
-    *        check is necessary.
-    * @return unpinned buffer
+    * Claims an unpinned buffer from one of the partitions.
+    * The partitions are locked one at a time, and every
+    * partition is examined before giving up.
+    * Each thread starts with a different partition,
+    * so that threads do not all take their victims from the same one.
+    * @return an unpinned buffer, or null if none could be found
     */
    private Buffer chooseUnpinnedBuffer() {
-      Buffer b;
-      while ((b = availableBuffers.poll()) != null) {
-         if (!b.isPinned())
-            return b;
+      int first = (int) (Thread.currentThread().getId() % partitions.length);
+      for (int i=0; i<partitions.length; i++) {
+         Partition part = partitions[(first + i) % partitions.length];
+         part.lock.lock();
+         try {
+            Buffer buff = takeUnpinned(part);
+            if (buff != null)
+               return buff;
+         }
+         finally {
+            part.lock.unlock();
+         }
       }
       return null;
    }
 
+   /**
+    * Claims an unpinned buffer of the specified partition,
+    * whose lock must be held by the caller.
+    * Cold buffers are taken first;
+    * otherwise the partition's replacement policy chooses the buffer.
+    * If the policy has no candidates, then an unpinned buffer
+    * is taken away from its ring.
+    * @param part the partition
+    * @return an unpinned buffer, or null if the partition has none
+    */
+   private Buffer takeUnpinned(Partition part) {
+      Buffer buff = first(part.cold);
+      if (buff == null)
+         buff = part.policy.chooseVictim();
+      if (buff == null) {
+         buff = first(part.ringHeld);
+         if (buff != null) {
+            buff.ring().remove(buff);
+            buff.setRing(null);
+            part.policy.remove(buff);
+         }
+      }
+      if (buff != null)
+         claim(buff);
+      return buff;
+   }
+
+   /**
+    * Marks the specified unpinned buffer as the current thread's victim.
+    * The buffer has been removed from its partition's sets of
+    * unpinned buffers, but its block stays in the page table
+    * until the buffer is evicted.
+    * The caller must hold the lock of the block's partition.
+    * @param buff the buffer
+    */
+   private void claim(Buffer buff) {
+      numAvailable.decrementAndGet();
+      buff.setReplacer(Thread.currentThread());
+   }
+
+   /**
+    * Removes the block of the specified victim buffer from the page table.
+    * The block is written to disk (if dirty) before it is removed,
+    * so that a subsequent pin of that block reads its
+    * latest contents; the write is done without holding
+    * the partition lock.
+    * If the block was pinned during the write, then the
+    * pinning thread has taken the buffer back, and
+    * nothing is removed.
+    * @param buff the buffer, claimed by the current thread
+    * @return true if the buffer was evicted
+    */
+   private boolean evict(Buffer buff) {
+      Block blk = buff.block();
+      if (blk != null)
+         buff.flush();
+      Partition part = partitionOf(blk);
+      part.lock.lock();
+      try {
+         if (buff.replacer() != Thread.currentThread())
+            return false;
+         buff.setReplacer(null);
+         if (blk != null)
+            bufferMap.remove(blk, buff);
+         return true;
+      }
+      finally {
+         part.lock.unlock();
+      }
+   }
+
+   private Buffer first(Set<Buffer> buffs) {
+      Iterator<Buffer> iter = buffs.iterator();
+      if (!iter.hasNext())
+         return null;
+      Buffer buff = iter.next();
+      iter.remove();
+      return buff;
+   }
+
+   private Partition partitionOf(Block blk) {
+      if (blk == null)
+         return partitions[0];
+      return partitions[(blk.hashCode() & Integer.MAX_VALUE) % partitions.length];
+   }
+
    public String toString() {
       String s = "";
       for (int i = 0; i < bufferpool.length-1; i++) {
@@ -149,4 +682,22 @@ class BasicBufferMgr {
       s += bufferpool[bufferpool.length-1].toString();
       return s;
    }
+
+   /**
+    * A partition of the buffer pool.
+    * The lock protects the pin counts, ring membership and victim claims
+    * of the buffers whose blocks belong to the partition, as well as
+    * the partition's replacement policy and its sets of
+    * cold and ring-held unpinned buffers.
+    */
+   private static class Partition {
+      ReentrantLock lock = new ReentrantLock();
+      Set<Buffer> cold = new LinkedHashSet<>();
+      Set<Buffer> ringHeld = new LinkedHashSet<>();
+      ReplacementPolicy policy;
+
+      Partition(ReplacementPolicy policy) {
+         this.policy = policy;
+      }
+   }
 }
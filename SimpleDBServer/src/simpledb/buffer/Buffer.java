@@ -2,6 +2,7 @@ package simpledb.buffer;
 
 import simpledb.server.SimpleDB;
 import simpledb.file.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * An individual buffer.
@@ -11,6 +12,14 @@ import simpledb.file.*;
  * whether the contents of the page have been modified,
  * and if so, the id of the modifying transaction and
  * the LSN of the corresponding log record.
+ * <p>
+ * Values are read from the page without locking.
+ * Each buffer also has a shared/exclusive latch, which is held
+ * only by operations that span several fields:
+ * a modification holds it exclusively while it logs the change
+ * and updates the page, and a flush holds it shared while it
+ * writes the page, so that the page written to disk always
+ * matches its LSN.
  * @author Edward Sciore
  */
 public class Buffer {
@@ -19,7 +28,12 @@ public class Buffer {
    private int id;
    private int pins = 0;
    private int modifiedBy = -1;  // negative means not modified
-   private int logSequenceNumber = -1; // negative means no corresponding log record
+   private long logSequenceNumber = -1; // negative means no corresponding log record
+   private long recoveryLSN = -1; // the first logged change since the page was written; negative if none
+   private BufferRing ring = null; // null means the buffer is not in a ring
+   private Thread replacer = null; // the thread replacing the buffer's block, if any
+   private volatile boolean reading = false; // true while the block is being read
+   private ReentrantReadWriteLock latch = new ReentrantReadWriteLock();
 
    /**
     * Creates a new buffer, wrapping a new 
@@ -63,6 +77,17 @@ public class Buffer {
       return contents.getString(offset);
    }
 
+   /**
+    * Copies bytes from the specified offset of the
+    * buffer's page into the specified array,
+    * filling the array.
+    * @param offset the byte offset of the page
+    * @param dst the array to copy into
+    */
+   public void getBytes(int offset, byte[] dst) {
+      contents.getBytes(offset, dst, 0, dst.length);
+   }
+
    /**
     * Writes an integer to the specified offset of the
     * buffer's page.
@@ -77,10 +102,10 @@ public class Buffer {
     * @param txnum the id of the transaction performing the modification
     * @param lsn the LSN of the corresponding log record
     */
-   public void setInt(int offset, int val, int txnum, int lsn) {
+   public void setInt(int offset, int val, int txnum, long lsn) {
       modifiedBy = txnum;
       if (lsn >= 0)
-	      logSequenceNumber = lsn;
+	      setLSN(lsn);
       contents.setInt(offset, val);
    }
 
@@ -98,13 +123,38 @@ public class Buffer {
     * @param txnum the id of the transaction performing the modification
     * @param lsn the LSN of the corresponding log record
     */
-   public void setString(int offset, String val, int txnum, int lsn) {
+   public void setString(int offset, String val, int txnum, long lsn) {
       modifiedBy = txnum;
       if (lsn >= 0)
-	      logSequenceNumber = lsn;
+	      setLSN(lsn);
       contents.setString(offset, val);
    }
 
+   /**
+    * Writes an array of bytes to the specified offset of the
+    * buffer's page, as {@link #setInt(int, int, int, long)} does.
+    * @param offset the byte offset within the page
+    * @param val the bytes to be written
+    * @param txnum the id of the transaction performing the modification
+    * @param lsn the LSN of the corresponding log record
+    */
+   public void setBytes(int offset, byte[] val, int txnum, long lsn) {
+      modifiedBy = txnum;
+      if (lsn >= 0)
+         setLSN(lsn);
+      contents.setBytes(offset, val, 0, val.length);
+   }
+
+   /**
+    * Copies the buffer's page into the specified page.
+    * The caller must hold the buffer's latch,
+    * so that the copy is not taken in the middle of an update.
+    * @param page the page to copy into
+    */
+   public void copyTo(Page page) {
+      contents.copyTo(page);
+   }
+
    /**
     * Returns a reference to the disk block
     * that the buffer is pinned to.
@@ -114,18 +164,57 @@ public class Buffer {
       return blk;
    }
 
+   /**
+    * Acquires the buffer's latch in shared mode.
+    * Other shared holders may proceed, but the page
+    * cannot be modified until the latch is released.
+    */
+   public void latchShared() {
+      latch.readLock().lock();
+   }
+
+   /**
+    * Releases the buffer's latch held in shared mode.
+    */
+   public void unlatchShared() {
+      latch.readLock().unlock();
+   }
+
+   /**
+    * Acquires the buffer's latch in exclusive mode.
+    * The holder may acquire the latch again in either mode.
+    */
+   public void latchExclusive() {
+      latch.writeLock().lock();
+   }
+
+   /**
+    * Releases the buffer's latch held in exclusive mode.
+    */
+   public void unlatchExclusive() {
+      latch.writeLock().unlock();
+   }
+
    /**
     * Writes the page to its disk block if the
     * page is dirty.
     * The method ensures that the corresponding log
     * record has been written to disk prior to writing
     * the page to disk.
+    * The shared latch is held during the write.
     */
    void flush() {
-      if (modifiedBy >= 0) {
-         SimpleDB.logMgr().flush(logSequenceNumber);
-         contents.write(blk);
-         modifiedBy = -1;
+      latchShared();
+      try {
+         if (modifiedBy >= 0) {
+            SimpleDB.logMgr().flush(logSequenceNumber);
+            contents.write(blk);
+            modifiedBy = -1;
+            recoveryLSN = -1;
+         }
+      }
+      finally {
+         unlatchShared();
       }
    }
 
@@ -163,17 +252,68 @@ public class Buffer {
    }
 
    /**
-    * Reads the contents of the specified block into
-    * the buffer's page.
-    * If the buffer was dirty, then the contents
-    * of the previous page are first written to disk.
+    * Returns true if the buffer's page has been modified
+    * since it was last written to disk.
+    * @return true if the buffer is dirty
+    */
+   boolean isModified() {
+      return modifiedBy >= 0;
+   }
+
+   /**
+    * Returns the LSN of the first logged change to the page
+    * since it was last written to disk, or -1 if there is none.
+    * Recovery need not redo any change to the page
+    * that was logged before this LSN.
+    * @return the page's recovery LSN
+    */
+   long recoveryLSN() {
+      return recoveryLSN;
+   }
+
+   /**
+    * Assigns the buffer to the specified block,
+    * whose contents are then read by {@link #readBlock()}.
+    * The buffer must not be dirty.
+    * The buffer's latch is held in exclusive mode from this call
+    * until the read completes, so that the buffer manager can
+    * publish the buffer before reading its block,
+    * and threads that pin the block meanwhile wait for its contents
+    * in {@link #waitForRead()}.
     * @param b a reference to the data block
     */
    void assignToBlock(Block b) {
-      flush();
+      latchExclusive();
       blk = b;
-      contents.read(blk);
       pins = 0;
+      reading = true;
+   }
+
+   /**
+    * Reads the contents of the block assigned by
+    * {@link #assignToBlock(Block)} into the buffer's page,
+    * and releases the buffer's latch.
+    * The method must be called by the thread that assigned the block.
+    */
+   void readBlock() {
+      try {
+         contents.read(blk);
+      }
+      finally {
+         reading = false;
+         unlatchExclusive();
+      }
+   }
+
+   /**
+    * Waits until the contents of the buffer's block have been read,
+    * if the read is in progress.
+    */
+   void waitForRead() {
+      if (reading) {
+         latchShared();
+         unlatchShared();
+      }
    }
 
    /**
@@ -185,10 +325,64 @@ public class Buffer {
     * @param fmtr a page formatter, used to initialize the page
     */
    void assignToNew(String filename, PageFormatter fmtr) {
-      flush();
-      fmtr.format(contents);
-      blk = contents.append(filename);
-      pins = 0;
+      latchExclusive();
+      try {
+         flush();
+         fmtr.format(contents);
+         blk = contents.append(filename);
+         pins = 0;
+      }
+      finally {
+         unlatchExclusive();
+      }
+   }
+
+   /**
+    * Returns the ring that the buffer belongs to.
+    * @return the buffer's ring, or null if it is not in a ring
+    */
+   BufferRing ring() {
+      return ring;
+   }
+
+   /**
+    * Sets the ring that the buffer belongs to.
+    * @param ring the ring, or null to remove the buffer from its ring
+    */
+   void setRing(BufferRing ring) {
+      this.ring = ring;
+   }
+
+   /**
+    * Returns the thread that has chosen the buffer as a victim,
+    * and is replacing its block.
+    * @return the replacing thread, or null if the buffer is not being replaced
+    */
+   Thread replacer() {
+      return replacer;
+   }
+
+   /**
+    * Sets the thread that is replacing the buffer's block.
+    * @param replacer the replacing thread, or null if the buffer
+    * is no longer being replaced
+    */
+   void setReplacer(Thread replacer) {
+      this.replacer = replacer;
+   }
+
+   /**
+    * Returns the buffer's position in the buffer pool.
+    * @return the id of the buffer
+    */
+   int id() {
+      return id;
+   }
+
+   private void setLSN(long lsn) {
+      logSequenceNumber = lsn;
+      if (recoveryLSN < 0)
+         recoveryLSN = lsn;
    }
 
    public String toString() {
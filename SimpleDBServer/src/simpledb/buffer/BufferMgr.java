@@ -2,6 +2,15 @@ package simpledb.buffer;
 
 import simpledb.file.*;
 
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
 /**
  * The publicly-accessible buffer manager.
  * A buffer manager wraps a basic buffer manager, and
@@ -13,14 +22,35 @@ import simpledb.file.*;
  * calling thread will be placed on a waiting list.
  * The waiting threads are removed from the list when 
  * a buffer becomes available.
+ * Threads that find a buffer immediately never touch
+ * the waiting list, and unpinning a buffer only signals
+ * the waiting list if some thread is actually waiting.
  * If a thread has been waiting for a buffer for an
  * excessive amount of time (currently, 10 seconds)
  * then a {@link BufferAbortException} is thrown.
+ * <p>
+ * The buffer manager can also read blocks ahead of time.
+ * A prefetch request is handled by a small pool of
+ * background reader threads, which read the block into
+ * an unpinned buffer; requests that arrive while the
+ * readers are too far behind are discarded.
+ * A background writer thread can be started to write
+ * dirty buffers to disk before they are replaced.
  * @author Edward Sciore
  */
 public class BufferMgr {
    private static final long MAX_TIME = 10000; // 10 seconds
+   private static final int READERS = 2;
+   private static final int MAX_PENDING_READS = 64;
+   public static final String DEFAULT_POLICY = "fifo";
+   public static final int DEFAULT_READ_AHEAD = 4;
    private BasicBufferMgr bufferMgr;
+   private ReentrantLock waitLock = new ReentrantLock();
+   private Condition bufferFreed = waitLock.newCondition();
+   private AtomicInteger waiters = new AtomicInteger();
+   private int numbuffers, readAhead;
+   private ThreadPoolExecutor readers;
+   private BufferWriter writer = null;
    
    /**
     * Creates a new buffer manager having the specified 
@@ -36,7 +66,46 @@ public class BufferMgr {
     * @param numbuffers the number of buffer slots to allocate
     */
    public BufferMgr(int numbuffers) {
-      bufferMgr = new BasicBufferMgr(numbuffers);
+      this(numbuffers, DEFAULT_POLICY);
+   }
+
+   /**
+    * Creates a new buffer manager having the specified
+    * number of buffers and the specified replacement policy.
+    * The policy is one of "fifo", "clock", "lruk" or "2q".
+    * @param numbuffers the number of buffer slots to allocate
+    * @param policy the name of the replacement policy
+    */
+   public BufferMgr(int numbuffers, String policy) {
+      this(numbuffers, policy, DEFAULT_READ_AHEAD);
+   }
+
+   /**
+    * Creates a new buffer manager having the specified
+    * number of buffers, the specified replacement policy,
+    * and the specified read-ahead distance.
+    * The read-ahead distance is the maximum number of blocks
+    * that a sequential scan asks to be read ahead of the
+    * block it is on; a value of 0 disables read-ahead.
+    * @param numbuffers the number of buffer slots to allocate
+    * @param policy the name of the replacement policy
+    * @param readAhead the read-ahead distance, in blocks
+    */
+   public BufferMgr(int numbuffers, String policy, int readAhead) {
+      this.numbuffers = numbuffers;
+      this.readAhead = readAhead;
+      bufferMgr = new BasicBufferMgr(numbuffers, policy);
+      readers = new ThreadPoolExecutor(READERS, READERS, 1, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_PENDING_READS),
+            new ThreadFactory() {
+               public Thread newThread(Runnable r) {
+                  Thread t = new Thread(r, "simpledb-reader");
+                  t.setDaemon(true);
+                  return t;
+               }
+            },
+            new ThreadPoolExecutor.DiscardPolicy());
+      readers.allowCoreThreadTimeOut(true);
    }
    
    /**
@@ -47,21 +116,45 @@ public class BufferMgr {
     * @param blk a reference to a disk block
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pin(Block blk) {
+   public Buffer pin(Block blk) {
+      return pin(blk, null);
+   }
+
+   /**
+    * Pins a buffer to the specified block, as {@link #pin(Block)} does.
+    * If the block is not in the pool, then it is read into
+    * a buffer of the specified ring.
+    * @param blk a reference to a disk block
+    * @param ring the ring to use, or null for no ring
+    * @return the buffer pinned to that block
+    */
+   public Buffer pin(Block blk, BufferRing ring) {
+      Buffer buff = bufferMgr.pin(blk, ring);
+      if (buff != null) {
+         signalIfAvailable();
+         return buff;
+      }
+      long timestamp = System.currentTimeMillis();
+      waiters.incrementAndGet();
+      waitLock.lock();
       try {
-         long timestamp = System.currentTimeMillis();
-         Buffer buff = bufferMgr.pin(blk);
+         buff = bufferMgr.pin(blk, ring);
          while (buff == null && !waitingTooLong(timestamp)) {
-            wait(MAX_TIME);
-            buff = bufferMgr.pin(blk);
+            bufferFreed.await(MAX_TIME, TimeUnit.MILLISECONDS);
+            buff = bufferMgr.pin(blk, ring);
          }
          if (buff == null)
             throw new BufferAbortException();
+         signalIfAvailable();
          return buff;
       }
       catch(InterruptedException e) {
          throw new BufferAbortException();
       }
+      finally {
+         waitLock.unlock();
+         waiters.decrementAndGet();
+      }
    }
    
    /**
@@ -73,43 +166,186 @@ public class BufferMgr {
     * @param fmtr the formatter used to initialize the page
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pinNew(String filename, PageFormatter fmtr) {
+   public Buffer pinNew(String filename, PageFormatter fmtr) {
+      return pinNew(filename, fmtr, null);
+   }
+
+   /**
+    * Pins a buffer to a new block in the specified file,
+    * as {@link #pinNew(String, PageFormatter)} does,
+    * preferably using a buffer of the specified ring.
+    * @param filename the name of the file
+    * @param fmtr the formatter used to initialize the page
+    * @param ring the ring to use, or null for no ring
+    * @return the buffer pinned to that block
+    */
+   public Buffer pinNew(String filename, PageFormatter fmtr, BufferRing ring) {
+      Buffer buff = bufferMgr.pinNew(filename, fmtr, ring);
+      if (buff != null) {
+         signalIfAvailable();
+         return buff;
+      }
+      long timestamp = System.currentTimeMillis();
+      waiters.incrementAndGet();
+      waitLock.lock();
       try {
-         long timestamp = System.currentTimeMillis();
-         Buffer buff = bufferMgr.pinNew(filename, fmtr);
+         buff = bufferMgr.pinNew(filename, fmtr, ring);
          while (buff == null && !waitingTooLong(timestamp)) {
-            wait(MAX_TIME);
-            buff = bufferMgr.pinNew(filename, fmtr);
+            bufferFreed.await(MAX_TIME, TimeUnit.MILLISECONDS);
+            buff = bufferMgr.pinNew(filename, fmtr, ring);
          }
          if (buff == null)
             throw new BufferAbortException();
+         signalIfAvailable();
          return buff;
       }
       catch(InterruptedException e) {
          throw new BufferAbortException();
       }
+      finally {
+         waitLock.unlock();
+         waiters.decrementAndGet();
+      }
    }
    
    /**
     * Unpins the specified buffer. 
     * If the buffer's pin count becomes 0,
     * then the threads on the wait list are notified.
+    * A waiting thread registers itself before it makes its
+    * final attempt to pin, and holds the wait lock while doing so;
+    * thus a buffer freed after that attempt is always signalled.
     * @param buff the buffer to be unpinned
     */
-   public synchronized void unpin(Buffer buff) {
+   public void unpin(Buffer buff) {
       bufferMgr.unpin(buff);
       if (!buff.isPinned())
-         notifyAll();
+         signalWaiters();
    }
    
    /**
-    * Flushes the dirty buffers modified by the specified transaction.
+    * Creates a ring of buffers for blocks pinned with the specified hint.
+    * A ring never takes more than an eighth of the buffer pool.
+    * @param hint the access hint
+    * @return a new ring, or null if the hint is NORMAL
+    */
+   public BufferRing newRing(AccessHint hint) {
+      if (hint == AccessHint.NORMAL)
+         return null;
+      int size = Math.min(hint.ringSize(), Math.max(1, numbuffers / 8));
+      return new BufferRing(size);
+   }
+
+   /**
+    * Asks for the specified block to be read into the pool
+    * by a background reader thread.
+    * The block is not pinned; the request is only a hint,
+    * and is ignored if no buffer is available
+    * or if the readers are busy.
+    * If a ring is specified, then the block is read into
+    * a buffer of the ring.
+    * @param blk a reference to a disk block
+    * @param ring the ring to use, or null for no ring
+    */
+   public void prefetch(final Block blk, final BufferRing ring) {
+      readers.execute(new Runnable() {
+         public void run() {
+            bufferMgr.prefetch(blk, ring);
+            signalIfAvailable();
+         }
+      });
+   }
+
+   /**
+    * Returns the number of blocks that a sequential scan
+    * should read ahead when using the specified ring.
+    * Only half of the ring is read ahead, so that the
+    * prefetched blocks do not replace each other
+    * before they are used.
+    * Scans that do not use a ring are not read ahead.
+    * @param ring the scan's ring, or null
+    * @return the read-ahead distance, in blocks
+    */
+   public int readAheadWindow(BufferRing ring) {
+      if (ring == null)
+         return 0;
+      return Math.min(readAhead, ring.capacity() / 2);
+   }
+
+   /**
+    * Releases the specified ring.
+    * Its unpinned buffers will be the first to be replaced.
+    * Waiting threads are notified, since the ring's buffers
+    * are now available to them.
+    * @param ring the ring
+    */
+   public void release(BufferRing ring) {
+      bufferMgr.release(ring);
+      signalWaiters();
+   }
+
+   /**
+    * Starts a background thread that periodically writes
+    * dirty, unpinned buffers to disk.
+    * Any writer that was already running is stopped.
+    * @param interval the time between rounds, in milliseconds
+    * @param maxPages the maximum number of buffers written per round
+    */
+   public synchronized void startWriter(long interval, int maxPages) {
+      stopWriter();
+      writer = new BufferWriter(bufferMgr, interval, maxPages);
+      writer.start();
+   }
+
+   /**
+    * Stops the background writer, if one is running.
+    */
+   public synchronized void stopWriter() {
+      if (writer != null) {
+         writer.shutdown();
+         writer = null;
+      }
+   }
+
+   /**
+    * Flushes the dirty buffers modified by the specified transaction,
+    * and forces them to disk.
     * @param txnum the transaction's id number
     */
    public void flushAll(int txnum) {
       bufferMgr.flushAll(txnum);
    }
    
+   /**
+    * Flushes every dirty buffer in the pool,
+    * regardless of which transaction modified it,
+    * and forces them to disk.
+    */
+   public void flushAll() {
+      bufferMgr.flushAll();
+   }
+   
+   /**
+    * Flushes every buffer whose first unwritten change was
+    * logged before the specified LSN, and forces them to disk.
+    * A checkpoint calls this method so that no page stays
+    * dirty for long enough to make recovery read far back in the log.
+    * @param lsn the LSN
+    */
+   public void flushOlderThan(long lsn) {
+      bufferMgr.flushOlderThan(lsn);
+   }
+   
+   /**
+    * Returns the dirty page table, which maps each block
+    * whose buffer holds logged changes not yet written to disk
+    * to the LSN of the first such change.
+    * @return the dirty page table
+    */
+   public Map<Block,Long> dirtyPages() {
+      return bufferMgr.dirtyPages();
+   }
+   
    /**
     * Returns the number of available (ie unpinned) buffers.
     * @return the number of available buffers
@@ -118,6 +354,42 @@ public class BufferMgr {
       return bufferMgr.available();
    }
    
+   /**
+    * Returns the fraction of pins that found their
+    * block already in the buffer pool.
+    * The value can be used to compare replacement policies
+    * on a given workload.
+    * @return the hit ratio of the buffer pool
+    */
+   public double hitRatio() {
+      return bufferMgr.hitRatio();
+   }
+   
+   /**
+    * Notifies the threads on the wait list, if there are any.
+    */
+   private void signalWaiters() {
+      if (waiters.get() > 0) {
+         waitLock.lock();
+         try {
+            bufferFreed.signalAll();
+         }
+         finally {
+            waitLock.unlock();
+         }
+      }
+   }
+
+   /**
+    * Notifies the threads on the wait list if some buffer is available.
+    * A pin or prefetch can leave a buffer available to others,
+    * when it takes a victim that it then finds it does not need.
+    */
+   private void signalIfAvailable() {
+      if (waiters.get() > 0 && bufferMgr.available() > 0)
+         signalWaiters();
+   }
+
    private boolean waitingTooLong(long starttime) {
       return System.currentTimeMillis() - starttime > MAX_TIME;
    }
@@ -0,0 +1,103 @@
+package simpledb.buffer;
+
+/**
+ * A small set of buffers that a transaction reuses for
+ * the blocks that it pins with a non-NORMAL {@link AccessHint}.
+ * When such a block is not in the pool, the buffer manager
+ * replaces the block in the oldest unpinned buffer of the ring,
+ * rather than asking the replacement policy for a victim.
+ * <p>
+ * A buffer stays in the ring until the ring is released,
+ * until some thread pins its block with the NORMAL hint
+ * (which shows that the block is in general use),
+ * or until the buffer manager needs it and no other buffer is free.
+ * A ring is created by {@link BufferMgr#newRing(AccessHint)},
+ * and must be released by {@link BufferMgr#release(BufferRing)}
+ * when the transaction completes.
+ */
+public class BufferRing {
+   private Buffer[] frames;
+   private int hand = 0;
+   private boolean released = false;
+
+   /**
+    * Creates an empty ring having the specified number of slots.
+    * @param capacity the maximum number of buffers in the ring
+    */
+   BufferRing(int capacity) {
+      frames = new Buffer[capacity];
+   }
+
+   /**
+    * Returns the maximum number of buffers in the ring.
+    * @return the capacity of the ring
+    */
+   int capacity() {
+      return frames.length;
+   }
+
+   /**
+    * Marks the ring as released.
+    * No buffers can be added to a released ring.
+    */
+   synchronized void close() {
+      released = true;
+   }
+
+   /**
+    * Returns true if the ring has been released.
+    * @return true if the ring has been released
+    */
+   synchronized boolean isReleased() {
+      return released;
+   }
+
+   /**
+    * Adds the buffer to the ring, if there is an empty slot
+    * and the ring has not been released.
+    * @param buff the buffer
+    * @return true if the buffer was added
+    */
+   synchronized boolean add(Buffer buff) {
+      if (released)
+         return false;
+      for (int i=0; i<frames.length; i++)
+         if (frames[i] == null) {
+            frames[i] = buff;
+            return true;
+         }
+      return false;
+   }
+
+   /**
+    * Removes the buffer from the ring.
+    * @param buff the buffer
+    */
+   synchronized void remove(Buffer buff) {
+      for (int i=0; i<frames.length; i++)
+         if (frames[i] == buff)
+            frames[i] = null;
+   }
+
+   /**
+    * Returns the buffers of the ring, oldest first.
+    * @return a copy of the ring's buffers, possibly containing nulls
+    */
+   synchronized Buffer[] buffers() {
+      Buffer[] result = new Buffer[frames.length];
+      for (int i=0; i<frames.length; i++)
+         result[i] = frames[(hand + i) % frames.length];
+      return result;
+   }
+
+   /**
+    * Records that the specified buffer has been reused,
+    * making it the newest buffer of the ring.
+    * @param buff the buffer
+    */
+   synchronized void reused(Buffer buff) {
+      for (int i=0; i<frames.length; i++)
+         if (frames[i] == buff)
+            hand = (i + 1) % frames.length;
+   }
+}
@@ -0,0 +1,64 @@
+package simpledb.buffer;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A background thread that writes dirty, unpinned buffers to disk.
+ * Every few milliseconds the writer asks the buffer manager to
+ * write at most a fixed number of dirty buffers, in block order.
+ * Thus a buffer is usually clean by the time it is chosen
+ * for replacement, and the thread that pins a new block
+ * does not have to wait for the old one to be written.
+ * The two parameters limit the rate at which the writer
+ * competes with the foreground threads for the disk.
+ * A round that fails is logged, and the writer goes on
+ * with the next one.
+ */
+class BufferWriter extends Thread {
+   private static final Logger logger = Logger.getLogger(BufferWriter.class.getName());
+
+   private BasicBufferMgr bufferMgr;
+   private long interval;
+   private int maxPages;
+   private volatile boolean stopped = false;
+
+   /**
+    * Creates a writer for the specified buffer manager.
+    * The writer is a daemon thread, and must be started
+    * by the caller.
+    * @param bufferMgr the buffer manager
+    * @param interval the time between rounds, in milliseconds
+    * @param maxPages the maximum number of buffers written per round
+    */
+   BufferWriter(BasicBufferMgr bufferMgr, long interval, int maxPages) {
+      super("simpledb-writer");
+      this.bufferMgr = bufferMgr;
+      this.interval = interval;
+      this.maxPages = maxPages;
+      setDaemon(true);
+   }
+
+   public void run() {
+      while (!stopped) {
+         try {
+            Thread.sleep(interval);
+            bufferMgr.writeDirty(maxPages);
+         }
+         catch (InterruptedException e) {
+            // stopped, or woken early
+         }
+         catch (RuntimeException e) {
+            logger.log(Level.WARNING, "cannot write dirty buffers", e);
+         }
+      }
+   }
+
+   /**
+    * Stops the writer after its current round.
+    */
+   void shutdown() {
+      stopped = true;
+      interrupt();
+   }
+}
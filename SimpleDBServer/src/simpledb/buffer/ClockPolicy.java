@@ -0,0 +1,72 @@
+package simpledb.buffer;
+
+/**
+ * The clock (second-chance) replacement policy.
+ * Each buffer has a reference bit, which is set whenever
+ * the buffer is pinned.
+ * To choose a victim, a clock hand sweeps over the buffers;
+ * an unpinned buffer whose bit is set has its bit cleared and
+ * is passed over, and the first unpinned buffer whose bit
+ * is clear is chosen.
+ * The buffers are identified by their id, so the sweep
+ * is over an array rather than a list.
+ */
+class ClockPolicy extends ReplacementPolicy {
+   private Buffer[] frames;
+   private boolean[] candidate, referenced;
+   private int hand = 0, numCandidates = 0;
+
+   /**
+    * Creates a clock policy for a pool having the
+    * specified number of buffers.
+    * @param numbuffs the number of buffers in the pool
+    */
+   ClockPolicy(int numbuffs) {
+      frames = new Buffer[numbuffs];
+      candidate = new boolean[numbuffs];
+      referenced = new boolean[numbuffs];
+   }
+
+   void access(Buffer buff, boolean hit) {
+      int id = buff.id();
+      if (candidate[id]) {
+         candidate[id] = false;
+         numCandidates--;
+      }
+      referenced[id] = true;
+   }
+
+   void unpinned(Buffer buff) {
+      int id = buff.id();
+      frames[id] = buff;
+      candidate[id] = true;
+      numCandidates++;
+   }
+
+   void remove(Buffer buff) {
+      int id = buff.id();
+      if (candidate[id]) {
+         candidate[id] = false;
+         numCandidates--;
+      }
+      referenced[id] = false;
+   }
+
+   Buffer chooseVictim() {
+      if (numCandidates == 0)
+         return null;
+      while (true) {
+         int id = hand;
+         hand = (hand + 1) % frames.length;
+         if (!candidate[id])
+            continue;
+         if (referenced[id])
+            referenced[id] = false;
+         else {
+            candidate[id] = false;
+            numCandidates--;
+            return frames[id];
+         }
+      }
+   }
+}
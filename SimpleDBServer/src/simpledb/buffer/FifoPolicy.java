@@ -0,0 +1,37 @@
+package simpledb.buffer;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The replacement policy that chooses buffers in the order
+ * in which they were unpinned.
+ * This was the original behavior of the buffer manager.
+ * It ignores how often a block is used, and so a single large
+ * scan can replace every other block in the pool.
+ */
+class FifoPolicy extends ReplacementPolicy {
+   private Set<Buffer> candidates = new LinkedHashSet<>();
+
+   void access(Buffer buff, boolean hit) {
+      candidates.remove(buff);
+   }
+
+   void unpinned(Buffer buff) {
+      candidates.add(buff);
+   }
+
+   void remove(Buffer buff) {
+      candidates.remove(buff);
+   }
+
+   Buffer chooseVictim() {
+      Iterator<Buffer> iter = candidates.iterator();
+      if (!iter.hasNext())
+         return null;
+      Buffer buff = iter.next();
+      iter.remove();
+      return buff;
+   }
+}
@@ -0,0 +1,92 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+
+import java.util.*;
+
+/**
+ * The LRU-K replacement policy, with K = 2.
+ * The policy remembers the times of the last K pins of each block,
+ * and chooses the unpinned buffer whose K-th most recent pin
+ * is the oldest.
+ * A block that has been pinned fewer than K times is
+ * considered to be the oldest of all, so a block touched
+ * once by a scan is replaced before a block that is used repeatedly,
+ * such as a catalog block or an index directory block.
+ * Ties are broken by choosing the least recently pinned buffer.
+ * <p>
+ * The pin history of a replaced block is retained for a while,
+ * so that a block that is read again soon after being replaced
+ * is recognized as being in use.
+ * Times are measured by a counter of pins, not by the clock.
+ */
+class LruKPolicy extends ReplacementPolicy {
+   private static final int K = 2;
+
+   private long clock = 0;
+   private Map<Buffer,long[]> history = new HashMap<>();
+   private Map<Block,long[]> retained;
+   private TreeSet<Buffer> candidates = new TreeSet<>(new Comparator<Buffer>() {
+      public int compare(Buffer b1, Buffer b2) {
+         long[] h1 = history.get(b1), h2 = history.get(b2);
+         int result = Long.compare(h1[K-1], h2[K-1]);
+         if (result == 0)
+            result = Long.compare(h1[0], h2[0]);
+         if (result == 0)
+            result = Integer.compare(b1.id(), b2.id());
+         return result;
+      }
+   });
+
+   /**
+    * Creates an LRU-K policy for a partition having
+    * the specified number of buffers.
+    * The history of at most that many replaced blocks is retained.
+    * @param capacity the number of buffers in the partition
+    */
+   LruKPolicy(final int capacity) {
+      retained = new LinkedHashMap<Block,long[]>() {
+         protected boolean removeEldestEntry(Map.Entry<Block,long[]> eldest) {
+            return size() > capacity;
+         }
+      };
+   }
+
+   void access(Buffer buff, boolean hit) {
+      long[] times = history.get(buff);
+      if (times != null)
+         // the history must not change while the buffer is in the tree
+         candidates.remove(buff);
+      else {
+         times = retained.remove(buff.block());
+         if (times == null)
+            times = new long[K];
+         history.put(buff, times);
+      }
+      clock++;
+      for (int i=K-1; i>0; i--)
+         times[i] = times[i-1];
+      times[0] = clock;
+   }
+
+   void unpinned(Buffer buff) {
+      candidates.add(buff);
+   }
+
+   void remove(Buffer buff) {
+      if (history.containsKey(buff)) {
+         candidates.remove(buff);
+         history.remove(buff);
+      }
+   }
+
+   Buffer chooseVictim() {
+      Buffer buff = candidates.pollFirst();
+      if (buff == null)
+         return null;
+      long[] times = history.remove(buff);
+      if (buff.block() != null)
+         retained.put(buff.block(), times);
+      return buff;
+   }
+}
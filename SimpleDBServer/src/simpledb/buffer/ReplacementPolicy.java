@@ -0,0 +1,125 @@
+package simpledb.buffer;
+
+/**
+ * The strategy that decides which unpinned buffer
+ * is replaced when a block that is not in the buffer pool is pinned.
+ * The buffer manager creates one policy object per partition
+ * of the buffer pool, and calls its methods only while holding
+ * the lock of that partition; thus a policy needs no
+ * synchronization of its own.
+ * <p>
+ * The policy is told about every pin of a buffer
+ * (and whether that pin was a hit or a miss), and about every buffer
+ * whose pin count drops to 0.
+ * A buffer becomes a replacement candidate when it is unpinned,
+ * and stops being one when it is pinned again or chosen as a victim.
+ * A pin may be reported for a buffer that the policy does not know,
+ * in which case the policy treats the buffer as newly read.
+ * A block read ahead by a prefetch is reported to
+ * {@link #access(Buffer, boolean)} alone, so that it is
+ * counted as neither a hit nor a miss.
+ * <p>
+ * The available policies are named "fifo", "clock",
+ * "lruk" and "2q"; see {@link #newPolicy(String, int, int)}.
+ * The policy used by the server is given by
+ * {@link simpledb.server.SimpleDB#BUFFER_POLICY}.
+ */
+public abstract class ReplacementPolicy {
+   private long hits = 0, misses = 0;
+
+   /**
+    * Creates a new policy object of the specified kind.
+    * @param name the name of the policy
+    * @param numbuffs the total number of buffers in the pool
+    * @param numparts the number of partitions of the pool
+    * @return a new policy object
+    */
+   static ReplacementPolicy newPolicy(String name, int numbuffs, int numparts) {
+      int capacity = Math.max(1, numbuffs / numparts);
+      switch (name.toLowerCase()) {
+         case "fifo":
+            return new FifoPolicy();
+         case "clock":
+            return new ClockPolicy(numbuffs);
+         case "lruk":
+            return new LruKPolicy(capacity);
+         case "2q":
+            return new TwoQPolicy(capacity);
+         default:
+            throw new RuntimeException("unknown buffer replacement policy " + name);
+      }
+   }
+
+   /**
+    * Records that the specified buffer has been pinned.
+    * The buffer is no longer a replacement candidate.
+    * @param buff the pinned buffer
+    * @param hit true if the block was already in the buffer,
+    * false if the block was just read into it
+    */
+   void pinned(Buffer buff, boolean hit) {
+      if (hit)
+         hits++;
+      else
+         misses++;
+      access(buff, hit);
+   }
+
+   /**
+    * Returns the number of pins that found their block
+    * already in the buffer pool.
+    * @return the number of hits
+    */
+   public long hits() {
+      return hits;
+   }
+
+   /**
+    * Returns the number of pins that had to read their
+    * block into a buffer.
+    * @return the number of misses
+    */
+   public long misses() {
+      return misses;
+   }
+
+   /**
+    * Returns the fraction of pins that were hits.
+    * @return the hit ratio, or 0 if there have been no pins
+    */
+   public double hitRatio() {
+      long total = hits + misses;
+      return total == 0 ? 0.0 : (double) hits / total;
+   }
+
+   /**
+    * Updates the policy's bookkeeping for a pin of the specified buffer.
+    * @param buff the pinned buffer
+    * @param hit true if the pin was a hit
+    */
+   abstract void access(Buffer buff, boolean hit);
+
+   /**
+    * Records that the pin count of the specified buffer
+    * has dropped to 0, making it a replacement candidate.
+    * @param buff the unpinned buffer
+    */
+   abstract void unpinned(Buffer buff);
+
+   /**
+    * Forgets everything about the specified buffer.
+    * This method is called when the buffer manager
+    * replaces the buffer's block without consulting the policy
+    * (for example, when the buffer belongs to a {@link BufferRing}).
+    * @param buff the buffer
+    */
+   abstract void remove(Buffer buff);
+
+   /**
+    * Chooses a replacement candidate, and removes it from
+    * the set of candidates.
+    * The chosen buffer still refers to its old block.
+    * @return the chosen buffer, or null if there are no candidates
+    */
+   abstract Buffer chooseVictim();
+}
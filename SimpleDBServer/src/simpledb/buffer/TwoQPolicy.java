@@ -0,0 +1,92 @@
+package simpledb.buffer;
+
+import simpledb.file.Block;
+
+import java.util.*;
+
+/**
+ * The 2Q replacement policy.
+ * A block read into the pool for the first time goes into
+ * a FIFO queue (A1in).
+ * When it is replaced from that queue, its block is remembered
+ * in a second FIFO queue (A1out), which holds no buffers.
+ * A block that is read again while it is remembered in A1out
+ * goes into an LRU queue (Am), and a hit in Am moves the block
+ * to the most recently used end.
+ * Thus blocks that are touched only once, such as those of a
+ * sequential scan, pass through A1in without disturbing the
+ * blocks in Am.
+ * <p>
+ * Victims are taken from A1in while it is larger than
+ * a quarter of the partition, and otherwise from Am.
+ * A1out remembers as many blocks as half the partition.
+ */
+class TwoQPolicy extends ReplacementPolicy {
+   private Set<Buffer> a1in = new LinkedHashSet<>();
+   private Set<Buffer> am = new LinkedHashSet<>();
+   private Set<Block> a1out = new LinkedHashSet<>();
+   private Set<Buffer> candidates = new HashSet<>();
+   private int kin, kout;
+
+   /**
+    * Creates a 2Q policy for a partition having
+    * the specified number of buffers.
+    * @param capacity the number of buffers in the partition
+    */
+   TwoQPolicy(int capacity) {
+      kin = Math.max(1, capacity / 4);
+      kout = Math.max(1, capacity / 2);
+   }
+
+   void access(Buffer buff, boolean hit) {
+      candidates.remove(buff);
+      if (am.remove(buff))
+         am.add(buff);
+      else if (a1in.contains(buff))
+         return;
+      else if (a1out.remove(buff.block()))
+         am.add(buff);
+      else
+         a1in.add(buff);
+   }
+
+   void unpinned(Buffer buff) {
+      candidates.add(buff);
+   }
+
+   void remove(Buffer buff) {
+      a1in.remove(buff);
+      am.remove(buff);
+      candidates.remove(buff);
+   }
+
+   Buffer chooseVictim() {
+      if (candidates.isEmpty())
+         return null;
+      Buffer buff = null;
+      if (a1in.size() > kin)
+         buff = firstCandidate(a1in);
+      if (buff == null)
+         buff = firstCandidate(am);
+      if (buff == null)
+         buff = firstCandidate(a1in);
+      if (a1in.remove(buff) && buff.block() != null) {
+         a1out.add(buff.block());
+         if (a1out.size() > kout) {
+            Iterator<Block> iter = a1out.iterator();
+            iter.next();
+            iter.remove();
+         }
+      }
+      am.remove(buff);
+      candidates.remove(buff);
+      return buff;
+   }
+
+   private Buffer firstCandidate(Set<Buffer> queue) {
+      for (Buffer buff : queue)
+         if (candidates.contains(buff))
+            return buff;
+      return null;
+   }
+}
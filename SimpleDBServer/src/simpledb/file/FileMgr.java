@@ -1,10 +1,13 @@
 package simpledb.file;
 
 import static simpledb.file.Page.BLOCK_SIZE;
+import simpledb.log.LogMgr;
 import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * The SimpleDB file manager.
@@ -13,36 +16,95 @@ import java.util.*;
  * a file block to a Java byte buffer,
  * writing the contents of a byte buffer to a file block,
  * and appending the contents of a byte buffer to the end of a file.
+ * Runs of adjacent blocks can also be read or written
+ * with a single scatter/gather call.
  * These methods are called exclusively by the class {@link simpledb.file.Page Page},
  * and are thus package-private.
- * The class also contains two public methods:
+ * The class also contains some public methods:
  * Method {@link #isNew() isNew} is called during system initialization by {@link simpledb.server.SimpleDB#init}.
  * Method {@link #size(String) size} is called by the log manager and transaction manager to
  * determine the end of the file.
+ * Methods {@link #force() force} and {@link #force(String) force(filename)}
+ * are called by the log and buffer managers to make their writes durable.
+ * Methods {@link #fileNames() fileNames}, {@link #delete(String) delete}
+ * and {@link #archive(String, String) archive} are called by the
+ * log manager to find and discard its old segment files.
+ * <p>
+ * Writes are not synchronous: a written block is only guaranteed
+ * to be on disk once its file has been forced.
+ * Each file has its own lock, which is held only by operations
+ * that use the file's position or size;
+ * reads and writes of single blocks need no lock.
+ * <p>
+ * The block size, page format and log format of a database are chosen
+ * when the database is created, and are stored in the database directory.
+ * A database created before they were stored uses the original
+ * size of 400 bytes, the {@link Page#LEGACY_FORMAT legacy page format}
+ * and the {@link LogMgr#LEGACY_FORMAT legacy log format}.
  * @author Edward Sciore
  */
 public class FileMgr {
+   private static final String PARAMS_FILE = "simpledb.params";
+   private static final int LEGACY_BLOCK_SIZE = 400;
    private File dbDirectory;
    private boolean isNew;
-   private Map<String,FileChannel> openFiles = new HashMap<String,FileChannel>();
+   private Properties params = new Properties();
+   private int logFormat;
+   private Map<String,FileChannel> openFiles = new ConcurrentHashMap<String,FileChannel>();
+   private Set<String> unforced = ConcurrentHashMap.newKeySet();
+
+   /**
+    * Creates a file manager for the specified database,
+    * using the default block size if the database is new.
+    * @param dbname the name of the directory that holds the database
+    */
+   public FileMgr(String dbname) {
+      this(dbname, Page.DEFAULT_BLOCK_SIZE);
+   }
+
+   /**
+    * Creates a file manager for the specified database,
+    * using the specified block size and two-byte characters
+    * if the database is new.
+    * @param dbname the name of the directory that holds the database
+    * @param blocksize the block size of a new database, in bytes
+    */
+   public FileMgr(String dbname, int blocksize) {
+      this(dbname, blocksize, false);
+   }
 
    /**
     * Creates a file manager for the specified database.
     * The database will be stored in a folder of that name
     * in the user's home directory.
     * If the folder does not exist, then a folder containing
-    * an empty database is created automatically.
+    * an empty database is created automatically,
+    * having the specified block size,
+    * which must be a power of two between {@link Page#MIN_BLOCK_SIZE}
+    * and {@link Page#MAX_BLOCK_SIZE},
+    * and the current string format.
+    * Otherwise the block size and format stored with the database are used.
+    * Either way, they are assigned to the {@link Page} class.
     * Files for all temporary tables (i.e. tables beginning with "temp") are deleted.
     * @param dbname the name of the directory that holds the database
+    * @param blocksize the block size of a new database, in bytes
+    * @param compactStrings whether a new database stores one byte per character
     */
-   public FileMgr(String dbname) {
+   public FileMgr(String dbname, int blocksize, boolean compactStrings) {
       String homedir = System.getProperty("user.home");
       dbDirectory = new File(homedir, dbname);
       isNew = !dbDirectory.exists();
 
       // create the directory if the database is new
-      if (isNew && !dbDirectory.mkdir())
-         throw new RuntimeException("cannot create " + dbname);
+      if (isNew) {
+         if (blocksize < Page.MIN_BLOCK_SIZE || blocksize > Page.MAX_BLOCK_SIZE
+               || Integer.bitCount(blocksize) != 1)
+            throw new RuntimeException("cannot use block size " + blocksize);
+         if (!dbDirectory.mkdir())
+            throw new RuntimeException("cannot create " + dbname);
+         saveParams(blocksize, compactStrings);
+      }
+      loadParams();
 
       // remove any leftover temporary tables
       for (String filename : dbDirectory.list())
@@ -55,45 +117,104 @@ public class FileMgr {
     * @param blk a reference to a disk block
     * @param bb  the bytebuffer
     */
-   synchronized void read(Block blk, ByteBuffer bb) {
+   void read(Block blk, ByteBuffer bb) {
       try {
          bb.clear();
          FileChannel fc = getFile(blk.fileName());
-         fc.read(bb, blk.number() * BLOCK_SIZE);
+         fc.read(bb, offset(blk));
       }
       catch (IOException e) {
          throw new RuntimeException("cannot read block " + blk);
       }
    }
 
+   /**
+    * Reads a run of adjacent disk blocks into the specified
+    * bytebuffers, using a single scatter read.
+    * The i-th bytebuffer receives block first+i.
+    * @param first a reference to the first disk block of the run
+    * @param bbs  the bytebuffers, one per block
+    */
+   void read(Block first, ByteBuffer[] bbs) {
+      try {
+         for (ByteBuffer bb : bbs)
+            bb.clear();
+         FileChannel fc = getFile(first.fileName());
+         synchronized (fc) {
+            fc.position(offset(first));
+            while (bbs[bbs.length-1].hasRemaining() && fc.read(bbs) > 0)
+               ;
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot read blocks from " + first);
+      }
+   }
+
    /**
     * Writes the contents of a bytebuffer into a disk block.
     * @param blk a reference to a disk block
     * @param bb  the bytebuffer
     */
-   synchronized void write(Block blk, ByteBuffer bb) {
+   void write(Block blk, ByteBuffer bb) {
       try {
          bb.rewind();
          FileChannel fc = getFile(blk.fileName());
-         fc.write(bb, blk.number() * BLOCK_SIZE);
+         fc.write(bb, offset(blk));
+         unforced.add(blk.fileName());
       }
       catch (IOException e) {
          throw new RuntimeException("cannot write block" + blk);
       }
    }
 
+   /**
+    * Writes the contents of the specified bytebuffers into
+    * a run of adjacent disk blocks, using a single gather write.
+    * The i-th bytebuffer is written to block first+i.
+    * @param first a reference to the first disk block of the run
+    * @param bbs  the bytebuffers, one per block
+    */
+   void write(Block first, ByteBuffer[] bbs) {
+      try {
+         for (ByteBuffer bb : bbs)
+            bb.rewind();
+         FileChannel fc = getFile(first.fileName());
+         synchronized (fc) {
+            fc.position(offset(first));
+            while (bbs[bbs.length-1].hasRemaining())
+               fc.write(bbs);
+         }
+         unforced.add(first.fileName());
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot write blocks to " + first);
+      }
+   }
+
    /**
     * Appends the contents of a bytebuffer to the end
     * of the specified file.
+    * The file is forced at once, so that the new block
+    * exists on disk before any update to it is logged.
     * @param filename the name of the file
     * @param bb  the bytebuffer
     * @return a reference to the newly-created block.
     */
-   synchronized Block append(String filename, ByteBuffer bb) {
-      int newblknum = size(filename);
-      Block blk = new Block(filename, newblknum);
-      write(blk, bb);
-      return blk;
+   Block append(String filename, ByteBuffer bb) {
+      try {
+         FileChannel fc = getFile(filename);
+         synchronized (fc) {
+            int newblknum = size(filename);
+            Block blk = new Block(filename, newblknum);
+            write(blk, bb);
+            force(filename);
+            return blk;
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot append to " + filename);
+      }
    }
 
    /**
@@ -101,7 +222,7 @@ public class FileMgr {
     * @param filename the name of the file
     * @return the number of blocks in the file
     */
-   public synchronized int size(String filename) {
+   public int size(String filename) {
       try {
          FileChannel fc = getFile(filename);
          return (int)(fc.size() / BLOCK_SIZE);
@@ -111,6 +232,73 @@ public class FileMgr {
       }
    }
 
+   /**
+    * Forces the blocks written to the specified file to disk.
+    * @param filename the name of the file
+    */
+   public void force(String filename) {
+      try {
+         FileChannel fc = getFile(filename);
+         synchronized (fc) {
+            if (unforced.remove(filename))
+               fc.force(true);
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot force " + filename);
+      }
+   }
+
+   /**
+    * Forces the blocks written to every file to disk.
+    */
+   public void force() {
+      for (String filename : new ArrayList<String>(unforced))
+         force(filename);
+   }
+
+   /**
+    * Returns the names of the files in the database directory.
+    * @return the file names
+    */
+   public String[] fileNames() {
+      return dbDirectory.list();
+   }
+
+   /**
+    * Deletes the specified file, closing it first if it is open.
+    * @param filename the name of the file
+    */
+   public void delete(String filename) {
+      close(filename);
+      new File(dbDirectory, filename).delete();
+   }
+
+   /**
+    * Moves the specified file into the specified directory,
+    * closing it first if it is open.
+    * A relative directory name is taken to be relative to
+    * the database directory.
+    * The directory is created if it does not exist.
+    * @param filename the name of the file
+    * @param dirname the name of the directory
+    */
+   public void archive(String filename, String dirname) {
+      close(filename);
+      File dir = new File(dirname);
+      if (!dir.isAbsolute())
+         dir = new File(dbDirectory, dirname);
+      try {
+         Files.createDirectories(dir.toPath());
+         Files.move(new File(dbDirectory, filename).toPath(),
+                    new File(dir, filename).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING);
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot archive " + filename);
+      }
+   }
+
    /**
     * Returns a boolean indicating whether the file manager
     * had to create a new database directory.
@@ -120,23 +308,158 @@ public class FileMgr {
       return isNew;
    }
 
+   /**
+    * Returns the format of the database's log:
+    * {@link LogMgr#CURRENT_FORMAT} or {@link LogMgr#LEGACY_FORMAT}.
+    * @return the log format
+    */
+   public int logFormat() {
+      return logFormat;
+   }
+
+   /**
+    * Stores a new log format for the database,
+    * once the log has been replaced by one of that format.
+    * @param format the new log format
+    */
+   public void setLogFormat(int format) {
+      logFormat = format;
+      params.setProperty("logformat", Integer.toString(format));
+      storeParams();
+   }
+
+   /**
+    * Returns a read-only view of the specified disk block
+    * in a memory mapping of its file, or null if the
+    * file is not mapped.
+    * This file manager maps no files;
+    * see {@link MappedFileMgr}.
+    * @param blk a reference to a disk block
+    * @return a view of the block, or null
+    */
+   ByteBuffer mapped(Block blk) {
+      return null;
+   }
+
+   /**
+    * Returns the byte offset of the specified block in its file.
+    * @param blk a reference to a disk block
+    * @return the offset of the block
+    */
+   long offset(Block blk) {
+      return (long) blk.number() * BLOCK_SIZE;
+   }
+
    /**
     * Returns the file channel for the specified filename.
     * The file channel is stored in a map keyed on the filename.
     * If the file is not open, then it is opened and the file channel
     * is added to the map.
+    * The file channel is also the file's lock.
     * @param filename the specified filename
     * @return the file channel associated with the open file.
     * @throws IOException
     */
-   private FileChannel getFile(String filename) throws IOException {
+   FileChannel getFile(String filename) throws IOException {
       FileChannel fc = openFiles.get(filename);
       if (fc == null) {
-         File dbTable = new File(dbDirectory, filename);
-         RandomAccessFile f = new RandomAccessFile(dbTable, "rws");
-         fc = f.getChannel();
-         openFiles.put(filename, fc);
+         synchronized (openFiles) {
+            fc = openFiles.get(filename);
+            if (fc == null) {
+               File dbTable = new File(dbDirectory, filename);
+               RandomAccessFile f = new RandomAccessFile(dbTable, "rw");
+               fc = f.getChannel();
+               openFiles.put(filename, fc);
+            }
+         }
       }
       return fc;
    }
+
+   /**
+    * Closes the specified file, if it is open.
+    * Any writes to it are forced first.
+    * @param filename the name of the file
+    */
+   private void close(String filename) {
+      FileChannel fc;
+      synchronized (openFiles) {
+         fc = openFiles.remove(filename);
+      }
+      if (fc == null)
+         return;
+      try {
+         synchronized (fc) {
+            if (unforced.remove(filename))
+               fc.force(true);
+            fc.close();
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot close " + filename);
+      }
+   }
+
+   /**
+    * Stores the block size, string format and log format
+    * of a new database in its directory.
+    * @param blocksize the block size, in bytes
+    * @param compactStrings whether strings take one byte per character
+    */
+   private void saveParams(int blocksize, boolean compactStrings) {
+      params.setProperty("blocksize", Integer.toString(blocksize));
+      params.setProperty("format", Integer.toString(Page.CURRENT_FORMAT));
+      params.setProperty("compact", Boolean.toString(compactStrings));
+      params.setProperty("logformat", Integer.toString(LogMgr.CURRENT_FORMAT));
+      storeParams();
+   }
+
+   /**
+    * Writes the database parameters to the database directory.
+    */
+   private void storeParams() {
+      try (OutputStream out = new FileOutputStream(new File(dbDirectory, PARAMS_FILE))) {
+         params.store(out, "SimpleDB database parameters");
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot write " + PARAMS_FILE);
+      }
+   }
+
+   /**
+    * Reads the block size, string format and log format stored in the
+    * database directory, and assigns the first two to the {@link Page} class.
+    * If the directory has no parameters, the database is a legacy one.
+    * A parameters file that lacks any of the three values is invalid.
+    */
+   private void loadParams() {
+      File f = new File(dbDirectory, PARAMS_FILE);
+      if (f.exists())
+         try (InputStream in = new FileInputStream(f)) {
+            params.load(in);
+         }
+         catch (IOException e) {
+            throw new RuntimeException("cannot read " + PARAMS_FILE);
+         }
+      else {
+         params.setProperty("blocksize", Integer.toString(LEGACY_BLOCK_SIZE));
+         params.setProperty("format", Integer.toString(Page.LEGACY_FORMAT));
+         params.setProperty("logformat", Integer.toString(LogMgr.LEGACY_FORMAT));
+      }
+      int blocksize, format;
+      try {
+         blocksize = Integer.parseInt(params.getProperty("blocksize"));
+         format = Integer.parseInt(params.getProperty("format"));
+         logFormat = Integer.parseInt(params.getProperty("logformat"));
+      }
+      catch (NumberFormatException e) {
+         throw new RuntimeException("cannot read " + PARAMS_FILE);
+      }
+      if (format > Page.CURRENT_FORMAT)
+         throw new RuntimeException("cannot open database of format " + format);
+      if (logFormat != LogMgr.LEGACY_FORMAT && logFormat != LogMgr.CURRENT_FORMAT)
+         throw new RuntimeException("cannot read log of format " + logFormat);
+      Page.setBlockSize(blocksize);
+      Page.setFormat(format, Boolean.parseBoolean(params.getProperty("compact")));
+   }
 }
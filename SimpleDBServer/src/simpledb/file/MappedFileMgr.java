@@ -0,0 +1,97 @@
+package simpledb.file;
+
+import static simpledb.file.Page.BLOCK_SIZE;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A file manager that serves block reads from memory mappings
+ * of the database files.
+ * A {@link Page} that reads a block of a mapped file wraps a
+ * read-only slice of the mapping, so the read copies nothing,
+ * and cold blocks are cached by the operating system's page cache
+ * rather than by the buffer pool.
+ * Writes still go through the file channel;
+ * since the mapping is shared, later reads see them.
+ * <p>
+ * This mode suits read-mostly databases.
+ * Temporary files and the log are never mapped,
+ * because they are mostly written.
+ * A file is remapped when a block beyond the end of its
+ * current mapping is read.
+ */
+public class MappedFileMgr extends FileMgr {
+   private Map<String,MappedByteBuffer> mappings = new ConcurrentHashMap<String,MappedByteBuffer>();
+
+   /**
+    * Creates a mapping file manager for the specified database.
+    * @param dbname the name of the directory that holds the database
+    * @param blocksize the block size of a new database, in bytes
+    * @param compactStrings whether a new database stores one byte per character
+    * @see FileMgr#FileMgr(String, int, boolean)
+    */
+   public MappedFileMgr(String dbname, int blocksize, boolean compactStrings) {
+      super(dbname, blocksize, compactStrings);
+   }
+
+   /**
+    * Returns a read-only slice of the file mapping
+    * that holds the specified block.
+    * Returns null if the file is not mapped,
+    * or if the block lies beyond the end of the file.
+    * @param blk a reference to a disk block
+    * @return a view of the block, or null
+    */
+   ByteBuffer mapped(Block blk) {
+      if (!isMapped(blk.fileName()))
+         return null;
+      long end = offset(blk) + BLOCK_SIZE;
+      MappedByteBuffer map = mappings.get(blk.fileName());
+      if (map == null || map.capacity() < end) {
+         map = remap(blk.fileName(), end);
+         if (map == null)
+            return null;
+      }
+      ByteBuffer view = map.duplicate();
+      view.position((int) offset(blk));
+      view.limit((int) end);
+      return view.slice();
+   }
+
+   /**
+    * Maps the whole of the specified file,
+    * provided that it extends to the specified offset.
+    * @param filename the name of the file
+    * @param end the offset that the mapping must reach
+    * @return the new mapping, or null
+    */
+   private MappedByteBuffer remap(String filename, long end) {
+      try {
+         FileChannel fc = getFile(filename);
+         synchronized (fc) {
+            MappedByteBuffer map = mappings.get(filename);
+            if (map != null && map.capacity() >= end)
+               return map;
+            long size = fc.size();
+            if (size < end || size > Integer.MAX_VALUE)
+               return null;
+            map = fc.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            mappings.put(filename, map);
+            return map;
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot map " + filename);
+      }
+   }
+
+   private boolean isMapped(String filename) {
+      // log segments are named after the log file, as in "simpledb.log.1024"
+      return !filename.startsWith("temp") && !filename.endsWith(".log")
+            && !filename.contains(".log.");
+   }
+}
@@ -3,7 +3,6 @@ package simpledb.file;
 import simpledb.server.SimpleDB;
 
 import java.nio.ByteBuffer;
-import java.nio.CharBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 
@@ -41,11 +40,19 @@ import java.nio.charset.StandardCharsets;
 public class Page {
     /**
      * The number of bytes in a block.
-     * This value is set unreasonably low, so that it is easier
-     * to create and test databases having a lot of blocks.
-     * A more realistic value would be 4K.
+     * The value is set by the {@link FileMgr file manager}
+     * when it opens a database, and must not be changed afterwards.
      */
-    public static final int BLOCK_SIZE = 400;
+    public static int BLOCK_SIZE = 400;
+
+    /**
+     * The default, smallest and largest block sizes of a new database.
+     * The block size of a new database must be a power of two,
+     * so that a block holds a whole number of integers.
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 4096;
+    public static final int MIN_BLOCK_SIZE = 4096;
+    public static final int MAX_BLOCK_SIZE = 65536;
 
     /**
      * The size of an integer in bytes.
@@ -62,23 +69,40 @@ public class Page {
     public static final int CHARACTER_SIZE = Character.SIZE / Byte.SIZE;
 
     /**
-     * The charset to be used. Here we define it to be ASCII,
-     * but it can be changed as necessary.
+     * The on-disk formats of strings.
+     * In the legacy format, used by databases created before the
+     * format was stored, a string is its characters followed by
+     * a \0 character.
+     * In the later formats, a string is its length followed by
+     * its characters, which take one byte each if the database
+     * uses compact strings.
+     * From the header format on, which is the current one, a block of
+     * fixed-length records also begins with a header;
+     * see {@link simpledb.record.RecordPage}.
+     * Like the block size, the format is set by the file manager.
      */
-    private static final Charset SDBcharset = StandardCharsets.US_ASCII;
+    public static final int LEGACY_FORMAT = 1;
+    public static final int HEADER_FORMAT = 3;
+    public static final int CURRENT_FORMAT = 3;
+    private static int format = LEGACY_FORMAT;
+    private static boolean compact = false;
 
     /**
      * The maximum size, in bytes, of a string of length n.
-     * A string is represented as the characters followed by \0 char delimiter.
-     * each String should then have n * 2 + 2, or (n+1) * 2 size.
+     * In the current format, a string takes 4 bytes for its length,
+     * plus 1 or 2 bytes per character.
+     * In the legacy format, a string takes (n+1) * 2 bytes.
      * @param n the size of the string
      * @return the maximum number of bytes required to store a string of size n
      */
     public static final int STR_SIZE(int n) {
-        return (n+1) * CHARACTER_SIZE;
+        if (format == LEGACY_FORMAT)
+            return (n+1) * CHARACTER_SIZE;
+        return INT_SIZE + n * (compact ? 1 : CHARACTER_SIZE);
     }
 
-    private ByteBuffer contents = ByteBuffer.allocateDirect(BLOCK_SIZE);
+    private ByteBuffer own = ByteBuffer.allocateDirect(BLOCK_SIZE);
+    private volatile ByteBuffer contents = own; // own, or a read-only slice of a file mapping
     private FileMgr filemgr = SimpleDB.fileMgr();
 
     /**
@@ -97,10 +121,20 @@ public class Page {
 
     /**
      * Populates the page with the contents of the specified disk block.
+     * If the file manager maps the block's file into memory,
+     * the page wraps a slice of the mapping instead of copying
+     * the block; the slice is copied the first time the page
+     * is modified.
      * @param blk a reference to a disk block
      */
     public synchronized void read(Block blk) {
-        filemgr.read(blk, contents);
+        ByteBuffer mapped = filemgr.mapped(blk);
+        if (mapped != null)
+            contents = mapped;
+        else {
+            contents = own;
+            filemgr.read(blk, contents);
+        }
     }
 
     /**
@@ -111,6 +145,32 @@ public class Page {
         filemgr.write(blk, contents);
     }
 
+    /**
+     * Populates the specified pages with the contents of a run
+     * of adjacent disk blocks, using a single read.
+     * The caller must ensure that no other thread
+     * uses the pages during the read.
+     * @param first a reference to the first disk block of the run
+     * @param pages the pages, one per block
+     */
+    public static void read(Block first, Page[] pages) {
+        for (Page p : pages)
+            p.contents = p.own;
+        SimpleDB.fileMgr().read(first, contentsOf(pages));
+    }
+
+    /**
+     * Writes the contents of the specified pages to a run
+     * of adjacent disk blocks, using a single write.
+     * The caller must ensure that no other thread
+     * uses the pages during the write.
+     * @param first a reference to the first disk block of the run
+     * @param pages the pages, one per block
+     */
+    public static void write(Block first, Page[] pages) {
+        SimpleDB.fileMgr().write(first, contentsOf(pages));
+    }
+
     /**
      * Appends the contents of the page to the specified file.
      * @param filename the name of the file
@@ -127,10 +187,9 @@ public class Page {
      * @param offset the byte offset within the page
      * @return the integer value at that offset
      */
-    public synchronized int getInt(int offset) {
+    public int getInt(int offset) {
         try {
-            contents.position(offset);
-            return contents.getInt();
+            return contents.getInt(offset);
         }
         catch(Exception e) {
             System.out.println("Exception offset =" + offset);
@@ -144,9 +203,9 @@ public class Page {
      * @param offset the byte offset within the page
      * @param val the integer to be written to the page
      */
-    public synchronized void setInt(int offset, int val) {
-        contents.position(offset);
-        contents.putInt(val);
+    public void setInt(int offset, int val) {
+        makeWritable();
+        contents.putInt(offset, val);
     }
 
     /**
@@ -156,27 +215,184 @@ public class Page {
      * @param offset the byte offset within the page
      * @return the string value at that offset
      */
-    public synchronized String getString(int offset) {
-        contents.position(offset);
-        String s = "";
-        char c;
-        while ((c = contents.getChar()) != '\0') {
-            s += c;
-        }
-        return s;
+    public String getString(int offset) {
+        ByteBuffer bb = contents;
+        if (format == LEGACY_FORMAT)
+            return getTerminatedString(bb, offset);
+        int len = bb.getInt(offset);
+        return decode(bb, offset + INT_SIZE, len * (compact ? 1 : CHARACTER_SIZE),
+                      compact ? StandardCharsets.US_ASCII : StandardCharsets.UTF_16BE);
+    }
+
+    /**
+     * Returns true if the specified string can be stored in a page.
+     * Compact strings hold only ASCII characters.
+     * @param val the string
+     * @return true if every character of the string can be stored
+     */
+    public static boolean isStorable(String val) {
+        if (compact)
+            for (int i=0; i<val.length(); i++)
+                if (val.charAt(i) >= 0x80)
+                    return false;
+        return true;
     }
 
     /**
      * Writes a string to the specified offset on the page.
+     * A string that cannot be stored is refused,
+     * and the page is not changed.
      * @param offset the byte offset within the page
      * @param val the string to be written to the page
+     * @see #isStorable(String)
      */
-    public synchronized void setString(int offset, String val) {
-        contents.position(offset);
-        for (char c: val.toCharArray()) {
-            contents.putChar(c);
+    public void setString(int offset, String val) {
+        if (!isStorable(val))
+            throw new RuntimeException("cannot store non-ASCII string \"" + val + "\"");
+        makeWritable();
+        ByteBuffer bb = contents;
+        int len = val.length();
+        if (format == LEGACY_FORMAT) {
+            for (int i=0; i<len; i++)
+                bb.putChar(offset + i*CHARACTER_SIZE, val.charAt(i));
+            bb.putChar(offset + len*CHARACTER_SIZE, '\0');
+            return;
         }
-        contents.putChar('\0');
-        //  System.out.println("Length of " + val + " = " + byteval.length);
+        bb.putInt(offset, len);
+        int pos = offset + INT_SIZE;
+        if (compact)
+            for (int i=0; i<len; i++)
+                bb.put(pos+i, (byte) val.charAt(i));
+        else
+            for (int i=0; i<len; i++)
+                bb.putChar(pos + i*CHARACTER_SIZE, val.charAt(i));
+    }
+
+    /**
+     * Returns the byte at the specified offset of the page.
+     * @param offset the byte offset within the page
+     * @return the byte at that offset
+     */
+    public byte getByte(int offset) {
+        return contents.get(offset);
+    }
+
+    /**
+     * Copies bytes from the specified offset of the page
+     * into the specified array.
+     * @param offset the byte offset within the page
+     * @param dst the array to copy into
+     * @param off the position in the array of the first byte
+     * @param len the number of bytes to copy
+     */
+    public void getBytes(int offset, byte[] dst, int off, int len) {
+        ByteBuffer bb = contents.duplicate();
+        bb.position(offset);
+        bb.get(dst, off, len);
+    }
+
+    /**
+     * Copies bytes from the specified array
+     * to the specified offset of the page.
+     * @param offset the byte offset within the page
+     * @param src the array to copy from
+     * @param off the position in the array of the first byte
+     * @param len the number of bytes to copy
+     */
+    public void setBytes(int offset, byte[] src, int off, int len) {
+        makeWritable();
+        ByteBuffer bb = contents.duplicate();
+        bb.position(offset);
+        bb.put(src, off, len);
+    }
+
+    /**
+     * Copies the contents of the page into the specified page.
+     * @param dst the page to copy into
+     */
+    public void copyTo(Page dst) {
+        ByteBuffer src = contents.duplicate();
+        src.clear();
+        dst.makeWritable();
+        dst.own.clear();
+        dst.own.put(src);
+    }
+
+    /**
+     * Sets the block size used by every page created from now on.
+     * Called by the file manager when it opens a database.
+     * @param blocksize the block size, in bytes
+     */
+    static void setBlockSize(int blocksize) {
+        BLOCK_SIZE = blocksize;
+    }
+
+    /**
+     * Returns true if blocks of fixed-length records
+     * begin with a header in the database's format.
+     * @return true if the format is the header format or later
+     */
+    public static boolean hasRecordHeaders() {
+        return format >= HEADER_FORMAT;
+    }
+
+    /**
+     * Sets the string format used by every page.
+     * Called by the file manager when it opens a database.
+     * @param version the format version
+     * @param compactStrings whether strings take one byte per character
+     */
+    static void setFormat(int version, boolean compactStrings) {
+        format = version;
+        compact = compactStrings;
+    }
+
+    /**
+     * Decodes a legacy string, which ends with a \0 character.
+     */
+    private static String getTerminatedString(ByteBuffer bb, int offset) {
+        int len = 0;
+        while (bb.getChar(offset + len*CHARACTER_SIZE) != '\0')
+            len++;
+        return decode(bb, offset, len*CHARACTER_SIZE, StandardCharsets.UTF_16BE);
+    }
+
+    /**
+     * Copies the specified bytes of the buffer in one bulk get,
+     * and decodes them in the specified charset.
+     * Two-byte characters are stored big-endian, as by putChar.
+     */
+    private static String decode(ByteBuffer bb, int offset, int size, Charset cs) {
+        byte[] b = new byte[size];
+        ByteBuffer src = bb.duplicate();
+        src.position(offset);
+        src.get(b);
+        return new String(b, cs);
+    }
+
+    /**
+     * Copies a mapped block into the page's own buffer,
+     * so that it can be modified without changing the file.
+     */
+    private void makeWritable() {
+        if (contents != own)
+            copyMapped();
+    }
+
+    private synchronized void copyMapped() {
+        if (contents != own) {
+            ByteBuffer mapped = contents.duplicate();
+            mapped.clear();
+            own.clear();
+            own.put(mapped);
+            contents = own;
+        }
+    }
+
+    private static ByteBuffer[] contentsOf(Page[] pages) {
+        ByteBuffer[] bbs = new ByteBuffer[pages.length];
+        for (int i=0; i<pages.length; i++)
+            bbs[i] = pages[i].contents;
+        return bbs;
     }
 }
@@ -3,20 +3,32 @@ package simpledb.log;
 import static simpledb.file.Page.*;
 import simpledb.file.Page;
 
+import java.nio.charset.StandardCharsets;
+
 /**
  * A class that provides the ability to read the values of
  * a log record.
  * The class has no idea what values are there.
- * Instead, the methods {@link #nextInt() nextInt}
- * and {@link #nextString() nextString} read the values 
+ * Instead, the methods {@link #nextInt() nextInt},
+ * {@link #nextLong() nextLong},
+ * {@link #nextString() nextString}
+ * and {@link #nextBytes() nextBytes} read the values 
  * sequentially.
  * Thus the client is responsible for knowing how many values
  * are in the log record, and what their types are.
+ * <p>
+ * A record may be in the fixed-width format written by
+ * earlier versions of the server, or in the compact format
+ * written by {@link LogMgr#append(LogBuffer)};
+ * the methods decode values in the record's format.
  * @author Edward Sciore
  */
 public class BasicLogRecord {
    private Page pg;
    private int pos;
+   private long lsn = -1;
+   private boolean compact;
+   private boolean first;
    
    /**
     * A log record located at the specified position of the specified page.
@@ -28,6 +40,37 @@ public class BasicLogRecord {
    public BasicLogRecord(Page pg, int pos) {
       this.pg = pg;
       this.pos = pos;
+      compact = (pg.getByte(pos) & LogBuffer.COMPACT) != 0;
+      first = compact;
+   }
+   
+   /**
+    * A log record located at the specified position of the specified page,
+    * whose LSN is known.
+    * @param pg the page containing the log record
+    * @param pos the position of the log record 
+    * @param lsn the LSN of the log record
+    */
+   public BasicLogRecord(Page pg, int pos, long lsn) {
+      this(pg, pos);
+      this.lsn = lsn;
+   }
+   
+   /**
+    * Returns the LSN of the log record,
+    * or -1 if it is not known.
+    * @return the LSN of the log record
+    */
+   public long lsn() {
+      return lsn;
+   }
+   
+   /**
+    * Returns true if the log record is in the compact format.
+    * @return true if the record is compact
+    */
+   public boolean isCompact() {
+      return compact;
    }
    
    /**
@@ -36,19 +79,66 @@ public class BasicLogRecord {
     * @return the next value of the current log record
     */
    public int nextInt() {
+      if (first) {
+         first = false;
+         return pg.getByte(pos++) & 0x7f;
+      }
+      if (compact) {
+         int val = (int) nextUnsigned();
+         return (val >>> 1) ^ -(val & 1);
+      }
       int result = pg.getInt(pos);
       pos += INT_SIZE;
       return result;
    }
    
+   /**
+    * Returns the next value of the current log record, 
+    * assuming it is a long integer.
+    * A record in the fixed-width format holds no long integers,
+    * so the value is read as an integer.
+    * @return the next value of the current log record
+    */
+   public long nextLong() {
+      if (first || !compact)
+         return nextInt();
+      long val = nextUnsigned();
+      return (val >>> 1) ^ -(val & 1);
+   }
+   
    /**
     * Returns the next value of the current log record, 
     * assuming it is a string.
     * @return the next value of the current log record
     */
    public String nextString() {
+      if (compact)
+         return new String(nextBytes(), StandardCharsets.UTF_8);
       String result = pg.getString(pos);
       pos += STR_SIZE(result.length());
       return result;
    }
+   
+   /**
+    * Returns the next value of the current log record,
+    * assuming it is an array of bytes.
+    * Only records in the compact format hold byte arrays.
+    * @return the next value of the current log record
+    */
+   public byte[] nextBytes() {
+      byte[] b = new byte[(int) nextUnsigned()];
+      pg.getBytes(pos, b, 0, b.length);
+      pos += b.length;
+      return b;
+   }
+
+   private long nextUnsigned() {
+      long val = 0;
+      for (int shift = 0; ; shift += 7) {
+         byte b = pg.getByte(pos++);
+         val |= (long) (b & 0x7f) << shift;
+         if ((b & 0x80) == 0)
+            return val;
+      }
+   }
 }
@@ -0,0 +1,87 @@
+package simpledb.log;
+
+import static simpledb.file.Page.INT_SIZE;
+import static simpledb.file.Page.BLOCK_SIZE;
+import simpledb.file.*;
+import java.util.*;
+
+/**
+ * A class that provides the ability to move through the
+ * records of the log file in the order they were written.
+ * Each log page links its records from the last to the first,
+ * so when the iterator moves to a page it follows those links
+ * once and remembers the position of every record on the page.
+ */
+class ForwardLogIterator implements Iterator<BasicLogRecord> {
+   private LogMgr logmgr;
+   private long blknum;
+   private long lastblk;
+   private Page pg = new Page();
+   private List<Integer> recs = new ArrayList<Integer>();
+   private int current = 0;
+
+   /**
+    * Creates an iterator for the records in the log file,
+    * positioned at the first record whose LSN is
+    * at or after the specified LSN.
+    * Records in discarded segments are skipped.
+    * This constructor is called exclusively by
+    * {@link LogMgr#iterator(long)}.
+    * @param logmgr the log manager, which locates the segment of each block
+    * @param lastblk the number of the last block of the log
+    * @param lsn the LSN at which to start
+    */
+   ForwardLogIterator(LogMgr logmgr, long lastblk, long lsn) {
+      this.logmgr = logmgr;
+      this.lastblk = lastblk;
+      blknum = Math.max(lsn / BLOCK_SIZE, logmgr.firstBlock());
+      blknum = Math.min(blknum, lastblk);
+      readBlock();
+      while (current < recs.size() && lsnOf(recs.get(current)) < lsn)
+         current++;
+   }
+
+   /**
+    * Determines if there is a later record in the log file.
+    * @return true if there is a later record
+    */
+   public boolean hasNext() {
+      while (current == recs.size() && blknum < lastblk) {
+         blknum++;
+         readBlock();
+      }
+      return current < recs.size();
+   }
+
+   /**
+    * Moves to the next log record in log order.
+    * @return the next later log record
+    */
+   public BasicLogRecord next() {
+      if (!hasNext())
+         throw new NoSuchElementException();
+      int pos = recs.get(current++);
+      return new BasicLogRecord(pg, pg.getInt(pos)+INT_SIZE, lsnOf(pos));
+   }
+
+   public void remove() {
+      throw new UnsupportedOperationException();
+   }
+
+   /**
+    * Reads the current block, and lists the positions of
+    * the pointers that end its records, earliest first.
+    */
+   private void readBlock() {
+      pg.read(logmgr.segmentBlock(blknum));
+      recs.clear();
+      for (int pos = pg.getInt(LogMgr.LAST_POS); pos > 0; pos = pg.getInt(pos))
+         recs.add(pos);
+      Collections.reverse(recs);
+      current = 0;
+   }
+
+   private long lsnOf(int pos) {
+      return blknum * BLOCK_SIZE + pos + INT_SIZE;
+   }
+}
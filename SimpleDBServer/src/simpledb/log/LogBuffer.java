@@ -0,0 +1,143 @@
+package simpledb.log;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A buffer in which log records are encoded before being
+ * appended to the log by {@link LogMgr#append(LogBuffer)}.
+ * A buffer holds any number of records, which are appended
+ * together, and it can be reused once they have been appended.
+ * <p>
+ * Records are encoded in the compact format.
+ * A record begins with a byte whose high bit is set
+ * and whose low bits hold the record's first value, which
+ * must be between 0 and 127; this marks the record as compact,
+ * since a record in the fixed-width format begins with a
+ * 4-byte integer whose first byte is 0.
+ * The other integers, and long integers, are written as
+ * variable-length zigzag integers, so that small values,
+ * negative or not, take a single byte.
+ * A string is written as its length in bytes
+ * followed by its UTF-8 encoding,
+ * and an array of bytes as its length followed by its bytes.
+ */
+public class LogBuffer {
+   /**
+    * The largest number of bytes that an integer takes.
+    */
+   public static final int MAX_INT_SIZE = 5;
+   /**
+    * The largest number of bytes that a long integer takes.
+    */
+   public static final int MAX_LONG_SIZE = 10;
+
+   static final int COMPACT = 0x80;
+
+   private byte[] bytes = new byte[128];
+   private int size = 0;
+   private int[] starts = new int[4];
+   private int count = 0;
+
+   /**
+    * The largest number of bytes that a string of length n takes.
+    * @param n the length of the string
+    * @return the maximum number of bytes required to store the string
+    */
+   public static final int MAX_STR_SIZE(int n) {
+      return MAX_INT_SIZE + 3 * n;
+   }
+
+   /**
+    * Begins a new record in the buffer.
+    * @param first the first value of the record, between 0 and 127
+    */
+   public void startRecord(int first) {
+      if (count == starts.length)
+         starts = Arrays.copyOf(starts, 2 * count);
+      starts[count++] = size;
+      ensure(1);
+      bytes[size++] = (byte) (COMPACT | first);
+   }
+
+   /**
+    * Adds an integer to the current record.
+    * @param val the integer
+    */
+   public void putInt(int val) {
+      putUnsigned(((val << 1) ^ (val >> 31)) & 0xffffffffL);
+   }
+
+   /**
+    * Adds a long integer to the current record.
+    * @param val the long integer
+    */
+   public void putLong(long val) {
+      putUnsigned((val << 1) ^ (val >> 63));
+   }
+
+   /**
+    * Adds a string to the current record.
+    * @param val the string
+    */
+   public void putString(String val) {
+      putBytes(val.getBytes(StandardCharsets.UTF_8));
+   }
+
+   /**
+    * Adds an array of bytes to the current record.
+    * @param val the bytes
+    */
+   public void putBytes(byte[] val) {
+      putUnsigned(val.length);
+      ensure(val.length);
+      System.arraycopy(val, 0, bytes, size, val.length);
+      size += val.length;
+   }
+
+   /**
+    * Returns true if the buffer holds no records.
+    * @return true if the buffer is empty
+    */
+   public boolean isEmpty() {
+      return count == 0;
+   }
+
+   /**
+    * Removes every record from the buffer.
+    */
+   public void clear() {
+      size = 0;
+      count = 0;
+   }
+
+   int records() {
+      return count;
+   }
+
+   int start(int i) {
+      return starts[i];
+   }
+
+   int end(int i) {
+      return (i+1 < count) ? starts[i+1] : size;
+   }
+
+   byte[] bytes() {
+      return bytes;
+   }
+
+   private void putUnsigned(long val) {
+      ensure(MAX_LONG_SIZE);
+      while ((val & ~0x7fL) != 0) {
+         bytes[size++] = (byte) ((val & 0x7f) | 0x80);
+         val >>>= 7;
+      }
+      bytes[size++] = (byte) val;
+   }
+
+   private void ensure(int n) {
+      if (size + n > bytes.length)
+         bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, size + n));
+   }
+}
@@ -0,0 +1,49 @@
+package simpledb.log;
+
+/**
+ * The background thread that implements group commit.
+ * The flusher repeatedly waits for committing transactions,
+ * and writes the log page once on behalf of all of them.
+ * @see LogMgr#startGroupCommit(long, int)
+ */
+class LogFlusher extends Thread {
+   private LogMgr logMgr;
+   private long maxDelay;
+   private int maxBatch;
+   private volatile boolean stopped = false;
+
+   /**
+    * Creates a flusher for the specified log manager.
+    * The flusher is a daemon thread, and must be started
+    * by the caller.
+    * @param logMgr the log manager
+    * @param maxDelay the maximum time that a commit waits for others, in milliseconds
+    * @param maxBatch the number of waiting commits that triggers an immediate write
+    */
+   LogFlusher(LogMgr logMgr, long maxDelay, int maxBatch) {
+      super("simpledb-log-flusher");
+      this.logMgr = logMgr;
+      this.maxDelay = maxDelay;
+      this.maxBatch = maxBatch;
+      setDaemon(true);
+   }
+
+   public void run() {
+      while (!stopped) {
+         try {
+            logMgr.flushPendingCommits(maxDelay, maxBatch);
+         }
+         catch (InterruptedException e) {
+            // stopped
+         }
+      }
+   }
+
+   /**
+    * Stops the flusher.
+    */
+   void shutdown() {
+      stopped = true;
+      interrupt();
+   }
+}
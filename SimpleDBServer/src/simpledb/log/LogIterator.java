@@ -1,6 +1,7 @@
 package simpledb.log;
 
 import static simpledb.file.Page.INT_SIZE;
+import static simpledb.file.Page.BLOCK_SIZE;
 import simpledb.file.*;
 import java.util.Iterator;
 
@@ -11,7 +12,9 @@ import java.util.Iterator;
  * @author Edward Sciore
  */
 class LogIterator implements Iterator<BasicLogRecord> {
-   private Block blk;
+   private LogMgr logmgr;
+   private long blknum;
+   private long firstblk;
    private Page pg = new Page();
    private int currentrec;
    
@@ -20,20 +23,25 @@ class LogIterator implements Iterator<BasicLogRecord> {
     * positioned after the last log record.
     * This constructor is called exclusively by
     * {@link LogMgr#iterator()}.
+    * @param logmgr the log manager, which locates the segment of each block
+    * @param blknum the number of the last block of the log
     */
-   LogIterator(Block blk) {
-      this.blk = blk;
-      pg.read(blk);
+   LogIterator(LogMgr logmgr, long blknum) {
+      this.logmgr = logmgr;
+      this.blknum = blknum;
+      firstblk = logmgr.firstBlock();
+      pg.read(logmgr.segmentBlock(blknum));
       currentrec = pg.getInt(LogMgr.LAST_POS);
    }
    
    /**
     * Determines if the current log record
-    * is the earliest record in the log file.
+    * is the earliest record in the log file,
+    * not counting discarded segments.
     * @return true if there is an earlier record
     */
    public boolean hasNext() {
-      return currentrec>0 || blk.number()>0;
+      return currentrec>0 || blknum>firstblk;
    }
    
    /**
@@ -41,13 +49,16 @@ class LogIterator implements Iterator<BasicLogRecord> {
     * If the current log record is the earliest in its block,
     * then the method moves to the next oldest block,
     * and returns the log record from there.
+    * The LSN of the record, which is the offset of the end
+    * of its pointer to the previous record, is recorded with it.
     * @return the next earliest log record
     */
    public BasicLogRecord next() {
       if (currentrec == 0) 
          moveToNextBlock();
+      long lsn = blknum * BLOCK_SIZE + currentrec + INT_SIZE;
       currentrec = pg.getInt(currentrec);
-      return new BasicLogRecord(pg, currentrec+INT_SIZE);
+      return new BasicLogRecord(pg, currentrec+INT_SIZE, lsn);
    }
    
    public void remove() {
@@ -59,8 +70,8 @@ class LogIterator implements Iterator<BasicLogRecord> {
     * and positions it after the last record in that block.
     */
    private void moveToNextBlock() {
-      blk = new Block(blk.fileName(), blk.number()-1);
-      pg.read(blk);
+      blknum--;
+      pg.read(logmgr.segmentBlock(blknum));
       currentrec = pg.getInt(LogMgr.LAST_POS);
    }
 }
@@ -13,6 +13,39 @@ import java.util.*;
  * The log manager does not understand the meaning of these
  * values, which are written and read by the
  * {@link simpledb.tx.recovery.RecoveryMgr recovery manager}.
+ * Records are written in a compact format, already encoded
+ * in a {@link LogBuffer}; a log can also hold records in the
+ * fixed-width format written by earlier versions of the server.
+ * <p>
+ * The LSN of a log record is the byte offset in the log file
+ * at which the record ends, so LSNs increase with every append.
+ * LSNs are long integers, since the log written over the
+ * lifetime of a database can exceed 2 GiB.
+ * The tail of the log is kept in a circular buffer of pages.
+ * When a page fills, the log moves on to the next page of the
+ * buffer without writing; the pages are written together when
+ * the log is flushed, or when the buffer runs out of pages.
+ * <p>
+ * Committing transactions can share a single disk write.
+ * Once group commit has been started, a transaction that calls
+ * {@link #commit(long) commit} waits until a background
+ * {@link LogFlusher flusher} writes the log page,
+ * and one write makes the commit records of every waiting
+ * transaction durable.
+ * <p>
+ * The log is stored as a sequence of segment files,
+ * each holding a fixed number of blocks.
+ * Block numbers, and therefore LSNs, run on across segments,
+ * and are long integers, so that neither wraps around;
+ * the segment whose first block is b is named after the log file
+ * with the suffix ".b", except that the first segment of a new
+ * log has the log file's own name.
+ * Once no transaction and no checkpoint needs the records of a
+ * segment, the recovery manager calls {@link #truncate(long) truncate},
+ * which deletes the segment or moves it to an archive directory.
+ * <p>
+ * The format of the log is stored with the database;
+ * see {@link FileMgr#logFormat()}.
  * @author Edward Sciore
  */
 public class LogMgr implements Iterable<BasicLogRecord> {
@@ -21,11 +54,37 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     * A value of 0 means that the pointer is the first value in the page.
     */
    public static final int LAST_POS = 0;
+   /**
+    * The log format of a database created before the format
+    * was stored with the database.
+    * Such a log holds only fixed-width records, in which an update
+    * record holds the old value but not the new one;
+    * it is recovered by undoing the unfinished transactions.
+    */
+   public static final int LEGACY_FORMAT = 1;
+   /**
+    * The format of the logs written by this version of the system,
+    * in which update records hold both values and the LSN of the
+    * transaction's previous update.
+    */
+   public static final int CURRENT_FORMAT = 2;
+   public static final int DEFAULT_BUFFER_PAGES = 16;
+   public static final int DEFAULT_SEGMENT_BLOCKS = 1024;
 
    private String logfile;
-   private Page mypage = new Page();
-   private Block currentblk;
+   private int segmentBlocks;
+   private String archiveDir = null;
+   // the first block of each segment -> the name of its file
+   private TreeMap<Long,String> segments = new TreeMap<Long,String>();
+   private Page[] pages;
+   private Page mypage;
+   private long currentblk; // the number of the current block
    private int currentpos;
+   private long firstUnwritten; // the first block in the buffer not yet on disk
+   private long lastLSN, flushedLSN;
+   private int pendingCommits = 0;
+   private long commits = 0, forces = 0;
+   private LogFlusher flusher = null;
 
    /**
     * Creates the manager for the specified log file.
@@ -41,26 +100,276 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     * @param logfile the name of the log file
     */
    public LogMgr(String logfile) {
+      this(logfile, DEFAULT_BUFFER_PAGES);
+   }
+
+   /**
+    * Creates the manager for the specified log file,
+    * buffering the tail of the log in the specified number of pages.
+    * @param logfile the name of the log file
+    * @param bufferPages the number of pages in the log buffer
+    */
+   public LogMgr(String logfile, int bufferPages) {
+      this(logfile, bufferPages, DEFAULT_SEGMENT_BLOCKS);
+   }
+
+   /**
+    * Creates the manager for the specified log file,
+    * buffering the tail of the log in the specified number of pages,
+    * and starting a new segment file every so many blocks.
+    * The segments of an existing log are found by their names.
+    * @param logfile the name of the log file
+    * @param bufferPages the number of pages in the log buffer
+    * @param segmentBlocks the number of blocks in a segment
+    */
+   public LogMgr(String logfile, int bufferPages, int segmentBlocks) {
       this.logfile = logfile;
-      int logsize = SimpleDB.fileMgr().size(logfile);
-      if (logsize == 0)
-         appendNewBlock();
+      this.segmentBlocks = Math.max(segmentBlocks, 1);
+      pages = new Page[Math.max(bufferPages, 1)];
+      for (int i=0; i<pages.length; i++)
+         pages[i] = new Page();
+      findSegments();
+      if (segments.isEmpty()) {
+         segments.put(0L, logfile);
+         moveToBlock(0);
+         mypage.write(segmentBlock(0));
+      }
       else {
-         currentblk = new Block(logfile, logsize-1);
-         mypage.read(currentblk);
+         long first = segments.lastKey();
+         long lastblk = first + SimpleDB.fileMgr().size(segments.get(first)) - 1;
+         currentblk = lastblk;
+         mypage = pageFor(lastblk);
+         mypage.read(segmentBlock(lastblk));
          currentpos = getLastRecordPosition() + INT_SIZE;
       }
+      firstUnwritten = currentblk;
+      lastLSN = flushedLSN = currentLSN();
    }
 
    /**
     * Ensures that the log records corresponding to the
     * specified LSN has been written to disk.
     * All earlier log records will also be written to disk.
+    * The method does nothing if the record is already on disk.
     * @param lsn the LSN of a log record
     */
-   public void flush(int lsn) {
-      if (lsn >= currentLSN())
+   public synchronized void flush(long lsn) {
+      if (lsn > flushedLSN)
+         flush();
+   }
+
+   /**
+    * Ensures that the specified commit record has been written to disk.
+    * If group commit has been started, the calling thread waits
+    * for the flusher to write the log page on behalf of all
+    * committing transactions; otherwise the page is written
+    * immediately.
+    * @param lsn the LSN of the commit record
+    */
+   public synchronized void commit(long lsn) {
+      commits++;
+      if (flusher == null) {
+         flush(lsn);
+         return;
+      }
+      if (lsn <= flushedLSN)
+         return;
+      pendingCommits++;
+      notifyAll();
+      try {
+         while (flushedLSN < lsn)
+            wait();
+      }
+      catch (InterruptedException e) {
+         flush();
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Starts a background thread that writes the log
+    * on behalf of committing transactions.
+    * Once the first commit is waiting, the flusher waits for at most
+    * the specified delay for other transactions to commit,
+    * or until the specified number of commits are waiting,
+    * and then writes the log page once for all of them.
+    * Any flusher that was already running is stopped.
+    * @param maxDelay the maximum time that a commit waits for others, in milliseconds
+    * @param maxBatch the number of waiting commits that triggers an immediate write
+    */
+   public synchronized void startGroupCommit(long maxDelay, int maxBatch) {
+      stopGroupCommit();
+      flusher = new LogFlusher(this, maxDelay, maxBatch);
+      flusher.start();
+   }
+
+   /**
+    * Stops the group commit flusher, if one is running.
+    * Subsequent commits write the log page themselves.
+    */
+   public synchronized void stopGroupCommit() {
+      if (flusher != null) {
+         flusher.shutdown();
+         flusher = null;
          flush();
+         notifyAll();
+      }
+   }
+
+   /**
+    * Returns the LSN of the most recent log record.
+    * Every record appended later has a larger LSN.
+    * @return the LSN of the most recent log record
+    */
+   public synchronized long lastLSN() {
+      return lastLSN;
+   }
+
+   /**
+    * Reads the log record with the specified LSN into the specified page.
+    * If the record's block has not yet been written, it is
+    * written first, without forcing it to disk.
+    * @param lsn the LSN of a log record
+    * @param pg the page to read the record's block into
+    * @return the log record
+    */
+   public synchronized BasicLogRecord record(long lsn, Page pg) {
+      long blknum = lsn / BLOCK_SIZE;
+      Block blk = segmentBlock(blknum);
+      if (blknum >= firstUnwritten)
+         pageFor(blknum).write(blk);
+      pg.read(blk);
+      // the record ends with a pointer to the start of the previous record
+      int pos = (int) (lsn % BLOCK_SIZE) - INT_SIZE;
+      return new BasicLogRecord(pg, pg.getInt(pos)+INT_SIZE, lsn);
+   }
+
+   /**
+    * Makes {@link #truncate(long) truncate} move discarded segments
+    * to the specified directory instead of deleting them.
+    * A relative directory name is taken to be relative to
+    * the database directory.
+    * @param dirname the name of the archive directory, or null to delete segments
+    */
+   public synchronized void archiveTo(String dirname) {
+      archiveDir = dirname;
+   }
+
+   /**
+    * Discards every segment of the log whose records all
+    * precede the specified LSN.
+    * The segments are deleted, or archived if an archive
+    * directory has been set.
+    * The segment holding the end of the log is never discarded.
+    * Records in discarded segments can no longer be read,
+    * so the caller must ensure that neither rollback nor recovery
+    * will need any record before the LSN.
+    * @param lsn the LSN of the oldest record that must be kept
+    */
+   public void truncate(long lsn) {
+      List<String> discarded = new ArrayList<String>();
+      String dirname;
+      synchronized (this) {
+         long blknum = lsn / BLOCK_SIZE;
+         while (segments.size() > 1 && segments.higherKey(segments.firstKey()) <= blknum)
+            discarded.add(segments.pollFirstEntry().getValue());
+         dirname = archiveDir;
+      }
+      for (String filename : discarded)
+         if (dirname == null)
+            SimpleDB.fileMgr().delete(filename);
+         else
+            SimpleDB.fileMgr().archive(filename, dirname);
+   }
+
+   /**
+    * Discards the whole log, and begins a new one
+    * with an empty first block.
+    * The caller must ensure that no record of the old log
+    * will be needed again, and that no other thread is using the log.
+    */
+   public synchronized void restart() {
+      for (String filename : segments.values())
+         SimpleDB.fileMgr().delete(filename);
+      segments.clear();
+      segments.put(0L, logfile);
+      moveToBlock(0);
+      mypage.write(segmentBlock(0));
+      SimpleDB.fileMgr().force(logfile);
+      firstUnwritten = 0;
+      lastLSN = flushedLSN = currentLSN();
+   }
+
+   /**
+    * Returns the number of the first block of the log
+    * that has not been discarded.
+    * @return the number of the first block
+    */
+   synchronized long firstBlock() {
+      return segments.firstKey();
+   }
+
+   /**
+    * Returns the block of a segment file that holds
+    * the specified block of the log.
+    * @param blknum the number of a block of the log
+    * @return the corresponding block of the segment file
+    */
+   synchronized Block segmentBlock(long blknum) {
+      Map.Entry<Long,String> seg = segments.floorEntry(blknum);
+      if (seg == null)
+         throw new RuntimeException("cannot read discarded log block " + blknum);
+      return new Block(seg.getValue(), (int) (blknum - seg.getKey()));
+   }
+
+   /**
+    * Returns the number of commits since the log manager was created.
+    * @return the number of commits
+    */
+   public synchronized long commits() {
+      return commits;
+   }
+
+   /**
+    * Returns the number of times that the log buffer
+    * has been written to disk since the log manager was created.
+    * @return the number of log writes
+    */
+   public synchronized long forces() {
+      return forces;
+   }
+
+   /**
+    * Returns the average number of commits per log write.
+    * The value shows how well group commit is batching commits.
+    * @return the number of commits per log write
+    */
+   public synchronized double commitsPerForce() {
+      return forces == 0 ? 0.0 : (double) commits / forces;
+   }
+
+   /**
+    * Waits until some transaction is committing,
+    * then waits for more commits as specified,
+    * and then writes the log page for all of them.
+    * This method is called repeatedly by the flusher thread.
+    * @param maxDelay the maximum time to wait for more commits, in milliseconds
+    * @param maxBatch the number of waiting commits that ends the wait
+    * @throws InterruptedException if the flusher is stopped
+    */
+   synchronized void flushPendingCommits(long maxDelay, int maxBatch)
+         throws InterruptedException {
+      while (pendingCommits == 0)
+         wait();
+      long deadline = System.currentTimeMillis() + maxDelay;
+      long remaining = maxDelay;
+      while (pendingCommits > 0 && pendingCommits < maxBatch && remaining > 0) {
+         wait(remaining);
+         remaining = deadline - System.currentTimeMillis();
+      }
+      if (flushedLSN < lastLSN)
+         flush();
+      pendingCommits = 0;
    }
 
    /**
@@ -70,83 +379,127 @@ public class LogMgr implements Iterable<BasicLogRecord> {
     */
    public synchronized Iterator<BasicLogRecord> iterator() {
       flush();
-      return new LogIterator(currentblk);
+      return new LogIterator(this, currentblk);
    }
 
    /**
-    * Appends a log record to the file.
-    * The record contains an arbitrary array of strings and integers.
-    * The method also writes an integer to the end of each log record whose value
-    * is the offset of the corresponding integer for the previous log record.
-    * These integers allow log records to be read in reverse order.
-    * @param rec the list of values
-    * @return the LSN of the final value
+    * Returns an iterator for the log records in the order
+    * they were written, starting with the first record whose
+    * LSN is at or after the specified LSN.
+    * Records appended after the iterator is created
+    * may not be returned.
+    * @param lsn the LSN at which to start
+    * @return an iterator over the later log records
     */
-   public synchronized int append(Object[] rec) {
-      int recsize = INT_SIZE;  // 4 bytes for the integer that points to the previous log record
-      for (Object obj : rec)
-         recsize += size(obj);
-      if (currentpos + recsize >= BLOCK_SIZE){ // the log record doesn't fit,
-         flush();        // so move to the next block.
-         appendNewBlock();
-      }
-      for (Object obj : rec)
-         appendVal(obj);
-      finalizeRecord();
-      return currentLSN();
+   public synchronized Iterator<BasicLogRecord> iterator(long lsn) {
+      flush();
+      return new ForwardLogIterator(this, currentblk, lsn);
    }
 
    /**
-    * Adds the specified value to the page at the position denoted by
-    * currentpos.  Then increments currentpos by the size of the value.
-    * @param val the integer or string to be added to the page
+    * Appends the records encoded in the specified buffer
+    * to the file, in order, and then empties the buffer.
+    * The records were encoded without holding the log manager,
+    * and are copied to the log in a single call,
+    * so a batch of records costs one acquisition of the log manager.
+    * Each record is followed by an integer whose value is
+    * the offset of the previous record in the block,
+    * so that records can be read in reverse order.
+    * @param buf the buffer holding the records
+    * @return the LSN of the last record
     */
-   private void appendVal(Object val) {
-      if (val instanceof String)
-         mypage.setString(currentpos, (String)val);
-      else
-         mypage.setInt(currentpos, (Integer)val);
-      currentpos += size(val);
+   public synchronized long append(LogBuffer buf) {
+      byte[] bytes = buf.bytes();
+      for (int i=0; i<buf.records(); i++) {
+         int start = buf.start(i);
+         int len = buf.end(i) - start;
+         makeRoom(len + INT_SIZE);
+         mypage.setBytes(currentpos, bytes, start, len);
+         currentpos += len;
+         finalizeRecord();
+      }
+      buf.clear();
+      lastLSN = currentLSN();
+      return lastLSN;
    }
 
    /**
-    * Calculates the size of the specified integer or string.
-    * @param val the value
-    * @return the size of the value, in bytes
+    * Moves to the next block if a record of the specified size
+    * does not fit in the current one.
+    * @param recsize the size of the record and its pointer, in bytes
     */
-   private int size(Object val) {
-      if (val instanceof String) {
-         String sval = (String) val;
-         return STR_SIZE(sval.length());
+   private void makeRoom(int recsize) {
+      if (currentpos + recsize >= BLOCK_SIZE) { // the log record doesn't fit,
+         long next = currentblk + 1;  // so move to the next block,
+         if (next - firstUnwritten >= pages.length)
+            flush();                          // first making room in the buffer.
+         moveToBlock(next);
       }
-      else
-         return INT_SIZE;
    }
 
    /**
-    * Returns the LSN of the most recent log record.
-    * As implemented, the LSN is the block number where the record is stored.
-    * Thus every log record in a block has the same LSN.
+    * Returns the LSN of the most recent log record,
+    * which is the byte offset in the log file
+    * of the end of that record.
     * @return the LSN of the most recent log record
     */
-   private int currentLSN() {
-      return currentblk.number();
+   private long currentLSN() {
+      return currentblk * BLOCK_SIZE + currentpos;
    }
 
    /**
-    * Writes the current page to the log file.
+    * Writes the buffered pages to the log file with a single write
+    * per segment, and forces the segments to disk.
+    * The current page is kept in the buffer, since later records
+    * will be added to it.
+    * Every record appended so far is then on disk,
+    * so any waiting commits are released.
     */
    private void flush() {
-      mypage.write(currentblk);
+      long blknum = firstUnwritten;
+      while (blknum <= currentblk) {
+         Long next = segments.higherKey(blknum);
+         long last = (next == null) ? currentblk : Math.min(next - 1, currentblk);
+         Page[] run = new Page[(int) (last - blknum + 1)];
+         for (int i=0; i<run.length; i++)
+            run[i] = pageFor(blknum + i);
+         Block first = segmentBlock(blknum);
+         Page.write(first, run);
+         SimpleDB.fileMgr().force(first.fileName());
+         blknum = last + 1;
+      }
+      firstUnwritten = currentblk;
+      flushedLSN = lastLSN;
+      forces++;
+      if (pendingCommits > 0) {
+         pendingCommits = 0;
+         notifyAll();
+      }
    }
 
    /**
-    * Clear the current page, and append it to the log file.
+    * Makes the specified block the current block,
+    * and clears its page in the buffer.
+    * If the current segment is full, the block begins a new one.
+    * The block is not written until the log is flushed.
+    * @param blknum the number of the new current block
     */
-   private void appendNewBlock() {
+   private void moveToBlock(long blknum) {
+      if (blknum - segments.lastKey() >= segmentBlocks)
+         segments.put(blknum, logfile + "." + blknum);
+      currentblk = blknum;
+      mypage = pageFor(blknum);
       setLastRecordPosition(0);
       currentpos = INT_SIZE;
-      currentblk = mypage.append(logfile);
+   }
+
+   /**
+    * Returns the buffer page that holds the specified log block.
+    * @param blknum the number of a block in the buffer
+    * @return the page holding that block
+    */
+   private Page pageFor(long blknum) {
+      return pages[(int) (blknum % pages.length)];
    }
 
    /**
@@ -162,6 +515,25 @@ public class LogMgr implements Iterable<BasicLogRecord> {
       currentpos += INT_SIZE;
    }
 
+   /**
+    * Finds the segment files of an existing log.
+    * A segment at the end of the log that was created
+    * but never written holds no records, and is deleted.
+    */
+   private void findSegments() {
+      FileMgr fm = SimpleDB.fileMgr();
+      String prefix = logfile + ".";
+      for (String filename : fm.fileNames()) {
+         if (filename.equals(logfile))
+            segments.put(0L, filename);
+         else if (filename.startsWith(prefix)
+                  && filename.substring(prefix.length()).matches("[0-9]+"))
+            segments.put(Long.parseLong(filename.substring(prefix.length())), filename);
+      }
+      while (!segments.isEmpty() && fm.size(segments.lastEntry().getValue()) == 0)
+         fm.delete(segments.pollLastEntry().getValue());
+   }
+
    private int getLastRecordPosition() {
       return mypage.getInt(LAST_POS);
    }
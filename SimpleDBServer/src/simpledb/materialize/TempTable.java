@@ -1,5 +1,6 @@
 package simpledb.materialize;
 
+import simpledb.buffer.AccessHint;
 import simpledb.tx.Transaction;
 import simpledb.record.*;
 import simpledb.query.*;
@@ -32,7 +33,7 @@ public class TempTable {
     * Opens a table scan for the temporary table.
     */
    public UpdateScan open() {
-      return new TableScan(ti, tx);
+      return new TableScan(ti, tx, AccessHint.TEMP);
    }
    
    /**
@@ -1,5 +1,6 @@
 package simpledb.metadata;
 
+import simpledb.buffer.AccessHint;
 import simpledb.tx.Transaction;
 import simpledb.record.*;
 import java.util.*;
@@ -10,6 +11,11 @@ import java.util.*;
  * The manager does not store this information in the database.
  * Instead, it calculates this information on system startup,
  * and periodically refreshes it.
+ * After startup, the statistics are calculated in a read-only
+ * transaction, which reads a snapshot and takes no locks;
+ * otherwise a refresh, which holds this object's monitor,
+ * could wait for a lock held by a transaction
+ * that is itself waiting for the monitor.
  * @author Edward Sciore
  */
 class StatMgr {
@@ -30,6 +36,8 @@ class StatMgr {
    
    /**
     * Returns the statistical information about the specified table.
+    * The information does not reflect the uncommitted
+    * changes of the calling transaction.
     * @param tblname the name of the table
     * @param ti the table's metadata
     * @param tx the calling transaction
@@ -37,14 +45,22 @@ class StatMgr {
     */
    public synchronized StatInfo getStatInfo(String tblname, TableInfo ti, Transaction tx) {
       numcalls++;
-      if (numcalls > 100)
-         refreshStatistics(tx);
-      StatInfo si = tablestats.get(tblname);
-      if (si == null) {
-         si = calcTableStats(ti, tx);
-         tablestats.put(tblname, si);
+      if (numcalls <= 100 && tablestats.containsKey(tblname))
+         return tablestats.get(tblname);
+      Transaction snapshot = new Transaction(true);
+      try {
+         if (numcalls > 100)
+            refreshStatistics(snapshot);
+         StatInfo si = tablestats.get(tblname);
+         if (si == null) {
+            si = calcTableStats(ti, snapshot);
+            tablestats.put(tblname, si);
+         }
+         return si;
+      }
+      finally {
+         snapshot.commit();
       }
-      return si;
    }
    
    private synchronized void refreshStatistics(Transaction tx) {
@@ -63,7 +79,7 @@ class StatMgr {
    
    private synchronized StatInfo calcTableStats(TableInfo ti, Transaction tx) {
       int numRecs = 0;
-      RecordFile rf = new RecordFile(ti, tx);
+      RecordFile rf = new RecordFile(ti, tx, AccessHint.SEQUENTIAL);
       int numblocks = 0;
       while (rf.next()) {
          numRecs++;
@@ -1,5 +1,7 @@
 package simpledb.metadata;
 
+import static java.sql.Types.VARCHAR;
+import simpledb.server.SimpleDB;
 import simpledb.tx.Transaction;
 import simpledb.record.*;
 import java.util.*;
@@ -9,6 +11,11 @@ import java.util.*;
  * There are methods to create a table, save the metadata
  * in the catalog, and obtain the metadata of a
  * previously-created table.
+ * <p>
+ * The catalog tables use the fixed record layout.
+ * A table that uses the slotted layout is marked by
+ * storing its record length negated in tblcat,
+ * which databases created without slotted pages never do.
  * @author Edward Sciore
  *
  */
@@ -44,24 +51,41 @@ public class TableMgr {
       fcatInfo = new TableInfo("fldcat", fcatSchema);
       
       if (isNew) {
-         createTable("tblcat", tcatSchema, tx);
-         createTable("fldcat", fcatSchema, tx);
+         addTable("tblcat", tcatInfo, tx);
+         addTable("fldcat", fcatInfo, tx);
       }
    }
    
    /**
     * Creates a new table having the specified name and schema.
+    * A table that has a string field uses the slotted layout,
+    * unless slotted pages are turned off.
     * @param tblname the name of the new table
     * @param sch the table's schema
     * @param tx the transaction creating the table
     */
    public void createTable(String tblname, Schema sch, Transaction tx) {
-      TableInfo ti = new TableInfo(tblname, sch);
+      boolean slotted = false;
+      if (SimpleDB.SLOTTED_RECORDS)
+         for (String fldname : sch.fields())
+            if (sch.type(fldname) == VARCHAR)
+               slotted = true;
+      addTable(tblname, new TableInfo(tblname, sch, slotted), tx);
+   }
+   
+   /**
+    * Saves the metadata of the specified table in the catalog.
+    * @param tblname the name of the new table
+    * @param ti the table's metadata
+    * @param tx the transaction creating the table
+    */
+   private void addTable(String tblname, TableInfo ti, Transaction tx) {
+      Schema sch = ti.schema();
       // insert one record into tblcat
       RecordFile tcatfile = new RecordFile(tcatInfo, tx);
       tcatfile.insert();
       tcatfile.setString("tblname", tblname);
-      tcatfile.setInt("reclength", ti.recordLength());
+      tcatfile.setInt("reclength", ti.isSlotted() ? -ti.recordLength() : ti.recordLength());
       tcatfile.close();
       
       // insert a record into fldcat for each field
@@ -109,6 +133,7 @@ public class TableMgr {
          sch.addField(fldname, fldtype, fldlen);
       }
       fcatfile.close();
-      return new TableInfo(tblname, sch, offsets, reclen, fieldFlagIndex);
+      boolean slotted = (reclen < 0);
+      return new TableInfo(tblname, sch, offsets, Math.abs(reclen), fieldFlagIndex, slotted);
    }
 }
\ No newline at end of file
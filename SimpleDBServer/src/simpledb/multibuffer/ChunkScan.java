@@ -1,6 +1,7 @@
 package simpledb.multibuffer;
 
 import static java.sql.Types.INTEGER;
+import simpledb.buffer.AccessHint;
 import simpledb.tx.Transaction;
 import simpledb.record.*;
 import simpledb.file.Block;
@@ -21,6 +22,9 @@ public class ChunkScan implements Scan {
    
    /**
     * Creates a chunk consisting of the specified pages. 
+    * The pages are pinned in order, and each pin is preceded
+    * by a prefetch of a later page of the chunk,
+    * so that the reads of the chunk overlap.
     * @param ti the metadata for the chunked table
     * @param startbnum the starting block number
     * @param endbnum  the ending block number
@@ -32,9 +36,15 @@ public class ChunkScan implements Scan {
       this.endbnum   = endbnum;
       this.sch = ti.schema();
       String filename = ti.fileName();
+      AccessHint hint = AccessHint.scanOf(filename);
+      int window = tx.readAheadWindow(hint);
+      for (int i=startbnum+1; i<=endbnum && i<=startbnum+window; i++)
+         tx.prefetch(new Block(filename, i), hint);
       for (int i=startbnum; i<=endbnum; i++) {
+         if (window > 0 && i+window <= endbnum)
+            tx.prefetch(new Block(filename, i+window), hint);
          Block blk = new Block(filename, i);
-         pages.add(new RecordPage(blk, ti, tx));
+         pages.add(RecordPage.open(blk, ti, tx, hint));
       }
       beforeFirst();
    }
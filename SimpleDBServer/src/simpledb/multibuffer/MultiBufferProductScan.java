@@ -1,5 +1,7 @@
 package simpledb.multibuffer;
 
+import simpledb.buffer.AccessHint;
+import simpledb.file.Block;
 import simpledb.tx.Transaction;
 import simpledb.record.TableInfo;
 import simpledb.query.*;
@@ -18,6 +20,8 @@ public class MultiBufferProductScan implements Scan {
    
    /**
     * Creates the scan class for the product of the LHS scan and a table.
+    * While the product of a chunk is being computed,
+    * the first blocks of the next chunk are prefetched.
     * @param lhsscan the LHS scan
     * @param ti the metadata for the RHS table
     * @param tx the current transaction
@@ -120,7 +124,16 @@ public class MultiBufferProductScan implements Scan {
       lhsscan.beforeFirst();
       prodscan = new ProductScan(lhsscan, rhsscan);
       nextblknum = end + 1;
+      prefetchNextChunk();
       return true;
    }
+   
+   private void prefetchNextChunk() {
+      String filename = ti.fileName();
+      AccessHint hint = AccessHint.scanOf(filename);
+      int last = Math.min(nextblknum + tx.readAheadWindow(hint), filesize) - 1;
+      for (int b=nextblknum; b<=last; b++)
+         tx.prefetch(new Block(filename, b), hint);
+   }
 }
 
@@ -1,6 +1,7 @@
 package simpledb.query;
 
 import simpledb.server.SimpleDB;
+import simpledb.buffer.AccessHint;
 import simpledb.tx.Transaction;
 import simpledb.metadata.*;
 import simpledb.record.*;
@@ -30,7 +31,7 @@ public class TablePlan implements Plan {
     * @see simpledb.query.Plan#open()
     */
    public Scan open() {
-      return new TableScan(ti, tx);
+      return new TableScan(ti, tx, AccessHint.scanOf(ti.fileName()));
    }
    
    /**
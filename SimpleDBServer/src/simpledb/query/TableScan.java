@@ -4,6 +4,7 @@ import static java.sql.Types.INTEGER;
 import static java.sql.Types.NULL;
 import static java.sql.Types.VARCHAR;
 
+import simpledb.buffer.AccessHint;
 import simpledb.tx.Transaction;
 import simpledb.record.*;
 
@@ -26,7 +27,18 @@ public class TableScan implements UpdateScan {
     * @param tx the calling transaction
     */
    public TableScan(TableInfo ti, Transaction tx) {
-      rf  = new RecordFile(ti, tx);
+      this(ti, tx, AccessHint.NORMAL);
+   }
+   
+   /**
+    * Creates a new table scan whose blocks are
+    * pinned with the specified access hint.
+    * @param ti the table's metadata
+    * @param tx the calling transaction
+    * @param hint how the blocks of the table are accessed
+    */
+   public TableScan(TableInfo ti, Transaction tx, AccessHint hint) {
+      rf  = new RecordFile(ti, tx, hint);
       sch = ti.schema();
    }
    
@@ -0,0 +1,241 @@
+package simpledb.record;
+
+import static simpledb.file.Page.*;
+import simpledb.file.*;
+import simpledb.buffer.AccessHint;
+import simpledb.tx.Transaction;
+
+/**
+ * Manages the records of a block of a table that uses the fixed layout,
+ * in which every record has a slot of the same size.
+ * <p>
+ * In a database of the {@link Page#HEADER_FORMAT header format},
+ * the block begins with a header that holds the number of records
+ * in the block, followed by a bitmap with one bit per slot,
+ * which is set if the slot is in use.
+ * A scan skips an empty block after reading the count,
+ * and finds the next record by examining 32 slots at a time.
+ */
+class FixedRecordPage extends RecordPage {
+   private static final int COUNT_POS = 0, BITMAP_POS = INT_SIZE;
+   
+   private int slotsize;
+   private int headersize, numslots;
+
+   /** Creates the record manager for the specified block,
+     * pinning the block with the specified access hint.
+     * @param blk a reference to the disk block
+     * @param ti the table's metadata
+     * @param tx the transaction performing the operations
+     * @param hint how the block is being accessed
+     */
+   FixedRecordPage(Block blk, TableInfo ti, Transaction tx, AccessHint hint) {
+      super(blk, ti, tx, hint);
+      slotsize = ti.recordLength() + INT_SIZE;
+      headersize = headerSize(slotsize);
+      numslots = (BLOCK_SIZE - headersize) / slotsize;
+  }
+
+   public boolean next() {
+       if (headersize == 0)
+          return searchFor(INUSE);
+       currentslot = nextInUse(currentslot + 1);
+       return currentslot < numslots;
+   }
+
+    public boolean previous() {
+        if (headersize == 0)
+            return searchForBackward(INUSE);
+        if (currentslot == -1)
+            currentslot = numslots;
+        currentslot = previousInUse(currentslot);
+        return currentslot >= 0;
+    }
+
+   public int getInt(String fldname) {
+      int position = fieldpos(fldname);
+      return tx.getInt(blk, position);
+   }
+   
+   public String getString(String fldname) {
+      int position = fieldpos(fldname);
+      return tx.getString(blk, position);
+   }
+   
+   public void setInt(String fldname, int val) {
+       int position = fieldpos(fldname);
+       setNotNull(fldname);
+       tx.setInt(blk, position, val);
+   }
+   
+   public void setString(String fldname, String val) {
+       int position = fieldpos(fldname);
+       setNotNull(fldname);
+       tx.setString(blk, position, val);
+   }
+
+    public void setNull(String fldname) {
+        int fieldFlagIndex = ti.bitPosition(fldname);
+        tx.setInt(blk, currentpos(), setBitVal(getFlagsAt(currentpos()), fieldFlagIndex, 1));
+    }
+
+    public void setNotNull(String fldname) {
+        int fieldFlagIndex = ti.bitPosition(fldname);
+        tx.setInt(blk, currentpos(), setBitVal(getFlagsAt(currentpos()), fieldFlagIndex, 0));
+    }
+
+    public boolean isNull(String fldname) {
+        Integer fieldFlagIndex = ti.bitPosition(fldname);
+        return getBitVal(getFlagsAt(currentpos()), fieldFlagIndex) == 1;
+    }
+   
+   /**
+    * Deletes the current record.
+    * Deletion is performed by just marking the record
+    * as "deleted"; the current record does not change. 
+    * To get to the next record, call next().
+    */
+   public void delete() {
+      int position = currentpos();
+      tx.setInt(blk, position, setBitVal(Integer.MAX_VALUE, 0, 0));
+      if (headersize > 0) {
+         int wordpos = BITMAP_POS + currentslot / 32 * INT_SIZE;
+         tx.setInt(blk, wordpos, setBitVal(tx.getInt(blk, wordpos), currentslot % 32, 0));
+         tx.setInt(blk, COUNT_POS, tx.getInt(blk, COUNT_POS) - 1);
+      }
+   }
+   
+   public boolean insert() {
+      if (headersize > 0)
+         return insertInFreeSlot();
+      currentslot = -1;
+      boolean found = searchFor(EMPTY);
+      if (found) {
+         int position = currentpos();
+         tx.setInt(blk, position, Integer.MAX_VALUE);
+      }
+      return found;
+   }
+   
+   /**
+    * Returns the size of the header of a block whose slots
+    * have the specified size: the record count, and a bit
+    * for each slot rounded up to a whole number of integers.
+    * The size is 0 if the database's blocks have no headers.
+    * @param slotsize the size of a slot, in bytes
+    * @return the size of the header, in bytes
+    */
+   static int headerSize(int slotsize) {
+      if (!Page.hasRecordHeaders())
+         return 0;
+      int n = (BLOCK_SIZE - INT_SIZE) / slotsize;
+      while (INT_SIZE + bitmapSize(n) + n * slotsize > BLOCK_SIZE)
+         n--;
+      return INT_SIZE + bitmapSize(n);
+   }
+
+   private static int bitmapSize(int n) {
+      return (n + 31) / 32 * INT_SIZE;
+   }
+
+   /**
+    * Returns the first slot at or after the specified one
+    * whose bit is set, or numslots if there is none.
+    */
+   private int nextInUse(int slot) {
+      if (slot >= numslots || (slot == 0 && tx.getInt(blk, COUNT_POS) == 0))
+         return numslots;
+      for (int w = slot / 32; w * 32 < numslots; w++) {
+         int bits = tx.getInt(blk, BITMAP_POS + w * INT_SIZE);
+         if (w == slot / 32)
+            bits &= -1 << (slot % 32);
+         if (bits != 0)
+            return w * 32 + Integer.numberOfTrailingZeros(bits);
+      }
+      return numslots;
+   }
+
+   /**
+    * Returns the last slot before the specified one
+    * whose bit is set, or -1 if there is none.
+    */
+   private int previousInUse(int slot) {
+      for (int w = (slot - 1) / 32; slot > 0 && w >= 0; w--) {
+         int bits = tx.getInt(blk, BITMAP_POS + w * INT_SIZE);
+         if (w == (slot - 1) / 32)
+            bits &= -1 >>> (31 - (slot - 1) % 32);
+         if (bits != 0)
+            return w * 32 + 31 - Integer.numberOfLeadingZeros(bits);
+      }
+      return -1;
+   }
+
+   /**
+    * Inserts a record into the first slot whose bit is clear.
+    * A full block is recognized from its count alone.
+    */
+   private boolean insertInFreeSlot() {
+      int count = tx.getInt(blk, COUNT_POS);
+      if (count == numslots)
+         return false;
+      for (int w = 0; w * 32 < numslots; w++) {
+         int wordpos = BITMAP_POS + w * INT_SIZE;
+         int bits = tx.getInt(blk, wordpos);
+         int free = ~bits;
+         if (numslots - w * 32 < 32)
+            free &= (1 << (numslots - w * 32)) - 1;
+         if (free != 0) {
+            int bit = Integer.numberOfTrailingZeros(free);
+            currentslot = w * 32 + bit;
+            tx.setInt(blk, currentpos(), Integer.MAX_VALUE);
+            tx.setInt(blk, wordpos, bits | (1 << bit));
+            tx.setInt(blk, COUNT_POS, count + 1);
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private int currentpos() {
+      return headersize + currentslot * slotsize;
+   }
+   
+   private int fieldpos(String fldname) {
+      int offset = INT_SIZE + ti.offset(fldname);
+      return currentpos() + offset;
+   }
+   
+   private boolean isValidSlot() {
+      return currentpos() + slotsize <= BLOCK_SIZE && currentpos() >= 0;
+   }
+
+    private boolean searchForBackward(int flag) {
+        if (currentslot == -1)
+            currentslot = BLOCK_SIZE / slotsize;
+        currentslot--;
+        while (isValidSlot()) {
+            int position = currentpos();
+            int flags = tx.getInt(blk, position);
+            if (getBitVal(flags, 0) == flag)
+                return true;
+            currentslot--;
+        }
+        return false;
+    }
+
+   private boolean searchFor(int flag) {
+      currentslot++;
+      while (isValidSlot()) {
+         int position = currentpos();
+          int flags = tx.getInt(blk, position);
+         if (getBitVal(flags, 0) == flag)
+            return true;
+         currentslot++;
+      }
+      return false;
+   }
+
+   private int getFlagsAt(int position) {
+       return tx.getInt(blk, position);
+   }
+}
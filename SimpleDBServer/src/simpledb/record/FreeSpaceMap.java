@@ -0,0 +1,109 @@
+package simpledb.record;
+
+import static simpledb.file.Page.*;
+import simpledb.file.Block;
+import simpledb.file.FileMgr;
+import simpledb.server.SimpleDB;
+import simpledb.tx.Transaction;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The free-space map of a table, which records
+ * which blocks of the table are known to be full,
+ * so that an insertion can skip them without reading them.
+ * <p>
+ * The map is stored in its own file, as one integer for each
+ * block of the table: FULL if the block is full, and 0 if it
+ * may have room, which is also the value of a block that
+ * the map does not yet cover.
+ * A block is marked full when an insertion into it fails,
+ * and marked as having room when one of its records is deleted.
+ * <p>
+ * The map is a hint, read and written without locks or log records;
+ * see {@link Transaction#getHint(Block, int)}.
+ * After a rollback or a crash, an entry may be wrong.
+ * A full block that is marked as having room costs one failed
+ * insertion, which corrects the entry; a block with room that is
+ * marked full is not used until one of its records is deleted.
+ * <p>
+ * For each table, the map also remembers in memory the lowest block
+ * that may have room, where the next search begins.
+ * These positions are kept separately for each database,
+ * since tables of different databases can have the same file name.
+ */
+class FreeSpaceMap {
+   private static final int FULL = 1;
+   // database -> (map file name -> lowest block that may have room)
+   private static Map<FileMgr,Map<String,Integer>> databases =
+         Collections.synchronizedMap(new WeakHashMap<FileMgr,Map<String,Integer>>());
+
+   private String filename;
+   private Transaction tx;
+   private Map<String,Integer> firstFree;
+
+   /**
+    * Creates the free-space map of the specified table.
+    * @param ti the table's metadata
+    * @param tx the transaction using the map
+    */
+   FreeSpaceMap(TableInfo ti, Transaction tx) {
+      this.filename = ti.freeSpaceFileName();
+      this.tx = tx;
+      firstFree = databases.computeIfAbsent(SimpleDB.fileMgr(),
+            fm -> new ConcurrentHashMap<String,Integer>());
+   }
+
+   /**
+    * Returns the lowest block that may have room for a record.
+    * The size of the map file is read once, and the blocks
+    * that it does not cover are not read.
+    * @param numblocks the number of blocks in the table
+    * @return a block number, or numblocks if every block is full
+    */
+   int find(int numblocks) {
+      int start = firstFree.getOrDefault(filename, 0);
+      int b = (start > numblocks) ? 0 : start;
+      int covered = tx.hintSize(filename) * entries();
+      while (b < numblocks && b < covered && tx.getHint(block(b), offset(b)) == FULL)
+         b++;
+      int found = b;
+      firstFree.compute(filename, (f, old) -> (old == null || old == start) ? found : Math.min(old, found));
+      return found;
+   }
+
+   /**
+    * Records that the specified block is full.
+    * @param blknum the block number
+    */
+   void markFull(int blknum) {
+      tx.setHint(block(blknum), offset(blknum), FULL);
+   }
+
+   /**
+    * Records that the specified block has room,
+    * because a record was deleted from it.
+    * @param blknum the block number
+    */
+   void markRoom(int blknum) {
+      Block blk = block(blknum);
+      if (blk.number() < tx.hintSize(filename) && tx.getHint(blk, offset(blknum)) == FULL)
+         tx.setHint(block(blknum), offset(blknum), 0);
+      firstFree.merge(filename, blknum, Math::min);
+   }
+
+   private Block block(int blknum) {
+      return new Block(filename, blknum / entries());
+   }
+
+   private int offset(int blknum) {
+      return blknum % entries() * INT_SIZE;
+   }
+
+   // the number of entries in each block of the map
+   private int entries() {
+      return BLOCK_SIZE / INT_SIZE;
+   }
+}
@@ -1,20 +1,31 @@
 package simpledb.record;
 
 import simpledb.file.Block;
+import simpledb.buffer.AccessHint;
 import simpledb.tx.Transaction;
 
 /**
  * Manages a file of records.
  * There are methods for iterating through the records
  * and accessing their contents.
+ * When the file is scanned with a hint other than NORMAL,
+ * and the scan moves forward one block at a time,
+ * the blocks following the current one are prefetched.
+ * <p>
+ * Insertions use the table's {@link FreeSpaceMap} to find
+ * a block with room, except in temporary tables,
+ * which are only appended to.
  * @author Edward Sciore
  */
 public class RecordFile {
    private TableInfo ti;
    private Transaction tx;
    private String filename;
-   private RecordPage rp;
+   private RecordPage rp; // null if a read-only transaction opened an empty file
    private int currentblknum;
+   private AccessHint hint;
+   private int prefetchedTo = -1;
+   private FreeSpaceMap fsm = null;
    
    /**
     * Constructs an object to manage a file of records.
@@ -23,11 +34,33 @@ public class RecordFile {
     * @param tx the transaction
     */
    public RecordFile(TableInfo ti, Transaction tx) {
+      this(ti, tx, AccessHint.NORMAL);
+   }
+   
+   /**
+    * Constructs an object to manage a file of records,
+    * whose blocks are pinned with the specified access hint.
+    * A read-only transaction cannot create the file, so an
+    * empty file is treated as having no records.
+    * Blocks reached through {@link #moveToRid(RID)} are
+    * not part of a sequential scan, and so are pinned
+    * with the NORMAL hint.
+    * @param ti the table metadata
+    * @param tx the transaction
+    * @param hint how the blocks of the file are accessed
+    */
+   public RecordFile(TableInfo ti, Transaction tx, AccessHint hint) {
       this.ti = ti;
       this.tx = tx;
+      this.hint = hint;
       filename = ti.fileName();
-      if (tx.size(filename) == 0)
+      if (!filename.startsWith("temp"))
+         fsm = new FreeSpaceMap(ti, tx);
+      if (tx.size(filename) == 0) {
+         if (tx.isReadOnly())
+            return;
          appendBlock();
+      }
       moveTo(0);
    }
    
@@ -35,7 +68,8 @@ public class RecordFile {
     * Closes the record file.
     */
    public void close() {
-      rp.close();
+      if (rp != null)
+         rp.close();
    }
    
    /**
@@ -43,7 +77,8 @@ public class RecordFile {
     * will wind up at the first record. 
     */
    public void beforeFirst() {
-      moveTo(0);
+      if (rp != null)
+         moveTo(0);
    }
 
    /**
@@ -51,7 +86,8 @@ public class RecordFile {
     * will wind up at the last record.
     */
    public void afterLast() {
-      moveTo(tx.size(filename)-1);
+      if (rp != null)
+         moveTo(tx.size(filename)-1);
    }
    /**
     * Moves to the next record. Returns false if there
@@ -59,6 +95,8 @@ public class RecordFile {
     * @return false if there is no next record.
     */
    public boolean next() {
+      if (rp == null)
+         return false;
       while (true) {
          if (rp.next())
             return true;
@@ -74,6 +112,8 @@ public class RecordFile {
     * @return false if there is no previous record.
     */
    public boolean previous() {
+      if (rp == null)
+         return false;
       while (true) {
          if (rp.previous())
             return true;
@@ -140,15 +180,31 @@ public class RecordFile {
     */
    public void delete() {
       rp.delete();
+      if (fsm != null)
+         fsm.markRoom(currentblknum);
    }
    
    /**
-    * Inserts a new, blank record somewhere in the file
-    * beginning at the current record.
+    * Inserts a new, blank record somewhere in the file.
+    * The record goes into the lowest block that the free-space map
+    * says may have room; a temporary table is searched
+    * beginning at the current record instead.
     * If the new record does not fit into an existing block,
     * then a new block is appended to the file.
     */
    public void insert() {
+      if (fsm != null) {
+         while (true) {
+            int size = tx.size(filename);
+            int b = fsm.find(size);
+            if (b == size)
+               appendBlock();
+            moveTo(b);
+            if (rp.insert())
+               return;
+            fsm.markFull(b);
+         }
+      }
       while (!rp.insert()) {
          if (atLastBlock())
             appendBlock();
@@ -162,7 +218,7 @@ public class RecordFile {
     * @param rid a record identifier
     */
    public void moveToRid(RID rid) {
-      moveTo(rid.blockNumber());
+      moveTo(rid.blockNumber(), hint == AccessHint.SEQUENTIAL ? AccessHint.NORMAL : hint);
       rp.moveToId(rid.id());
    }
    
@@ -176,11 +232,31 @@ public class RecordFile {
    }
    
    private void moveTo(int b) {
+      moveTo(b, hint);
+   }
+   
+   private void moveTo(int b, AccessHint h) {
       if (rp != null)
          rp.close();
+      boolean sequential = (b == 0 || b == currentblknum + 1);
       currentblknum = b;
+      if (h != AccessHint.NORMAL && sequential)
+         readAhead(h);
       Block blk = new Block(filename, currentblknum);
-      rp = new RecordPage(blk, ti, tx);
+      rp = RecordPage.open(blk, ti, tx, h);
+   }
+   
+   private void readAhead(AccessHint h) {
+      int window = tx.readAheadWindow(h);
+      if (window == 0)
+         return;
+      if (currentblknum == 0 || prefetchedTo < currentblknum)
+         prefetchedTo = currentblknum;
+      int last = Math.min(currentblknum + window, tx.size(filename) - 1);
+      for (int b = prefetchedTo + 1; b <= last; b++)
+         tx.prefetch(new Block(filename, b), h);
+      if (last > prefetchedTo)
+         prefetchedTo = last;
    }
    
    private boolean atLastBlock() {
@@ -193,6 +269,6 @@ public class RecordFile {
 
    private void appendBlock() {
       RecordFormatter fmtr = new RecordFormatter(ti);
-      tx.append(filename, fmtr);
+      tx.append(filename, fmtr, hint);
    }
 }
\ No newline at end of file
@@ -9,6 +9,7 @@ import simpledb.buffer.PageFormatter;
 /**
  * An object that can format a page to look like a block of 
  * empty records.
+ * A block in the slotted layout is empty when it is all zeros.
  * @author Edward Sciore
  */
 class RecordFormatter implements PageFormatter {
@@ -25,14 +26,22 @@ class RecordFormatter implements PageFormatter {
    /** 
     * Formats the page by allocating as many record slots
     * as possible, given the record length.
+    * The header, if blocks have one, says that no slot is in use.
     * Each record slot is assigned a flag of EMPTY.
     * Each integer field is given a value of 0, and
     * each string field is given a value of "".
     * @see simpledb.buffer.PageFormatter#format(simpledb.file.Page)
     */
    public void format(Page page) {
+      if (ti.isSlotted()) {
+         page.setBytes(0, new byte[BLOCK_SIZE], 0, BLOCK_SIZE);
+         return;
+      }
       int recsize = ti.recordLength() + INT_SIZE;
-      for (int pos=0; pos+recsize<=BLOCK_SIZE; pos += recsize) {
+      int headersize = FixedRecordPage.headerSize(recsize);
+      for (int pos=0; pos<headersize; pos += INT_SIZE)
+         page.setInt(pos, 0);
+      for (int pos=headersize; pos+recsize<=BLOCK_SIZE; pos += recsize) {
          page.setInt(pos, EMPTY);
          makeDefaultRecord(page, pos);
       }
@@ -1,43 +1,68 @@
 package simpledb.record;
 
-import static simpledb.file.Page.*;
 import simpledb.file.Block;
+import simpledb.buffer.AccessHint;
 import simpledb.tx.Transaction;
 
 /**
  * Manages the placement and access of records in a block.
+ * How the records are laid out in the block is decided by a subclass:
+ * {@link FixedRecordPage} manages the blocks of tables that use the fixed layout,
+ * and {@link SlottedRecordPage} those of tables that use the slotted layout.
+ * Use {@link #open} to get the right manager for a table.
+ * <p>
+ * This class holds the state that the layouts share:
+ * the pinned block, the table's metadata, the transaction,
+ * and the current slot.
+ * Each record begins with an integer of flags:
+ * bit 0 says whether a fixed-layout slot is in use, and
+ * the field with bit position i is null if bit i is set.
  * @author Edward Sciore
  */
-public class RecordPage {
+public abstract class RecordPage {
    public static final int EMPTY = 0, INUSE = 1;
-   
-   private Block blk;
-   private TableInfo ti;
-   private Transaction tx;
-   private int slotsize;
-   private int currentslot = -1;
 
-   /** Creates the record manager for the specified block.
+   Block blk;
+   TableInfo ti;
+   Transaction tx;
+   int currentslot = -1;
+
+   /** Creates the record manager for the specified block,
+     * pinning the block with the specified access hint.
      * The current record is set to be prior to the first one.
      * @param blk a reference to the disk block
      * @param ti the table's metadata
      * @param tx the transaction performing the operations
+     * @param hint how the block is being accessed
      */
-   public RecordPage(Block blk, TableInfo ti, Transaction tx) {
+   RecordPage(Block blk, TableInfo ti, Transaction tx, AccessHint hint) {
       this.blk = blk;
       this.ti = ti;
       this.tx = tx;
-      slotsize = ti.recordLength() + INT_SIZE;
-      tx.pin(blk);
-  }
+      tx.pin(blk, hint);
+   }
+
+   /** Creates the record manager for the specified block,
+     * according to the layout of the table.
+     * @param blk a reference to the disk block
+     * @param ti the table's metadata
+     * @param tx the transaction performing the operations
+     * @param hint how the block is being accessed
+     * @return the record manager for the block
+     */
+   public static RecordPage open(Block blk, TableInfo ti, Transaction tx, AccessHint hint) {
+      if (ti.isSlotted())
+         return new SlottedRecordPage(blk, ti, tx, hint);
+      return new FixedRecordPage(blk, ti, tx, hint);
+   }
    
    /**
     * Closes the manager, by unpinning the block.
     */
    public void close() {
       if (blk != null) {
-    	  tx.unpin(blk);
-    	  blk = null;
+         tx.unpin(blk);
+         blk = null;
       }
    }
    
@@ -45,28 +70,21 @@ public class RecordPage {
     * Moves to the next record in the block.
     * @return false if there is no next record.
     */
-   public boolean next() {
-       return searchFor(INUSE);
-   }
+   public abstract boolean next();
 
-    /**
-     * Moves to the next record in the block.
-     * @return false if there is no next record.
-     */
-    public boolean previous() {
-        return searchForBackward(INUSE);
-    }
+   /**
+    * Moves to the previous record in the block.
+    * @return false if there is no previous record.
+    */
+   public abstract boolean previous();
 
-    /**
+   /**
     * Returns the integer value stored for the
     * specified field of the current record.
     * @param fldname the name of the field.
     * @return the integer stored in that field
     */
-   public int getInt(String fldname) {
-      int position = fieldpos(fldname);
-      return tx.getInt(blk, position);
-   }
+   public abstract int getInt(String fldname);
    
    /**
     * Returns the string value stored for the
@@ -74,10 +92,7 @@ public class RecordPage {
     * @param fldname the name of the field.
     * @return the string stored in that field
     */
-   public String getString(String fldname) {
-      int position = fieldpos(fldname);
-      return tx.getString(blk, position);
-   }
+   public abstract String getString(String fldname);
    
    /**
     * Stores an integer at the specified field
@@ -85,11 +100,7 @@ public class RecordPage {
     * @param fldname the name of the field
     * @param val the integer value stored in that field
     */
-   public void setInt(String fldname, int val) {
-       int position = fieldpos(fldname);
-       setNotNull(fldname);
-       tx.setInt(blk, position, val);
-   }
+   public abstract void setInt(String fldname, int val);
    
    /**
     * Stores a string at the specified field
@@ -97,52 +108,40 @@ public class RecordPage {
     * @param fldname the name of the field
     * @param val the string value stored in that field
     */
-   public void setString(String fldname, String val) {
-       int position = fieldpos(fldname);
-       setNotNull(fldname);
-       tx.setString(blk, position, val);
-   }
+   public abstract void setString(String fldname, String val);
+
+   /**
+    * Marks the specified field of the current record as null.
+    * @param fldname the name of the field
+    */
+   public abstract void setNull(String fldname);
 
-    public void setNull(String fldname) {
-        int fieldFlagIndex = ti.bitPosition(fldname);
-        tx.setInt(blk, currentpos(), setBitVal(getFlagsAt(currentpos()), fieldFlagIndex, 1));
-    }
+   /**
+    * Marks the specified field of the current record as not null.
+    * @param fldname the name of the field
+    */
+   public abstract void setNotNull(String fldname);
 
-    public void setNotNull(String fldname) {
-        int fieldFlagIndex = ti.bitPosition(fldname);
-        tx.setInt(blk, currentpos(), setBitVal(getFlagsAt(currentpos()), fieldFlagIndex, 0));
-    }
+   /**
+    * Returns true if the specified field of the current record is null.
+    * @param fldname the name of the field
+    * @return true if the field is null
+    */
+   public abstract boolean isNull(String fldname);
 
-    public boolean isNull(String fldname) {
-        Integer fieldFlagIndex = ti.bitPosition(fldname);
-        return getBitVal(getFlagsAt(currentpos()), fieldFlagIndex) == 1;
-    }
-   
    /**
     * Deletes the current record.
-    * Deletion is performed by just marking the record
-    * as "deleted"; the current record does not change. 
-    * To get to the next record, call next().
+    * The current record does not change;
+    * to get to the next record, call next().
     */
-   public void delete() {
-      int position = currentpos();
-      tx.setInt(blk, position, setBitVal(Integer.MAX_VALUE, 0, 0));
-   }
+   public abstract void delete();
    
    /**
     * Inserts a new, blank record somewhere in the page.
     * Return false if there were no available slots.
     * @return false if the insertion was not possible
     */
-   public boolean insert() {
-      currentslot = -1;
-      boolean found = searchFor(EMPTY);
-      if (found) {
-         int position = currentpos();
-         tx.setInt(blk, position, Integer.MAX_VALUE);
-      }
-      return found;
-   }
+   public abstract boolean insert();
    
    /**
     * Sets the current record to be the record having the
@@ -160,59 +159,16 @@ public class RecordPage {
    public int currentId() {
       return currentslot;
    }
-   
-   private int currentpos() {
-      return currentslot * slotsize;
-   }
-   
-   private int fieldpos(String fldname) {
-      int offset = INT_SIZE + ti.offset(fldname);
-      return currentpos() + offset;
-   }
-   
-   private boolean isValidSlot() {
-      return currentpos() + slotsize <= BLOCK_SIZE && currentpos() >= 0;
-   }
-
-    private boolean searchForBackward(int flag) {
-        if (currentslot == -1)
-            currentslot = BLOCK_SIZE / slotsize;
-        currentslot--;
-        while (isValidSlot()) {
-            int position = currentpos();
-            int flags = tx.getInt(blk, position);
-            if (getBitVal(flags, 0) == flag)
-                return true;
-            currentslot--;
-        }
-        return false;
-    }
 
-   private boolean searchFor(int flag) {
-      currentslot++;
-      while (isValidSlot()) {
-         int position = currentpos();
-          int flags = tx.getInt(blk, position);
-         if (getBitVal(flags, 0) == flag)
-            return true;
-         currentslot++;
-      }
-      return false;
+   static int getBitVal(int n, int pos) {
+      return (n >> pos) % 2;
    }
 
-   private int getFlagsAt(int position) {
-       return tx.getInt(blk, position);
+   static int setBitVal(int n, int pos, int val) {
+      int mask = (1 << pos);
+      if (val == 0)
+         return n & ~mask;
+      else
+         return n | mask;
    }
-
-    private int getBitVal(int n, int pos) {
-        return (n >> pos) % 2;
-    }
-
-    private int setBitVal(int n, int pos, int val) {
-        int mask = (1 << pos);
-        if (val == 0)
-            return n & ~mask;
-        else
-            return n | mask;
-    }
 }
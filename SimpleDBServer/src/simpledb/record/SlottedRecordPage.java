@@ -0,0 +1,438 @@
+package simpledb.record;
+
+import static java.sql.Types.INTEGER;
+import static simpledb.file.Page.*;
+import simpledb.file.Block;
+import simpledb.file.Page;
+import simpledb.buffer.*;
+import simpledb.tx.Transaction;
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * Manages the records of a block of a table that uses the slotted layout.
+ * <p>
+ * The block begins with a header that holds the number of slots,
+ * the number of bytes in use at the end of the block,
+ * and how many of those bytes are dead.
+ * The slot directory follows the header; each slot holds
+ * the offset of its record, or 0 if the slot is empty.
+ * Records and strings are allocated from the end of the block,
+ * toward the directory.
+ * A record holds its flags, followed by four bytes for each field:
+ * the value of an integer field, or the location of the value of a
+ * string field, which takes only the space its length needs.
+ * The location of the empty string is 0, and the location of a
+ * string in the table's overflow file is negative.
+ * <p>
+ * A record is inserted only if the block has room for it
+ * at its largest, so that its fields can always be filled in.
+ * The space of deleted records and replaced strings is dead
+ * until the block is compacted, which moves the live records
+ * and strings to the end of the block; a record keeps its slot,
+ * so its RID does not change.
+ * The compaction reads the block once, and writes the ranges
+ * of the header, directory and records that change as logged
+ * byte updates, so it is undone and redone like any other update.
+ * A string that grows when its block is full
+ * is moved to the overflow file, an unordered heap of strings.
+ * A string in the overflow file is overwritten in place by a value
+ * that is no longer.
+ * The overflow file has no free list: the space of an overflow string
+ * that is replaced by a longer one, moved back into its block,
+ * or deleted with its record is never reused, and the file
+ * only grows until the table is dropped.
+ * Overflow is expected to be rare, since a string moves there only
+ * when its block cannot hold it even after compaction.
+ */
+class SlottedRecordPage extends RecordPage {
+   private static final int NUMSLOTS_POS = 0, USED_POS = INT_SIZE, DEAD_POS = 2*INT_SIZE;
+   private static final int DIR_POS = 3*INT_SIZE;
+   // equal bytes between two changed ranges that are cheaper to log than a new record
+   private static final int MERGE_GAP = 32;
+
+   private List<String> strfields = new ArrayList<String>();
+   private int fixedsize, maxsize;
+
+   /** Creates the record manager for the specified block,
+     * pinning the block with the specified access hint.
+     * @param blk a reference to the disk block
+     * @param ti the table's metadata
+     * @param tx the transaction performing the operations
+     * @param hint how the block is being accessed
+     */
+   SlottedRecordPage(Block blk, TableInfo ti, Transaction tx, AccessHint hint) {
+      super(blk, ti, tx, hint);
+      fixedsize = INT_SIZE + ti.recordLength();
+      maxsize = fixedsize;
+      for (String fldname : ti.schema().fields())
+         if (ti.schema().type(fldname) != INTEGER) {
+            strfields.add(fldname);
+            maxsize += align(STR_SIZE(ti.schema().length(fldname)));
+         }
+      // a record too large for an empty block is admitted anyway,
+      // and its longest strings go to the overflow file
+      maxsize = Math.min(maxsize, BLOCK_SIZE - DIR_POS - INT_SIZE);
+   }
+
+   public boolean next() {
+      int numslots = getHeader(NUMSLOTS_POS);
+      for (currentslot++; currentslot < numslots; currentslot++)
+         if (recordpos(currentslot) != 0)
+            return true;
+      return false;
+   }
+
+   public boolean previous() {
+      if (currentslot == -1)
+         currentslot = getHeader(NUMSLOTS_POS);
+      for (currentslot--; currentslot >= 0; currentslot--)
+         if (recordpos(currentslot) != 0)
+            return true;
+      return false;
+   }
+
+   public int getInt(String fldname) {
+      return tx.getInt(blk, fieldpos(fldname));
+   }
+
+   public String getString(String fldname) {
+      int loc = tx.getInt(blk, fieldpos(fldname));
+      if (loc == 0)
+         return "";
+      else if (loc > 0)
+         return tx.getString(blk, loc);
+      else
+         return readOverflow(-loc);
+   }
+
+   public void setInt(String fldname, int val) {
+      setNotNull(fldname);
+      tx.setInt(blk, fieldpos(fldname), val);
+   }
+
+   /**
+    * Stores a string at the specified field
+    * of the current record.
+    * The string overwrites the old value if it fits in its space,
+    * and is otherwise stored in newly allocated space.
+    * A string that the database cannot store is refused
+    * before the record is changed.
+    * @param fldname the name of the field
+    * @param val the string value stored in that field
+    */
+   public void setString(String fldname, String val) {
+      if (!isStorable(val))
+         throw new RuntimeException("cannot store non-ASCII string \"" + val + "\"");
+      setNotNull(fldname);
+      int loc = tx.getInt(blk, fieldpos(fldname));
+      if (loc < 0 && !val.isEmpty() && STR_SIZE(val.length()) <= STR_SIZE(readOverflow(-loc).length())) {
+         writeOverflow(-loc, val);
+         return;
+      }
+      int oldsize = (loc > 0) ? stringSize(tx.getString(blk, loc)) : 0;
+      int size = val.isEmpty() ? 0 : stringSize(val);
+      if (size > 0 && size <= oldsize) {
+         tx.setString(blk, loc, val);
+         if (size < oldsize)
+            setHeader(DEAD_POS, getHeader(DEAD_POS) + oldsize - size);
+         return;
+      }
+      if (loc != 0) {
+         tx.setInt(blk, fieldpos(fldname), 0);
+         if (oldsize > 0)
+            setHeader(DEAD_POS, getHeader(DEAD_POS) + oldsize);
+      }
+      if (size == 0)
+         return;
+      // the allocation may compact the block, which moves the record
+      int pos = allocate(size);
+      if (pos > 0) {
+         clearSpace(pos, size);
+         tx.setString(blk, pos, val);
+         tx.setInt(blk, fieldpos(fldname), pos);
+      }
+      else
+         tx.setInt(blk, fieldpos(fldname), -writeOverflow(val));
+   }
+
+   public void setNull(String fldname) {
+      int pos = recordpos(currentslot);
+      tx.setInt(blk, pos, setBitVal(tx.getInt(blk, pos), ti.bitPosition(fldname), 1));
+   }
+
+   public void setNotNull(String fldname) {
+      int pos = recordpos(currentslot);
+      tx.setInt(blk, pos, setBitVal(tx.getInt(blk, pos), ti.bitPosition(fldname), 0));
+   }
+
+   public boolean isNull(String fldname) {
+      int flags = tx.getInt(blk, recordpos(currentslot));
+      return ((flags >> ti.bitPosition(fldname)) & 1) == 1;
+   }
+
+   /**
+    * Deletes the current record, by emptying its slot.
+    * The space of the record and its strings becomes dead;
+    * the current record does not change.
+    * To get to the next record, call next().
+    */
+   public void delete() {
+      int pos = recordpos(currentslot);
+      int dead = fixedsize;
+      for (String fldname : strfields) {
+         int loc = tx.getInt(blk, pos + INT_SIZE + ti.offset(fldname));
+         if (loc > 0)
+            dead += stringSize(tx.getString(blk, loc));
+      }
+      tx.setInt(blk, slotpos(currentslot), 0);
+      setHeader(DEAD_POS, getHeader(DEAD_POS) + dead);
+   }
+
+   /**
+    * Inserts a new, blank record in the first empty slot,
+    * or in a new slot if none is empty.
+    * Return false if the block does not have room
+    * for the record, even after compaction.
+    * @return false if the insertion was not possible
+    */
+   public boolean insert() {
+      int free = freeSpace();
+      int need = maxsize + INT_SIZE;
+      if (free + getHeader(DEAD_POS) < need)
+         return false;
+      if (free < need && !compact(need))
+         return false;
+      int numslots = getHeader(NUMSLOTS_POS);
+      currentslot = 0;
+      while (currentslot < numslots && recordpos(currentslot) != 0)
+         currentslot++;
+      if (currentslot == numslots) {
+         // the new slot is in free space, which a compaction does not clear,
+         // and must be empty in case allocating the record compacts the block
+         if (recordpos(currentslot) != 0)
+            tx.setInt(blk, slotpos(currentslot), 0);
+         setHeader(NUMSLOTS_POS, numslots + 1);
+      }
+      int pos = allocate(fixedsize);
+      clearSpace(pos, fixedsize);
+      tx.setInt(blk, pos, Integer.MAX_VALUE);
+      tx.setInt(blk, slotpos(currentslot), pos);
+      return true;
+   }
+
+   private int slotpos(int slot) {
+      return DIR_POS + slot*INT_SIZE;
+   }
+
+   private int recordpos(int slot) {
+      return tx.getInt(blk, slotpos(slot));
+   }
+
+   private int fieldpos(String fldname) {
+      return recordpos(currentslot) + INT_SIZE + ti.offset(fldname);
+   }
+
+   private int getHeader(int pos) {
+      return tx.getInt(blk, pos);
+   }
+
+   private void setHeader(int pos, int val) {
+      tx.setInt(blk, pos, val);
+   }
+
+   private int freeSpace() {
+      return BLOCK_SIZE - getHeader(USED_POS) - slotpos(getHeader(NUMSLOTS_POS));
+   }
+
+   /**
+    * Allocates the specified number of bytes at the end of
+    * the free space, compacting the block if necessary.
+    * @return the offset of the space, or 0 if there is no room
+    */
+   private int allocate(int size) {
+      int free = freeSpace();
+      if (free < size && (free + getHeader(DEAD_POS) < size || !compact(size)))
+         return 0;
+      int used = getHeader(USED_POS) + size;
+      setHeader(USED_POS, used);
+      return BLOCK_SIZE - used;
+   }
+
+   /**
+    * Moves the live records and strings to the end of the block,
+    * and drops the empty slots at the end of the directory.
+    * Nothing is written unless the compacted block would have
+    * at least the specified number of free bytes.
+    * @param need the number of free bytes required
+    * @return true if the block was compacted
+    */
+   private boolean compact(int need) {
+      byte[] old = new byte[BLOCK_SIZE];
+      tx.getBytes(blk, 0, old);
+      ByteBuffer oldbb = ByteBuffer.wrap(old);
+      // strings are decoded from a copy of the block, to find their sizes
+      Page oldpage = new Page();
+      oldpage.setBytes(0, old, 0, old.length);
+      int numslots = oldbb.getInt(NUMSLOTS_POS);
+      while (numslots > 0 && oldbb.getInt(slotpos(numslots-1)) == 0)
+         numslots--;
+      byte[] img = new byte[BLOCK_SIZE];
+      ByteBuffer imgbb = ByteBuffer.wrap(img);
+      int end = BLOCK_SIZE;
+      for (int slot=0; slot<numslots; slot++) {
+         int pos = oldbb.getInt(slotpos(slot));
+         if (pos == 0)
+            continue;
+         end -= fixedsize;
+         System.arraycopy(old, pos, img, end, fixedsize);
+         imgbb.putInt(slotpos(slot), end);
+         int recpos = end;
+         for (String fldname : strfields) {
+            int i = recpos + INT_SIZE + ti.offset(fldname);
+            int loc = imgbb.getInt(i);
+            if (loc <= 0)
+               continue;
+            int size = stringSize(oldpage.getString(loc));
+            end -= size;
+            System.arraycopy(old, loc, img, end, size);
+            imgbb.putInt(i, end);
+         }
+      }
+      if (end - slotpos(numslots) < need)
+         return false;
+      imgbb.putInt(NUMSLOTS_POS, numslots);
+      imgbb.putInt(USED_POS, BLOCK_SIZE - end);
+      imgbb.putInt(DEAD_POS, 0);
+      // the free space between the directory and the records is left as it is;
+      // see clearSpace
+      writeChanges(old, img, 0, slotpos(numslots));
+      writeChanges(old, img, end, BLOCK_SIZE);
+      return true;
+   }
+
+   /**
+    * Writes the bytes of the specified range that differ
+    * between the old and new images of the block.
+    * Changed bytes separated by only a few equal ones are
+    * written together, and a long run is split.
+    */
+   private void writeChanges(byte[] old, byte[] img, int from, int to) {
+      int i = from;
+      while (i < to) {
+         if (old[i] == img[i]) {
+            i++;
+            continue;
+         }
+         int start = i, last = i;
+         for (i++; i < to && i - start < maxRun() && i - last <= MERGE_GAP; i++)
+            if (old[i] != img[i])
+               last = i;
+         tx.setBytes(blk, start, Arrays.copyOfRange(img, start, last + 1));
+         i = last + 1;
+      }
+   }
+
+   /**
+    * Returns the largest number of bytes to write in one call
+    * to {@link Transaction#setBytes(Block, int, byte[])}, so that
+    * its log record, which holds both the old and the new bytes,
+    * fits in a log page.
+    */
+   private static int maxRun() {
+      return BLOCK_SIZE / 4;
+   }
+
+   /**
+    * Returns the string at the specified location of the overflow file.
+    */
+   private String readOverflow(int loc) {
+      Block oblk = new Block(ti.overflowFileName(), loc / BLOCK_SIZE);
+      tx.pin(oblk);
+      String val = tx.getString(oblk, loc % BLOCK_SIZE);
+      tx.unpin(oblk);
+      return val;
+   }
+
+   /**
+    * Appends the string to the last block of the overflow file,
+    * or to a new block if the last one is full.
+    * Space is only ever allocated at the end of the file.
+    * An overflow block holds the number of bytes in use,
+    * followed by its strings.
+    * @return the location of the string in the overflow file
+    */
+   private int writeOverflow(String val) {
+      String filename = ti.overflowFileName();
+      int size = STR_SIZE(val.length());
+      if (INT_SIZE + size > BLOCK_SIZE)
+         throw new RuntimeException("cannot store a string of length " + val.length());
+      int last = tx.size(filename) - 1;
+      Block oblk = new Block(filename, last);
+      if (last >= 0) {
+         tx.pin(oblk);
+         if (INT_SIZE + tx.getInt(oblk, 0) + size > BLOCK_SIZE) {
+            tx.unpin(oblk);
+            last = -1;
+         }
+      }
+      if (last < 0) {
+         oblk = tx.append(filename, new RecordFormatter(ti));
+         tx.pin(oblk);
+      }
+      int used = tx.getInt(oblk, 0);
+      int pos = INT_SIZE + used;
+      clearString(oblk, pos);
+      tx.setString(oblk, pos, val);
+      tx.setInt(oblk, 0, used + size);
+      tx.unpin(oblk);
+      return oblk.number() * BLOCK_SIZE + pos;
+   }
+
+   /**
+    * Overwrites the string at the specified location of the
+    * overflow file with a string that is no longer.
+    */
+   private void writeOverflow(int loc, String val) {
+      Block oblk = new Block(ti.overflowFileName(), loc / BLOCK_SIZE);
+      tx.pin(oblk);
+      tx.setString(oblk, loc % BLOCK_SIZE, val);
+      tx.unpin(oblk);
+   }
+
+   /**
+    * Zeroes the specified newly allocated space of the block.
+    * The space may hold the bytes of records that were rolled back,
+    * or that a compaction moved elsewhere.
+    * Its old bytes are logged in full, even where they are already 0,
+    * so that rolling back the writes to the space and then the
+    * compaction restores them, although the undo of a string
+    * restores only the bytes of the old string.
+    */
+   private void clearSpace(int pos, int size) {
+      for (int i=0; i<size; i+=maxRun())
+         tx.setBytes(blk, pos + i, new byte[Math.min(maxRun(), size - i)]);
+   }
+
+   /**
+    * Makes the space at the specified position hold the empty string,
+    * so that the string about to be written there is logged
+    * with a well-formed old value.
+    */
+   private void clearString(Block b, int pos) {
+      if (tx.getInt(b, pos) != 0)
+         tx.setInt(b, pos, 0);
+   }
+
+   /**
+    * Returns the number of bytes that the string takes in a block,
+    * which is a multiple of 4 so that every integer stays aligned.
+    */
+   private static int stringSize(String val) {
+      return align(STR_SIZE(val.length()));
+   }
+
+   private static int align(int size) {
+      return (size + INT_SIZE - 1) / INT_SIZE * INT_SIZE;
+   }
+}
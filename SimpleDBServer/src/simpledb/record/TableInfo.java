@@ -6,6 +6,13 @@ import java.util.*;
 
 /**
  * The metadata about a table and its records.
+ * <p>
+ * A table's records are laid out in one of two ways.
+ * In the fixed layout, every record takes a slot large enough
+ * for the longest value of each field.
+ * In the slotted layout, a string field holds only the location
+ * of its value, which takes just the space its length needs;
+ * see {@link SlottedRecordPage}.
  * @author Edward Sciore
  */
 public class TableInfo {
@@ -14,6 +21,7 @@ public class TableInfo {
    public Map<String,Integer> fieldFlagIndex;
    private int recordlen;
    private String tblname;
+   private boolean slotted;
 
    /**
     * Creates a TableInfo object, given a table name
@@ -24,8 +32,21 @@ public class TableInfo {
     * @param schema the schema of the table's records
     */
    public TableInfo(String tblname, Schema schema) {
+      this(tblname, schema, false);
+   }
+
+   /**
+    * Creates a TableInfo object, given a table name,
+    * schema and record layout. The constructor calculates the
+    * physical offset of each field.
+    * @param tblname the name of the table
+    * @param schema the schema of the table's records
+    * @param slotted true if the table uses the slotted layout
+    */
+   public TableInfo(String tblname, Schema schema, boolean slotted) {
       this.schema = schema;
       this.tblname = tblname;
+      this.slotted = slotted;
       offsets  = new TreeMap<>();
       fieldFlagIndex = new HashMap<>(); // look up table for offsets mapping to flag array index for O(1) look up.
       int pos = 0;
@@ -49,11 +70,25 @@ public class TableInfo {
     * @param recordlen the already-calculated length of each record
     */
    public TableInfo(String tblname, Schema schema, Map<String,Integer> offsets, int recordlen, Map<String, Integer> fieldFlagIndex) {
+      this(tblname, schema, offsets, recordlen, fieldFlagIndex, false);
+   }
+
+   /**
+    * Creates a TableInfo object from the 
+    * specified metadata, for a table with the specified layout.
+    * @param tblname the name of the table
+    * @param schema the schema of the table's records
+    * @param offsets the already-calculated offsets of the fields within a record
+    * @param recordlen the already-calculated length of each record
+    * @param slotted true if the table uses the slotted layout
+    */
+   public TableInfo(String tblname, Schema schema, Map<String,Integer> offsets, int recordlen, Map<String, Integer> fieldFlagIndex, boolean slotted) {
       this.tblname   = tblname;
       this.schema    = schema;
       this.offsets   = offsets;
       this.recordlen = recordlen;
       this.fieldFlagIndex = fieldFlagIndex;
+      this.slotted   = slotted;
    }
 
    public int bitPosition(String fldname) {
@@ -70,6 +105,36 @@ public class TableInfo {
    public String fileName() {
       return tblname + ".tbl";
    }
+
+   /**
+    * Returns the name of the file that holds the strings
+    * that did not fit in the slotted pages of this table.
+    * Currently, the filename is the table name
+    * followed by ".ovf".
+    * @return the name of the table's overflow file
+    */
+   public String overflowFileName() {
+      return tblname + ".ovf";
+   }
+
+   /**
+    * Returns the name of the file that holds
+    * the free-space map of this table.
+    * Currently, the filename is the table name
+    * followed by ".fsm".
+    * @return the name of the table's free-space map file
+    */
+   public String freeSpaceFileName() {
+      return tblname + ".fsm";
+   }
+
+   /**
+    * Returns true if the table's records use the slotted layout.
+    * @return true if the layout is slotted, false if it is fixed
+    */
+   public boolean isSlotted() {
+      return slotted;
+   }
    
    /**
     * Returns the schema of the table's records
@@ -90,6 +155,8 @@ public class TableInfo {
    
    /**
     * Returns the length of a record, in bytes.
+    * In the slotted layout, this length does not include
+    * the values of the string fields.
     * @return the length in bytes of a record
     */
    public int recordLength() {
@@ -98,7 +165,7 @@ public class TableInfo {
    
    private int lengthInBytes(String fldname) {
       int fldtype = schema.type(fldname);
-      if (fldtype == INTEGER)
+      if (fldtype == INTEGER || slotted)
          return INT_SIZE;
       else
          return STR_SIZE(schema.length(fldname));
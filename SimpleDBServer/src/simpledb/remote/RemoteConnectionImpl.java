@@ -11,6 +11,7 @@ import java.rmi.server.UnicastRemoteObject;
 @SuppressWarnings("serial") 
 class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnection {
    private Transaction tx;
+   private boolean readOnly = false;
    
    /**
     * Creates a remote connection
@@ -38,6 +39,30 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
       tx.commit();
    }
    
+   /**
+    * Puts the connection into or out of read-only mode.
+    * The current transaction is committed,
+    * and a new one of the requested kind begins.
+    * The transactions of a read-only connection read a snapshot
+    * of the database, and take no locks and write no log records.
+    * @see simpledb.remote.RemoteConnection#setReadOnly(boolean)
+    * @see simpledb.tx.Transaction#Transaction(boolean)
+    */
+   public void setReadOnly(boolean readOnly) throws RemoteException {
+      if (readOnly == this.readOnly)
+         return;
+      this.readOnly = readOnly;
+      commit();
+   }
+   
+   /**
+    * Returns true if the connection is in read-only mode.
+    * @see simpledb.remote.RemoteConnection#isReadOnly()
+    */
+   public boolean isReadOnly() throws RemoteException {
+      return readOnly;
+   }
+   
 // The following methods are used by the server-side classes.
    
    /**
@@ -55,7 +80,7 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
     */
    void commit() {
       tx.commit();
-      tx = new Transaction();
+      tx = new Transaction(readOnly);
    }
    
    /**
@@ -64,7 +89,7 @@ class RemoteConnectionImpl extends UnicastRemoteObject implements RemoteConnecti
     */
    void rollback() {
       tx.rollback();
-      tx = new Transaction();
+      tx = new Transaction(readOnly);
    }
 }
 
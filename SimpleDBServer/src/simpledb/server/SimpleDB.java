@@ -1,8 +1,12 @@
 package simpledb.server;
 
 import simpledb.file.FileMgr;
+import simpledb.file.MappedFileMgr;
+import simpledb.file.Page;
 import simpledb.buffer.*;
 import simpledb.tx.Transaction;
+import simpledb.tx.concurrency.ConcurrencyMgr;
+import simpledb.tx.recovery.RecoveryMgr;
 import simpledb.log.LogMgr;
 import simpledb.metadata.MetadataMgr;
 import simpledb.planner.*;
@@ -24,7 +28,96 @@ import simpledb.index.planner.IndexUpdatePlanner;
  */
 public class SimpleDB {
    public static int BUFFER_SIZE = 8;
+   /**
+    * The block size of a new database, in bytes;
+    * a power of two between {@link Page#MIN_BLOCK_SIZE} and {@link Page#MAX_BLOCK_SIZE}.
+    * An existing database keeps the block size it was created with.
+    */
+   public static int BLOCK_SIZE = Page.DEFAULT_BLOCK_SIZE;
+   /**
+    * Whether block reads are served from memory mappings of the
+    * database files; see {@link MappedFileMgr}.
+    */
+   public static boolean MAPPED_READS = false;
+   /**
+    * Whether a new database stores strings with one byte
+    * per character; such a database cannot store a string
+    * that has a non-ASCII character, and refuses it with an exception.
+    */
+   public static boolean COMPACT_STRINGS = false;
+   /**
+    * Whether new tables that have string fields use slotted pages,
+    * in which each string takes only the space its value needs;
+    * see {@link simpledb.record.TableInfo#isSlotted()}.
+    * The layout is off by default, since its tables cannot be read
+    * by servers that predate it.
+    */
+   public static boolean SLOTTED_RECORDS = false;
+   /**
+    * The buffer replacement policy: one of "fifo", "clock", "lruk" or "2q".
+    * The policy must be chosen before the buffer manager is initialized.
+    */
+   public static String BUFFER_POLICY = BufferMgr.DEFAULT_POLICY;
+   /**
+    * The number of blocks that a sequential scan reads ahead;
+    * 0 disables read-ahead.
+    */
+   public static int READ_AHEAD = BufferMgr.DEFAULT_READ_AHEAD;
+   /**
+    * The background writer's time between rounds, in milliseconds,
+    * and the maximum number of buffers it writes per round.
+    * An interval of 0 disables the writer.
+    */
+   public static long WRITER_INTERVAL = 100;
+   public static int WRITER_PAGES = 32;
+   /**
+    * Whether a transaction's modified buffers are flushed when it commits.
+    * If false, only the log is flushed at commit,
+    * and recovery redoes the updates of committed transactions.
+    */
+   public static boolean FORCE_AT_COMMIT = false;
+   /**
+    * Whether committing transactions share log writes.
+    * A commit waits at most GROUP_COMMIT_DELAY milliseconds
+    * for other commits, and the log is written at once
+    * when GROUP_COMMIT_BATCH commits are waiting.
+    */
+   public static boolean GROUP_COMMIT = true;
+   public static long GROUP_COMMIT_DELAY = 0;
+   public static int GROUP_COMMIT_BATCH = 64;
+   /**
+    * The number of pages in the log manager's in-memory log buffer.
+    */
+   public static int LOG_BUFFER_PAGES = LogMgr.DEFAULT_BUFFER_PAGES;
+   /**
+    * The lock manager's deadlock policy: "wait-die" or "waits-for".
+    * The policy must be chosen before the first transaction starts.
+    */
+   public static String LOCK_POLICY = ConcurrencyMgr.DEFAULT_POLICY;
+   /**
+    * The number of block locks that a transaction may hold in one file
+    * before its locks on that file are escalated to a single file lock.
+    */
+   public static int LOCK_ESCALATION = ConcurrencyMgr.DEFAULT_ESCALATION;
+   /**
+    * The background checkpointer takes a fuzzy checkpoint once
+    * CHECKPOINT_INTERVAL milliseconds have passed, or
+    * CHECKPOINT_LOG_BYTES bytes have been written to the log,
+    * since the previous one.
+    * A value of 0 disables the corresponding trigger,
+    * and the checkpointer does not run if both are 0.
+    */
+   public static long CHECKPOINT_INTERVAL = 30000;
+   public static int CHECKPOINT_LOG_BYTES = 4 * 1024 * 1024;
    public static String LOG_FILE = "simpledb.log";
+   /**
+    * The number of blocks in each segment file of the log.
+    * Segments that are no longer needed are deleted after a
+    * checkpoint, or moved to LOG_ARCHIVE_DIR if it is not null;
+    * a relative directory is taken to be within the database directory.
+    */
+   public static int LOG_SEGMENT_BLOCKS = LogMgr.DEFAULT_SEGMENT_BLOCKS;
+   public static String LOG_ARCHIVE_DIR = null;
    
    private static FileMgr     fm;
    private static BufferMgr   bm;
@@ -48,6 +141,8 @@ public class SimpleDB {
       }
       initMetadataMgr(isnew, tx);
       tx.commit();
+      if (CHECKPOINT_INTERVAL > 0 || CHECKPOINT_LOG_BYTES > 0)
+         RecoveryMgr.startCheckpointer(CHECKPOINT_INTERVAL, CHECKPOINT_LOG_BYTES);
    }
    
    // The following initialization methods are useful for 
@@ -59,7 +154,10 @@ public class SimpleDB {
     * @param dirname the name of the database directory
     */
    public static void initFileMgr(String dirname) {
-      fm = new FileMgr(dirname);
+      if (MAPPED_READS)
+         fm = new MappedFileMgr(dirname, BLOCK_SIZE, COMPACT_STRINGS);
+      else
+         fm = new FileMgr(dirname, BLOCK_SIZE, COMPACT_STRINGS);
    }
    
    /**
@@ -68,7 +166,11 @@ public class SimpleDB {
     */
    public static void initFileAndLogMgr(String dirname) {
       initFileMgr(dirname);
-      logm = new LogMgr(LOG_FILE);
+      logm = new LogMgr(LOG_FILE, LOG_BUFFER_PAGES, LOG_SEGMENT_BLOCKS);
+      if (LOG_ARCHIVE_DIR != null)
+         logm.archiveTo(LOG_ARCHIVE_DIR);
+      if (GROUP_COMMIT)
+         logm.startGroupCommit(GROUP_COMMIT_DELAY, GROUP_COMMIT_BATCH);
    }
    
    /**
@@ -77,7 +179,9 @@ public class SimpleDB {
     */
    public static void initFileLogAndBufferMgr(String dirname) {
       initFileAndLogMgr(dirname);
-      bm = new BufferMgr(BUFFER_SIZE);
+      bm = new BufferMgr(BUFFER_SIZE, BUFFER_POLICY, READ_AHEAD);
+      if (WRITER_INTERVAL > 0)
+         bm.startWriter(WRITER_INTERVAL, WRITER_PAGES);
    }
    
    /**
@@ -6,6 +6,8 @@ import java.rmi.registry.*;
 public class Startup {
    public static void main(String args[]) throws Exception {
       // configure and initialize the database
+      if (args.length > 1)
+         SimpleDB.BUFFER_POLICY = args[1];
       SimpleDB.init(args[0]);
       
       // create a registry specific for the server on the default port
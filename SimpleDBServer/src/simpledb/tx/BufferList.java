@@ -7,11 +7,16 @@ import java.util.*;
 
 /**
  * Manages the transaction's currently-pinned buffers. 
+ * The list also holds the transaction's buffer rings,
+ * one for each access hint other than NORMAL;
+ * a ring is created when a block is first pinned with its hint,
+ * and released when the transaction completes.
  * @author Edward Sciore
  */
 class BufferList {
    private Map<Block,Buffer> buffers = new HashMap<Block,Buffer>();
    private List<Block> pins = new ArrayList<Block>();
+   private Map<AccessHint,BufferRing> rings = new EnumMap<AccessHint,BufferRing>(AccessHint.class);
    private BufferMgr bufferMgr = SimpleDB.bufferMgr();
    
    /**
@@ -30,7 +35,17 @@ class BufferList {
     * @param blk a reference to the disk block
     */
    void pin(Block blk) {
-      Buffer buff = bufferMgr.pin(blk);
+      pin(blk, AccessHint.NORMAL);
+   }
+   
+   /**
+    * Pins the block using the ring for the specified hint,
+    * and keeps track of the buffer internally.
+    * @param blk a reference to the disk block
+    * @param hint how the block is being accessed
+    */
+   void pin(Block blk, AccessHint hint) {
+      Buffer buff = bufferMgr.pin(blk, ringFor(hint));
       buffers.put(blk, buff);
       pins.add(blk);
    }
@@ -43,13 +58,46 @@ class BufferList {
     * @return a reference to the newly-created block
     */
    Block pinNew(String filename, PageFormatter fmtr) {
-      Buffer buff = bufferMgr.pinNew(filename, fmtr);
+      return pinNew(filename, fmtr, AccessHint.NORMAL);
+   }
+   
+   /**
+    * Appends a new block to the specified file
+    * and pins it, using the ring for the specified hint.
+    * @param filename the name of the file
+    * @param fmtr the formatter used to initialize the new page
+    * @param hint how the block is being accessed
+    * @return a reference to the newly-created block
+    */
+   Block pinNew(String filename, PageFormatter fmtr, AccessHint hint) {
+      Buffer buff = bufferMgr.pinNew(filename, fmtr, ringFor(hint));
       Block blk = buff.block();
       buffers.put(blk, buff);
       pins.add(blk);
       return blk;
    }
    
+   /**
+    * Asks the buffer manager to read the block ahead of time,
+    * using the ring for the specified hint.
+    * The block is not pinned.
+    * @param blk a reference to the disk block
+    * @param hint how the block is being accessed
+    */
+   void prefetch(Block blk, AccessHint hint) {
+      bufferMgr.prefetch(blk, ringFor(hint));
+   }
+   
+   /**
+    * Returns the number of blocks that a sequential scan
+    * using the specified hint should read ahead.
+    * @param hint how the blocks are being accessed
+    * @return the read-ahead distance, in blocks
+    */
+   int readAheadWindow(AccessHint hint) {
+      return bufferMgr.readAheadWindow(ringFor(hint));
+   }
+   
    /**
     * Unpins the specified block.
     * @param blk a reference to the disk block
@@ -63,7 +111,8 @@ class BufferList {
    }
    
    /**
-    * Unpins any buffers still pinned by this transaction.
+    * Unpins any buffers still pinned by this transaction,
+    * and releases its rings.
     */
    void unpinAll() {
       for (Block blk : pins) {
@@ -72,5 +121,19 @@ class BufferList {
       }
       buffers.clear();
       pins.clear();
+      for (BufferRing ring : rings.values())
+         bufferMgr.release(ring);
+      rings.clear();
+   }
+   
+   private BufferRing ringFor(AccessHint hint) {
+      if (hint == AccessHint.NORMAL)
+         return null;
+      BufferRing ring = rings.get(hint);
+      if (ring == null) {
+         ring = bufferMgr.newRing(hint);
+         rings.put(hint, ring);
+      }
+      return ring;
    }
 }
\ No newline at end of file
@@ -1,12 +1,16 @@
 package simpledb.tx;
 
+import static java.sql.Types.*;
 import simpledb.server.SimpleDB;
-import simpledb.file.Block;
+import simpledb.file.*;
 import simpledb.buffer.*;
 import simpledb.tx.recovery.RecoveryMgr;
 import simpledb.tx.concurrency.ConcurrencyMgr;
 
-import java.util.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
 
 /**
  * Provides transaction management for clients,
@@ -15,14 +19,17 @@ import java.util.*;
  * @author Edward Sciore
  */
 public class Transaction {
-   private static int nextTxNum = 0;
+   private static final Logger logger = Logger.getLogger(Transaction.class.getName());
+   private static AtomicInteger nextTxNum = new AtomicInteger();
+   // hint file name -> the mutex held while the file is extended
+   private static Map<String,Object> hintExtensions = new ConcurrentHashMap<String,Object>();
    private static final int END_OF_FILE = -1;
+   private static final int NO_TXNUM = -1;
    private RecoveryMgr    recoveryMgr;
    private ConcurrencyMgr concurMgr;
    private int txnum;
+   private boolean readOnly;
    private BufferList myBuffers = new BufferList();
-   private static List<Transaction> activeTx = new ArrayList<>();
-   private static int nqCheckpointCnt = 0;
 
    /**
     * Creates a new transaction and its associated 
@@ -37,35 +44,63 @@ public class Transaction {
     * is called first.
     */
    public Transaction() {
-      this.initialize();
+      this(false);
    }
 
-   private synchronized void initialize() {
-      nqCheckpointCnt++;
-      if (nqCheckpointCnt == 5) {
-         nqCheckpointCnt = 0;
-         RecoveryMgr.checkpoint();
+   /**
+    * Creates a new transaction, which is read-only if requested.
+    * A read-only transaction reads a snapshot of the database
+    * as of the time it began, and takes no locks;
+    * so it neither waits for updating transactions nor
+    * makes them wait.
+    * Its attempts to modify the database fail.
+    * <p>
+    * Since it writes nothing to the log, a read-only transaction
+    * has no recovery manager and no transaction number,
+    * and is not registered as active;
+    * beginning it costs little more than taking the snapshot.
+    * @param readOnly true if the transaction is read-only
+    * @see ConcurrencyMgr#ConcurrencyMgr(boolean)
+    */
+   public Transaction(boolean readOnly) {
+      this.readOnly = readOnly;
+      if (readOnly) {
+         txnum     = NO_TXNUM;
+         concurMgr = new ConcurrencyMgr(true);
       }
-      txnum       = nextTxNumber();
+      else
+         this.initialize();
+   }
+
+   /**
+    * Numbers the transaction and creates its managers.
+    * The recovery manager registers the transaction as active.
+    */
+   private void initialize() {
+      txnum       = nextTxNum.incrementAndGet();
       recoveryMgr = new RecoveryMgr(txnum);
       concurMgr   = new ConcurrencyMgr();
-      activeTx.add(this);
-//      System.out.println(Arrays.toString(activeTx.toArray()));
-
+      logger.fine(() -> "transaction " + txnum + " started");
    }
    
    /**
     * Commits the current transaction.
-    * Flushes all modified buffers (and their log records),
-    * writes and flushes a commit record to the log,
+    * Writes and flushes a commit record to the log,
+    * if the transaction logged any updates
+    * (the modified buffers are written to disk later),
     * releases all locks, and unpins any pinned buffers.
+    * A read-only transaction just ends its snapshot
+    * and unpins its buffers.
     */
    public synchronized void commit() {
+      if (readOnly) {
+         end();
+         return;
+      }
       recoveryMgr.commit();
-      concurMgr.release(txnum);
+      concurMgr.commit(txnum);
       myBuffers.unpinAll();
-      activeTx.remove(this);
-      System.out.println("transaction " + txnum + " committed");
+      logger.fine(() -> "transaction " + txnum + " committed");
    }
    
    /**
@@ -74,23 +109,30 @@ public class Transaction {
     * flushes those buffers,
     * writes and flushes a rollback record to the log,
     * releases all locks, and unpins any pinned buffers.
+    * A read-only transaction has nothing to undo,
+    * and so it just ends its snapshot and unpins its buffers.
     */
    public void rollback() {
+      if (readOnly) {
+         end();
+         return;
+      }
       recoveryMgr.rollback();
-      concurMgr.release(txnum);
+      concurMgr.rollback(txnum);
       myBuffers.unpinAll();
-      System.out.println("transaction " + txnum + " rolled back");
+      logger.fine(() -> "transaction " + txnum + " rolled back");
    }
    
    /**
     * Flushes all modified buffers.
     * Then goes through the log, rolling back all
     * uncommitted transactions.  Finally, 
-    * writes a quiescent checkpoint record to the log.
+    * writes a checkpoint to the log.
     * This method is called only during system startup,
     * before user transactions begin.
     */
    public void recover() {
+      checkWritable();
       SimpleDB.bufferMgr().flushAll(txnum);
       recoveryMgr.recover();
    }
@@ -101,7 +143,42 @@ public class Transaction {
     * @param blk a reference to the disk block
     */
    public void pin(Block blk) {
-      myBuffers.pin(blk);
+      pin(blk, AccessHint.NORMAL);
+   }
+   
+   /**
+    * Pins the specified block, telling the buffer manager
+    * how the block is being accessed.
+    * Blocks pinned with a hint other than NORMAL are kept
+    * in a small ring of buffers, so that a large scan
+    * does not replace the rest of the buffer pool.
+    * @param blk a reference to the disk block
+    * @param hint how the block is being accessed
+    */
+   public void pin(Block blk, AccessHint hint) {
+      myBuffers.pin(blk, hint);
+   }
+   
+   /**
+    * Asks for the specified block to be read into the
+    * buffer pool in the background, because the transaction
+    * expects to pin it soon.
+    * The block is neither pinned nor locked.
+    * @param blk a reference to the disk block
+    * @param hint how the block will be accessed
+    */
+   public void prefetch(Block blk, AccessHint hint) {
+      myBuffers.prefetch(blk, hint);
+   }
+   
+   /**
+    * Returns the number of blocks that a sequential scan
+    * should prefetch ahead of its current block.
+    * @param hint how the blocks are being accessed
+    * @return the read-ahead distance, in blocks
+    */
+   public int readAheadWindow(AccessHint hint) {
+      return myBuffers.readAheadWindow(hint);
    }
    
    /**
@@ -119,6 +196,8 @@ public class Transaction {
     * specified offset of the specified block.
     * The method first obtains an SLock on the block,
     * then it calls the buffer to retrieve the value.
+    * A read-only transaction instead obtains the value
+    * that its snapshot sees.
     * @param blk a reference to a disk block
     * @param offset the byte offset within the block
     * @return the integer stored at that offset
@@ -126,7 +205,15 @@ public class Transaction {
    public int getInt(Block blk, int offset) {
       concurMgr.sLock(blk, txnum);
       Buffer buff = myBuffers.getBuffer(blk);
-      return buff.getInt(offset);
+      if (!readOnly)
+         return buff.getInt(offset);
+      buff.latchShared();
+      try {
+         return (Integer) concurMgr.snapshotValue(blk, offset, buff, INTEGER);
+      }
+      finally {
+         buff.unlatchShared();
+      }
    }
    
    /**
@@ -134,6 +221,8 @@ public class Transaction {
     * specified offset of the specified block.
     * The method first obtains an SLock on the block,
     * then it calls the buffer to retrieve the value.
+    * A read-only transaction instead obtains the value
+    * that its snapshot sees.
     * @param blk a reference to a disk block
     * @param offset the byte offset within the block
     * @return the string stored at that offset
@@ -141,7 +230,15 @@ public class Transaction {
    public String getString(Block blk, int offset) {
       concurMgr.sLock(blk,txnum);
       Buffer buff = myBuffers.getBuffer(blk);
-      return buff.getString(offset);
+      if (!readOnly)
+         return buff.getString(offset);
+      buff.latchShared();
+      try {
+         return (String) concurMgr.snapshotValue(blk, offset, buff, VARCHAR);
+      }
+      finally {
+         buff.unlatchShared();
+      }
    }
    
    /**
@@ -158,10 +255,20 @@ public class Transaction {
     * @param val the value to be stored
     */
    public void setInt(Block blk, int offset, int val) {
+      checkWritable();
       concurMgr.xLock(blk, txnum);
       Buffer buff = myBuffers.getBuffer(blk);
-      int lsn = recoveryMgr.setInt(buff, offset, val);
-      buff.setInt(offset, val, txnum, lsn);
+      // a checkpoint must not flush the buffer between logging and updating it,
+      // and a snapshot must not read it between saving the version and updating it
+      buff.latchExclusive();
+      try {
+         concurMgr.saveVersion(blk, offset, buff.getInt(offset), txnum);
+         long lsn = recoveryMgr.setInt(buff, offset, val);
+         buff.setInt(offset, val, txnum, lsn);
+      }
+      finally {
+         buff.unlatchExclusive();
+      }
    }
    
    /**
@@ -173,15 +280,77 @@ public class Transaction {
     * writes that record to the log.
     * Finally, it calls the buffer to store the value,
     * passing in the LSN of the log record and the transaction's id. 
+    * A string that the database cannot store is refused
+    * before anything is logged; see {@link Page#isStorable(String)}.
     * @param blk a reference to the disk block
     * @param offset a byte offset within that block
     * @param val the value to be stored
     */
    public void setString(Block blk, int offset, String val) {
+      checkWritable();
+      if (!Page.isStorable(val))
+         throw new RuntimeException("cannot store non-ASCII string \"" + val + "\"");
+      concurMgr.xLock(blk, txnum);
+      Buffer buff = myBuffers.getBuffer(blk);
+      // a checkpoint must not flush the buffer between logging and updating it,
+      // and a snapshot must not read it between saving the version and updating it
+      buff.latchExclusive();
+      try {
+         concurMgr.saveVersion(blk, offset, buff.getString(offset), txnum);
+         long lsn = recoveryMgr.setString(buff, offset, val);
+         buff.setString(offset, val, txnum, lsn);
+      }
+      finally {
+         buff.unlatchExclusive();
+      }
+   }
+
+   /**
+    * Reads bytes from the specified offset of the
+    * specified block, filling the specified array.
+    * The method obtains an XLock on the block, since
+    * it is meant for a transaction that is about to
+    * rewrite the bytes with {@link #setBytes(Block, int, byte[])};
+    * a read-only transaction may not call it.
+    * @param blk a reference to the disk block
+    * @param offset a byte offset within that block
+    * @param dst the array to fill
+    */
+   public void getBytes(Block blk, int offset, byte[] dst) {
+      checkWritable();
       concurMgr.xLock(blk, txnum);
       Buffer buff = myBuffers.getBuffer(blk);
-      int lsn = recoveryMgr.setString(buff, offset, val);
-      buff.setString(offset, val, txnum, lsn);
+      buff.getBytes(offset, dst);
+   }
+
+   /**
+    * Stores bytes at the specified offset
+    * of the specified block.
+    * The method logs the bytes it overwrites and
+    * the new bytes in a single update record,
+    * and then calls the buffer to store them,
+    * as in {@link #setInt(Block, int, int)}.
+    * A log record must fit in a log page, so the
+    * caller should write a large range in several calls.
+    * @param blk a reference to the disk block
+    * @param offset a byte offset within that block
+    * @param val the bytes to be stored
+    */
+   public void setBytes(Block blk, int offset, byte[] val) {
+      checkWritable();
+      concurMgr.xLock(blk, txnum);
+      Buffer buff = myBuffers.getBuffer(blk);
+      buff.latchExclusive();
+      try {
+         byte[] oldval = new byte[val.length];
+         buff.getBytes(offset, oldval);
+         concurMgr.saveVersion(blk, offset, oldval, txnum);
+         long lsn = recoveryMgr.setBytes(buff, offset, val);
+         buff.setBytes(offset, val, txnum, lsn);
+      }
+      finally {
+         buff.unlatchExclusive();
+      }
    }
    
    /**
@@ -208,21 +377,110 @@ public class Transaction {
     * @return a reference to the newly-created disk block
     */
    public Block append(String filename, PageFormatter fmtr) {
+      return append(filename, fmtr, AccessHint.NORMAL);
+   }
+   
+   /**
+    * Appends a new block to the end of the specified file,
+    * as {@link #append(String, PageFormatter)} does,
+    * telling the buffer manager how the block is being accessed.
+    * @param filename the name of the file
+    * @param fmtr the formatter used to initialize the new page
+    * @param hint how the block is being accessed
+    * @return a reference to the newly-created disk block
+    */
+   public Block append(String filename, PageFormatter fmtr, AccessHint hint) {
+      checkWritable();
       Block dummyblk = new Block(filename, END_OF_FILE);
       concurMgr.xLock(dummyblk, txnum);
-      Block blk = myBuffers.pinNew(filename, fmtr);
+      Block blk = myBuffers.pinNew(filename, fmtr, hint);
       unpin(blk);
       return blk;
    }
 
-   public static synchronized List<Transaction> getActiveTx() {
-      return activeTx;
+   /**
+    * Returns the integer stored at the specified offset
+    * of the specified block of a hint file,
+    * such as a table's free-space map.
+    * A hint is read and written without locks or log records,
+    * since a stale or lost hint can cost time but not correctness.
+    * The block must be within the file, as given by {@link #hintSize(String)};
+    * the caller treats the blocks beyond the end as zeros.
+    * @param blk a reference to a block of the hint file
+    * @param offset the byte offset within the block
+    * @return the integer stored at that offset
+    */
+   public int getHint(Block blk, int offset) {
+      BufferMgr bm = SimpleDB.bufferMgr();
+      Buffer buff = bm.pin(blk);
+      try {
+         return buff.getInt(offset);
+      }
+      finally {
+         bm.unpin(buff);
+      }
    }
-   
-   private static synchronized int nextTxNumber() {
-      nextTxNum++;
-      System.out.println("new transaction: " + nextTxNum);
-      return nextTxNum;
+
+   /**
+    * Stores an integer at the specified offset
+    * of the specified block of a hint file,
+    * first extending the file with zeroed blocks if necessary.
+    * The change is neither locked nor logged, and is not undone
+    * if the transaction rolls back; the page is written to disk
+    * whenever its buffer is flushed.
+    * The file is extended while holding a mutex for the file,
+    * so that concurrent extensions do not append more blocks than needed.
+    * @param blk a reference to a block of the hint file
+    * @param offset the byte offset within the block
+    * @param val the value to be stored
+    */
+   public void setHint(Block blk, int offset, int val) {
+      checkWritable();
+      BufferMgr bm = SimpleDB.bufferMgr();
+      String filename = blk.fileName();
+      if (blk.number() >= hintSize(filename)) {
+         synchronized (hintExtensions.computeIfAbsent(filename, f -> new Object())) {
+            while (blk.number() >= hintSize(filename))
+               bm.unpin(bm.pinNew(filename, p -> p.setBytes(0, new byte[Page.BLOCK_SIZE], 0, Page.BLOCK_SIZE)));
+         }
+      }
+      Buffer buff = bm.pin(blk);
+      buff.latchExclusive();
+      try {
+         buff.setInt(offset, val, txnum, -1);
+      }
+      finally {
+         buff.unlatchExclusive();
+         bm.unpin(buff);
+      }
+   }
+
+   /**
+    * Returns the number of blocks in the specified hint file.
+    * Unlike {@link #size(String)}, the method takes no lock.
+    * @param filename the name of the hint file
+    * @return the number of blocks in the file
+    */
+   public int hintSize(String filename) {
+      return SimpleDB.fileMgr().size(filename);
+   }
+
+   /**
+    * Returns true if the transaction is read-only.
+    * @return true if the transaction is read-only
+    */
+   public boolean isReadOnly() {
+      return readOnly;
+   }
+
+   private void end() {
+      concurMgr.commit(txnum);
+      myBuffers.unpinAll();
+   }
+
+   private void checkWritable() {
+      if (readOnly)
+         throw new RuntimeException("cannot modify the database in a read-only transaction");
    }
 
    public String toString() {
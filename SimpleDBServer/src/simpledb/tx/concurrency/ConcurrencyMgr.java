@@ -1,6 +1,8 @@
 package simpledb.tx.concurrency;
 
 import simpledb.file.Block;
+import simpledb.buffer.Buffer;
+import simpledb.server.SimpleDB;
 import java.util.*;
 
 /**
@@ -9,43 +11,152 @@ import java.util.*;
  * The concurrency manager keeps track of which locks the 
  * transaction currently has, and interacts with the
  * global lock table as needed. 
+ * <p>
+ * Locks are taken at two granularities.
+ * Before it locks a block, the transaction locks the block's file
+ * in the matching intention mode (IS or IX).
+ * Once the transaction holds a threshold number of
+ * block locks in a file, its next lock in that file is escalated:
+ * the whole file is locked in mode S or X instead,
+ * and the block locks that the file lock covers are released.
+ * Thus a scan of a large file costs a bounded number of
+ * lock acquisitions, however many blocks it reads.
+ * The threshold is given by {@link SimpleDB#LOCK_ESCALATION}.
+ * <p>
+ * The concurrency manager of a snapshot transaction takes no locks.
+ * Instead, the transaction reads the values that were current
+ * when it began, which are reconstructed from the before-images
+ * that updating transactions save in the global {@link VersionStore}.
  * @author Edward Sciore
  */
 public class ConcurrencyMgr {
+   public static final String DEFAULT_POLICY = "wait-die";
+   public static final int DEFAULT_ESCALATION = 64;
+   private static final int WHOLE_FILE = -2;
    
    /**
     * The global lock table.  This variable is static because all transactions
     * share the same table.
+    * The table uses the deadlock policy named by
+    * {@link SimpleDB#LOCK_POLICY} when the first transaction starts.
     */
-   private static LockTable locktbl = new LockTable();
-   private Map<Block,String> locks  = new HashMap<Block,String>();
+   private static LockTable locktbl = new LockTable(SimpleDB.LOCK_POLICY);
+   private static VersionStore versions = new VersionStore();
+   private Map<Block,LockMode> locks  = new HashMap<Block,LockMode>();
+   private Map<String,LockMode> files = new HashMap<String,LockMode>();
+   private Map<String,Integer> blockCounts = new HashMap<String,Integer>();
+   private int escalation = SimpleDB.LOCK_ESCALATION;
+   private long snapshot = -1;
+   private boolean updated = false;
+   
+   /**
+    * Creates a concurrency manager for an ordinary transaction,
+    * which locks the blocks it reads and writes.
+    */
+   public ConcurrencyMgr() {
+      this(false);
+   }
+   
+   /**
+    * Creates a concurrency manager, which takes a snapshot
+    * of the database if requested.
+    * @param snapshot true if the transaction reads a snapshot instead of locking
+    */
+   public ConcurrencyMgr(boolean snapshot) {
+      if (snapshot)
+         this.snapshot = versions.beginSnapshot();
+   }
    
    /**
     * Obtains an SLock on the block, if necessary.
     * The method will ask the lock table for an SLock
-    * if the transaction currently has no locks on that block.
+    * if the transaction currently has no lock on that block
+    * or on its whole file.
+    * An IS lock on the file is obtained first.
+    * A snapshot transaction takes no lock.
     * @param blk a reference to the disk block
     */
    public void sLock(Block blk, int txnum) {
-      if (locks.get(blk) == null) {
-         locktbl.sLock(blk, txnum);
-         locks.put(blk, "S");
-      }
+      String filename = blk.fileName();
+      if (snapshot >= 0 || locks.get(blk) != null || holds(filename, LockMode.S))
+         return;
+      lockFile(filename, LockMode.IS, txnum);
+      if (blockCount(filename) >= escalation)
+         escalate(filename, LockMode.S, txnum);
+      else
+         lockBlock(blk, LockMode.S, txnum);
    }
    
    /**
     * Obtains an XLock on the block, if necessary.
-    * If the transaction does not have an XLock on that block,
-    * then the method first gets an SLock on that block
-    * (if necessary), and then upgrades it to an XLock.
+    * If the transaction does not have an XLock on that block
+    * or on its whole file, then the method first gets an IX lock
+    * on the file, and then an XLock on the block
+    * (upgrading its SLock, if it has one).
     * @param blk a refrence to the disk block
     */
    public void xLock(Block blk, int txnum) {
-      if (!hasXLock(blk)) {
-         sLock(blk, txnum);
-         locktbl.xLock(blk, txnum);
-         locks.put(blk, "X");
-      }
+      String filename = blk.fileName();
+      if (locks.get(blk) == LockMode.X || holds(filename, LockMode.X))
+         return;
+      lockFile(filename, LockMode.IX, txnum);
+      if (blockCount(filename) >= escalation)
+         escalate(filename, LockMode.X, txnum);
+      else
+         lockBlock(blk, LockMode.X, txnum);
+   }
+   
+   /**
+    * Saves the value that the transaction is about to overwrite,
+    * so that snapshots can still read it.
+    * The caller must hold the exclusive latch of the
+    * buffer that holds the value.
+    * @param blk a reference to the disk block
+    * @param offset the offset of the value in the block
+    * @param oldval the value being overwritten
+    * @param txnum the updating transaction
+    */
+   public void saveVersion(Block blk, int offset, Object oldval, int txnum) {
+      versions.update(blk, offset, oldval, txnum);
+      updated = true;
+   }
+   
+   /**
+    * Returns the value at the specified offset of the specified
+    * block, as the transaction's snapshot sees it.
+    * The caller must hold the shared latch of the
+    * buffer that holds the value.
+    * @param blk a reference to the disk block
+    * @param offset the offset of the value in the block
+    * @param buff the buffer that holds the block
+    * @param type the type of the value, INTEGER or VARCHAR
+    * @return the value as of the start of the snapshot
+    */
+   public Object snapshotValue(Block blk, int offset, Buffer buff, int type) {
+      return versions.read(blk, offset, buff, type, snapshot);
+   }
+   
+   /**
+    * Makes the transaction's updates visible to later snapshots,
+    * and then releases its locks.
+    * @param txnum the committing transaction
+    */
+   public void commit(int txnum) {
+      if (updated)
+         versions.commit(txnum);
+      end(txnum);
+   }
+   
+   /**
+    * Marks the transaction's updates as never visible,
+    * and then releases its locks.
+    * This method must be called after the updates are undone.
+    * @param txnum the transaction that rolled back
+    */
+   public void rollback(int txnum) {
+      if (updated)
+         versions.rollback(txnum);
+      end(txnum);
    }
    
    /**
@@ -55,11 +166,94 @@ public class ConcurrencyMgr {
    public void release(int txnum) {
       for (Block blk : locks.keySet())
          locktbl.unlock(blk, txnum);
+      for (String filename : files.keySet())
+         locktbl.unlock(fileBlock(filename), txnum);
       locks.clear();
+      files.clear();
+      blockCounts.clear();
    }
    
-   private boolean hasXLock(Block blk) {
-      String locktype = locks.get(blk);
-      return locktype != null && locktype.equals("X");
+   /**
+    * Returns the number of lock requests, by all transactions,
+    * that have had to wait.
+    * @return the number of lock waits
+    */
+   public static long lockWaits() {
+      return locktbl.waits();
+   }
+
+   /**
+    * Returns the number of lock requests, by all transactions,
+    * that were refused, aborting their transactions.
+    * Comparing this value under different deadlock policies
+    * shows which one aborts fewer transactions.
+    * @return the number of lock aborts
+    */
+   public static long lockAborts() {
+      return locktbl.aborts();
+   }
+
+   private void end(int txnum) {
+      release(txnum);
+      if (snapshot >= 0) {
+         versions.endSnapshot(snapshot);
+         snapshot = -1;
+      }
+   }
+
+   private boolean holds(String filename, LockMode mode) {
+      LockMode held = files.get(filename);
+      return held != null && held.covers(mode);
+   }
+
+   private void lockFile(String filename, LockMode mode, int txnum) {
+      LockMode held = files.get(filename);
+      if (held != null && held.covers(mode))
+         return;
+      locktbl.lock(fileBlock(filename), txnum, mode);
+      files.put(filename, held == null ? mode : held.join(mode));
+   }
+
+   private void lockBlock(Block blk, LockMode mode, int txnum) {
+      LockMode held = locks.get(blk);
+      locktbl.lock(blk, txnum, mode);
+      if (held == null) {
+         locks.put(blk, mode);
+         blockCounts.put(blk.fileName(), blockCount(blk.fileName()) + 1);
+      }
+      else
+         locks.put(blk, held.join(mode));
+   }
+
+   /**
+    * Locks the whole file in the specified mode, and then
+    * releases the transaction's block locks in that file
+    * that the file lock now covers.
+    */
+   private void escalate(String filename, LockMode mode, int txnum) {
+      lockFile(filename, mode, txnum);
+      LockMode filemode = files.get(filename);
+      Iterator<Map.Entry<Block,LockMode>> iter = locks.entrySet().iterator();
+      while (iter.hasNext()) {
+         Map.Entry<Block,LockMode> e = iter.next();
+         if (e.getKey().fileName().equals(filename) && filemode.covers(e.getValue())) {
+            locktbl.unlock(e.getKey(), txnum);
+            iter.remove();
+            blockCounts.put(filename, blockCount(filename) - 1);
+         }
+      }
+   }
+
+   private int blockCount(String filename) {
+      Integer count = blockCounts.get(filename);
+      return (count == null) ? 0 : count;
+   }
+
+   /**
+    * Returns the dummy block that stands for the whole
+    * of the specified file in the lock table.
+    */
+   private Block fileBlock(String filename) {
+      return new Block(filename, WHOLE_FILE);
    }
 }
@@ -0,0 +1,66 @@
+package simpledb.tx.concurrency;
+
+import java.util.Set;
+
+/**
+ * The strategy that keeps waiting transactions from deadlocking.
+ * The lock table asks the policy whether a transaction may wait
+ * before every wait, telling it which transactions the waiter
+ * waits for; if the policy refuses, the waiter aborts.
+ * The lock table also reports when the set of transactions
+ * that a waiter waits for changes, and when the wait ends.
+ * The lock table calls the policy from many threads at once,
+ * so a policy that keeps state must synchronize it.
+ * <p>
+ * The available policies are named "wait-die" and "waits-for";
+ * see {@link #newPolicy(String)}.
+ * The policy used by the server is given by
+ * {@link simpledb.server.SimpleDB#LOCK_POLICY}.
+ */
+abstract class DeadlockPolicy {
+
+   /**
+    * Creates a new policy object of the specified kind.
+    * @param name the name of the policy
+    * @return a new policy object
+    */
+   static DeadlockPolicy newPolicy(String name) {
+      switch (name.toLowerCase()) {
+         case "wait-die":
+            return new WaitDiePolicy();
+         case "waits-for":
+            return new WaitsForPolicy();
+         default:
+            throw new RuntimeException("unknown deadlock policy " + name);
+      }
+   }
+
+   /**
+    * Decides whether the specified transaction may wait
+    * for the specified transactions.
+    * If the method returns true, the policy regards the
+    * transaction as waiting until {@link #stopWaiting(int)} is called.
+    * @param txnum the waiting transaction
+    * @param blockers the transactions it would wait for
+    * @return true if the transaction may wait, false if it must abort
+    */
+   abstract boolean waitFor(int txnum, Set<Integer> blockers);
+
+   /**
+    * Records that a waiting transaction now waits for
+    * the specified transactions, and decides whether
+    * it may continue to wait, as {@link #waitFor(int, Set)} does.
+    * If the method returns false, the transaction must abort,
+    * and the policy no longer regards it as waiting.
+    * @param txnum the waiting transaction
+    * @param blockers the transactions it now waits for
+    * @return true if the transaction may continue to wait, false if it must abort
+    */
+   abstract boolean updateWaits(int txnum, Set<Integer> blockers);
+
+   /**
+    * Records that the specified transaction is no longer waiting.
+    * @param txnum the transaction
+    */
+   abstract void stopWaiting(int txnum);
+}
@@ -0,0 +1,68 @@
+package simpledb.tx.concurrency;
+
+/**
+ * The modes in which a transaction can hold a lock.
+ * A block is locked in mode S or X.
+ * A whole file can also be locked in one of the intention modes,
+ * which a transaction takes before it locks blocks of the file:
+ * IS before an SLock on a block, and IX before an XLock.
+ * A file lock in mode S or X covers every block of the file,
+ * so that blocks need not be locked one at a time.
+ * Mode SIX is held by a transaction that reads the whole file
+ * and updates some of its blocks.
+ */
+enum LockMode {
+   IS, IX, S, SIX, X;
+
+   // COMPATIBLE[a][b] is true if one transaction may hold a
+   // while another holds b
+   private static final boolean[][] COMPATIBLE = {
+      //          IS     IX     S      SIX    X
+      /* IS  */ { true,  true,  true,  true,  false },
+      /* IX  */ { true,  true,  false, false, false },
+      /* S   */ { true,  false, true,  false, false },
+      /* SIX */ { true,  false, false, false, false },
+      /* X   */ { false, false, false, false, false }
+   };
+
+   /**
+    * Returns true if one transaction may hold this mode
+    * while another transaction holds the specified mode.
+    * @param other the other mode
+    * @return true if the modes are compatible
+    */
+   boolean compatible(LockMode other) {
+      return COMPATIBLE[ordinal()][other.ordinal()];
+   }
+
+   /**
+    * Returns true if holding this mode grants at least
+    * the rights of the specified mode.
+    * @param other the other mode
+    * @return true if this mode covers the other
+    */
+   boolean covers(LockMode other) {
+      return join(other) == this;
+   }
+
+   /**
+    * Returns the weakest mode that covers both this mode
+    * and the specified mode.
+    * This is the mode that a lock is upgraded to
+    * when its holder requests the specified mode.
+    * @param other the other mode
+    * @return the combined mode
+    */
+   LockMode join(LockMode other) {
+      if (this == other)
+         return this;
+      if (this == X || other == X)
+         return X;
+      if (this == IS)
+         return other;
+      if (other == IS)
+         return this;
+      // the remaining pairs are IX, S and SIX in some combination
+      return SIX;
+   }
+}
@@ -2,123 +2,286 @@ package simpledb.tx.concurrency;
 
 import simpledb.file.Block;
 
-import javax.xml.bind.SchemaOutputResolver;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * The lock table, which provides methods to lock and unlock blocks.
- * If a transaction requests a lock that causes a conflict with an
- * existing lock, then that transaction is placed on a wait list.
- * There is only one wait list for all blocks.
- * When the last lock on a block is unlocked, then all transactions
- * are removed from the wait list and rescheduled.
- * If one of those transactions discovers that the lock it is waiting for
- * is still locked, it will place itself back on the wait list.
+ * The table is divided into shards by the hash of the block,
+ * and each shard has its own mutex, so that transactions locking
+ * different blocks rarely contend.
+ * <p>
+ * Each locked block has a set of holders and a FIFO queue of
+ * waiting requests.
+ * A block is locked in one of the {@link LockMode lock modes};
+ * the intention modes are used on the dummy block that stands
+ * for a whole file (see {@link ConcurrencyMgr}).
+ * A transaction that already holds a lock and requests another
+ * mode has its lock upgraded to the {@link LockMode#join join}
+ * of the two modes.
+ * A request is granted at once only if it is compatible with the
+ * holders and no other request is waiting;
+ * otherwise it joins the end of the queue
+ * (a request to upgrade a lock joins the front).
+ * When a lock is released, the requests at the head of the queue
+ * are granted for as long as they are compatible,
+ * and only the threads of those requests are woken.
+ * <p>
+ * Before a request waits, the table asks its {@link DeadlockPolicy}
+ * whether the wait is allowed; if not, the transaction must abort,
+ * and a {@link LockAbortException} is thrown.
+ * The policy is asked again whenever the transactions that a
+ * waiting request waits for change; a request that may no longer
+ * wait is removed from the queue, and its thread is woken to abort.
+ * If a request remains on the wait queue for a certain amount of time
+ * (currently 10 seconds), then the exception is also thrown.
  * @author Edward Sciore
  */
 class LockTable {
    private static final long MAX_TIME = 10000; // 10 seconds
-   
-   private static Map<Block,List<Integer>> locks = new HashMap<>();
-   
+   private static final int SHARDS = 64;
+
+   private Shard[] shards = new Shard[SHARDS];
+   private DeadlockPolicy policy;
+   private AtomicLong waits = new AtomicLong(), aborts = new AtomicLong();
+
+   /**
+    * Creates a lock table that uses the specified deadlock policy.
+    * @param policy the name of the policy
+    */
+   LockTable(String policy) {
+      this.policy = DeadlockPolicy.newPolicy(policy);
+      for (int i=0; i<SHARDS; i++)
+         shards[i] = new Shard();
+   }
+
    /**
     * Grants an SLock on the specified block.
-    * If an XLock exists when the method is called,
-    * then the calling thread will be placed on a wait list
-    * until the lock is released.
-    * If the thread remains on the wait list for a certain 
-    * amount of time (currently 10 seconds),
-    * then an exception is thrown.
+    * If an XLock exists or is waiting when the method is called,
+    * then the calling thread waits until its request is granted.
+    * @param blk a reference to the disk block
+    * @param txnum the requesting transaction
+    */
+   public void sLock(Block blk, int txnum) {
+      acquire(blk, txnum, LockMode.S);
+   }
+
+   /**
+    * Grants an XLock on the specified block.
+    * If the transaction already has an SLock, the lock is upgraded.
+    * If another transaction holds a lock on the block,
+    * or is waiting for one, then the calling thread waits until
+    * its request is granted.
+    * @param blk a reference to the disk block
+    * @param txnum the requesting transaction
+    */
+   void xLock(Block blk, int txnum) {
+      acquire(blk, txnum, LockMode.X);
+   }
+
+   /**
+    * Grants a lock in the specified mode on the specified block.
+    * If the transaction already holds a lock on the block,
+    * the lock is upgraded to cover both modes.
+    * If the lock conflicts with a lock that another transaction
+    * holds or is waiting for, then the calling thread waits until
+    * its request is granted.
+    * @param blk a reference to the disk block
+    * @param txnum the requesting transaction
+    * @param mode the requested mode
+    */
+   void lock(Block blk, int txnum, LockMode mode) {
+      acquire(blk, txnum, mode);
+   }
+
+   /**
+    * Releases the specified transaction's lock on the specified block,
+    * and grants the waiting requests that have become compatible.
     * @param blk a reference to the disk block
+    * @param txnum the transaction releasing the lock
     */
-   public synchronized void sLock(Block blk, int txnum) {
+   void unlock(Block blk, int txnum) {
+      Shard shard = shardOf(blk);
+      shard.mutex.lock();
       try {
-         while (hasXlock(blk)) {
-            if (!olderTxExists(blk, txnum))
-                wait(MAX_TIME);
-             else
-                 throw new LockAbortException();
-         }
-         if (hasXlock(blk))
-             throw new LockAbortException();
-          addLock(blk, txnum);
+         Lock lock = shard.locks.get(blk);
+         if (lock == null)
+            return;
+         lock.holders.remove(txnum);
+         grantWaiting(shard, blk, lock);
       }
-      catch(InterruptedException e) {
-         throw new LockAbortException();
+      finally {
+         shard.mutex.unlock();
       }
    }
 
-   private void addLock(Block blk, int txnum) {
-       if (!locks.containsKey(blk)) {
-           ArrayList<Integer> lst = new ArrayList<>();
-           locks.put(blk, lst);
-       }
-       locks.get(blk).add(txnum);
+   /**
+    * Returns the number of requests that have had to wait.
+    * @return the number of waits
+    */
+   long waits() {
+      return waits.get();
    }
-   
+
    /**
-    * Grants an XLock on the specified block.
-    * If a lock of any type exists when the method is called,
-    * then the calling thread will be placed on a wait list
-    * until the locks are released.
-    * If the thread remains on the wait list for a certain 
-    * amount of time (currently 10 seconds),
-    * then an exception is thrown.
-    * @param blk a reference to the disk block
+    * Returns the number of requests that have been refused,
+    * causing their transactions to abort.
+    * @return the number of aborts
     */
-   synchronized void xLock(Block blk, int txnum) {
+   long aborts() {
+      return aborts.get();
+   }
+
+   private void acquire(Block blk, int txnum, LockMode mode) {
+      Shard shard = shardOf(blk);
+      shard.mutex.lock();
       try {
-         while (hasOtherLocks(blk)) {
-             if (!olderTxExists(blk, txnum))
-                 wait(MAX_TIME);
-             else
-                 throw new LockAbortException();
+         Lock lock = shard.locks.get(blk);
+         if (lock == null) {
+            lock = new Lock();
+            shard.locks.put(blk, lock);
          }
-         if (hasOtherLocks(blk))
-            throw new LockAbortException();
-         addLock(blk, -1*txnum);
+         LockMode held = lock.holders.get(txnum);
+         if (held != null && held.covers(mode))
+            return;
+         boolean upgrade = (held != null);
+         if (upgrade)
+            mode = held.join(mode);
+         if ((upgrade || lock.queue.isEmpty()) && compatible(lock, txnum, mode)) {
+            lock.holders.put(txnum, mode);
+            return;
+         }
+         Request req = new Request(txnum, mode, shard.mutex.newCondition());
+         if (upgrade)
+            lock.queue.addFirst(req);
+         else
+            lock.queue.addLast(req);
+         if (!policy.waitFor(txnum, blockers(lock, req)))
+            refuse(shard, blk, lock, req);
+         waits.incrementAndGet();
+         long deadline = System.currentTimeMillis() + MAX_TIME;
+         try {
+            long remaining = MAX_TIME;
+            while (!req.granted && !req.refused && remaining > 0) {
+               req.ready.await(remaining, TimeUnit.MILLISECONDS);
+               remaining = deadline - System.currentTimeMillis();
+            }
+         }
+         catch (InterruptedException e) {
+            // the request is refused below, unless it was granted meanwhile
+            Thread.currentThread().interrupt();
+         }
+         finally {
+            policy.stopWaiting(txnum);
+         }
+         if (!req.granted)
+            refuse(shard, blk, lock, req);
       }
-      catch(InterruptedException e) {
-         throw new LockAbortException();
+      finally {
+         shard.mutex.unlock();
       }
    }
-   
+
    /**
-    * Releases a lock on the specified block.
-    * If this lock is the last lock on that block,
-    * then the waiting transactions are notified.
-    * @param blk a reference to the disk block
+    * Removes a request that will not be granted from its queue,
+    * and throws the exception that aborts its transaction.
+    * Requests behind it may then be granted.
+    */
+   private void refuse(Shard shard, Block blk, Lock lock, Request req) {
+      lock.queue.remove(req);
+      grantWaiting(shard, blk, lock);
+      aborts.incrementAndGet();
+      throw new LockAbortException();
+   }
+
+   /**
+    * Grants the compatible requests at the head of the queue,
+    * waking their threads, and tells the policy what the
+    * remaining requests now wait for.
+    * A request that the policy no longer allows to wait
+    * is removed, and its thread is woken to abort;
+    * the requests behind it are then considered again.
+    * A lock with no holders and no waiters is removed.
+    */
+   private void grantWaiting(Shard shard, Block blk, Lock lock) {
+      Iterator<Request> iter = lock.queue.iterator();
+      while (iter.hasNext()) {
+         Request req = iter.next();
+         if (!compatible(lock, req.txnum, req.mode))
+            break;
+         iter.remove();
+         lock.holders.put(req.txnum, req.mode);
+         req.granted = true;
+         req.ready.signal();
+      }
+      for (Request req : lock.queue)
+         if (!policy.updateWaits(req.txnum, blockers(lock, req))) {
+            lock.queue.remove(req);
+            req.refused = true;
+            req.ready.signal();
+            grantWaiting(shard, blk, lock);
+            return;
+         }
+      if (lock.holders.isEmpty() && lock.queue.isEmpty())
+         shard.locks.remove(blk);
+   }
+
+   /**
+    * Determines whether the specified transaction could
+    * hold the lock in the specified mode, given the current holders.
+    */
+   private boolean compatible(Lock lock, int txnum, LockMode mode) {
+      for (Map.Entry<Integer,LockMode> e : lock.holders.entrySet())
+         if (e.getKey() != txnum && !mode.compatible(e.getValue()))
+            return false;
+      return true;
+   }
+
+   /**
+    * Returns the transactions that the specified request waits for:
+    * the conflicting holders, and the conflicting requests ahead of it.
     */
-   synchronized void unlock(Block blk, int txnum) {
-       if(locks.get(blk).size() > 1 && !locks.get(blk).contains(0-txnum)) {
-           locks.get(blk).remove((Integer) txnum);
-       } else {
-           locks.remove(blk);
-           notifyAll();
-       }
-   }
-
-   private boolean olderTxExists(Block blk, int txnum) {
-       for (Integer existingTxnum: locks.get(blk)) {
-           if (Math.abs(existingTxnum) < txnum)
-               return true;
-       }
-       return false;
-   }
-   
-   private boolean hasXlock(Block blk) {
-       if (locks.get(blk) == null)
-           return false;
-       for (Integer existingTxnum: locks.get(blk)) {
-           if (existingTxnum < 0)
-           return true;
-       }
-        return false;
-   }
-
-    private boolean hasOtherLocks(Block blk) {
-        return locks.get(blk) != null && locks.get(blk).size() > 1;
-    }
+   private Set<Integer> blockers(Lock lock, Request req) {
+      Set<Integer> result = new HashSet<Integer>();
+      for (Map.Entry<Integer,LockMode> e : lock.holders.entrySet())
+         if (e.getKey() != req.txnum && !req.mode.compatible(e.getValue()))
+            result.add(e.getKey());
+      for (Request other : lock.queue) {
+         if (other == req)
+            break;
+         if (other.txnum != req.txnum && !req.mode.compatible(other.mode))
+            result.add(other.txnum);
+      }
+      return result;
+   }
 
+   private Shard shardOf(Block blk) {
+      return shards[(blk.hashCode() & 0x7fffffff) % SHARDS];
+   }
 
+   private static class Shard {
+      ReentrantLock mutex = new ReentrantLock();
+      Map<Block,Lock> locks = new HashMap<Block,Lock>();
+   }
+
+   private static class Lock {
+      Map<Integer,LockMode> holders = new HashMap<Integer,LockMode>();
+      Deque<Request> queue = new ArrayDeque<Request>();
+   }
+
+   private static class Request {
+      int txnum;
+      LockMode mode;
+      boolean granted = false, refused = false;
+      Condition ready;
+
+      Request(int txnum, LockMode mode, Condition ready) {
+         this.txnum = txnum;
+         this.mode = mode;
+         this.ready = ready;
+      }
+   }
 }
@@ -0,0 +1,283 @@
+package simpledb.tx.concurrency;
+
+import static java.sql.Types.INTEGER;
+import simpledb.file.*;
+import simpledb.buffer.Buffer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * The store of before-images that lets snapshot transactions
+ * read old versions of values without taking locks.
+ * Whenever a transaction modifies a value, the value it replaces
+ * is saved in the version chain of the value's block.
+ * <p>
+ * Time is measured by a counter that ticks whenever a
+ * transaction commits or rolls back.
+ * A snapshot sees the updates of the transactions that committed
+ * at or before the time it began, and no others.
+ * To read a value as of a snapshot, the store walks the block's
+ * chain from the newest version back, and collects the updates
+ * that the snapshot cannot see.
+ * If there are any, it restores their before-images to a copy of
+ * the buffer's page and reads the value from the copy;
+ * the whole page is restored, rather than just the value being read,
+ * because an update may have overwritten part of it,
+ * such as when a slotted page is compacted.
+ * Each thread keeps the last page it restored, which stays valid
+ * for the same snapshot until a version is added to the chain:
+ * every update adds a version, except the undoing of a rollback,
+ * which leaves the restored page unchanged.
+ * <p>
+ * A version is discarded once its transaction has ended
+ * before every active snapshot began,
+ * since no snapshot can then need it.
+ * Versions of temporary files are never kept,
+ * since no other transaction reads those files.
+ * <p>
+ * Snapshots begin and end without locking: the active snapshots
+ * are kept in a concurrent map from their start times to their counts.
+ * A snapshot registers its start time and then checks that
+ * the clock has not moved, so that a concurrent prune either
+ * sees the registration or computes a horizon no later than the
+ * snapshot's start.
+ * The clock is advanced only after the ending transaction's time
+ * has been recorded, so a snapshot never sees a time
+ * whose transaction is not yet known to have ended.
+ */
+class VersionStore {
+   private static final int PRUNE_INTERVAL = 64;
+
+   private Map<Block,Chain> chains = new ConcurrentHashMap<Block,Chain>();
+   // txnum -> end time; negative if the transaction rolled back
+   private Map<Integer,Long> ended = new ConcurrentHashMap<Integer,Long>();
+   // start time -> number of active snapshots that began then
+   private ConcurrentNavigableMap<Long,Integer> snapshots = new ConcurrentSkipListMap<Long,Integer>();
+   private volatile long clock = 0;
+   private final Object clockLock = new Object();
+   private ThreadLocal<Restored> restored = ThreadLocal.withInitial(Restored::new);
+
+   /**
+    * Saves the value that the specified transaction
+    * is about to overwrite.
+    * The caller must hold the buffer's exclusive latch,
+    * so that no snapshot reads the buffer between
+    * the saving of the version and the update.
+    * @param blk a reference to the disk block
+    * @param offset the offset of the value in the block
+    * @param oldval the value being overwritten
+    * @param txnum the updating transaction
+    */
+   void update(Block blk, int offset, Object oldval, int txnum) {
+      if (blk.fileName().startsWith("temp"))
+         return;
+      Version v = new Version(offset, oldval, txnum);
+      while (true) {
+         Chain chain = chains.computeIfAbsent(blk, b -> new Chain());
+         if (chain.add(v))
+            return;
+         // the chain was discarded by a concurrent prune
+         chains.remove(blk, chain);
+      }
+   }
+
+   /**
+    * Returns the value at the specified offset of the specified
+    * block, as the snapshot that began at the specified time sees it.
+    * The caller must hold the buffer's shared latch.
+    * @param blk a reference to the disk block
+    * @param offset the offset of the value in the block
+    * @param buff the buffer that holds the block
+    * @param type the type of the value, INTEGER or VARCHAR
+    * @param snapshot the time at which the snapshot began
+    * @return the value visible to the snapshot
+    */
+   Object read(Block blk, int offset, Buffer buff, int type, long snapshot) {
+      Chain chain = chains.get(blk);
+      Page pg = (chain == null) ? null : chain.restore(buff, snapshot);
+      if (pg == null)
+         return (type == INTEGER) ? (Object) buff.getInt(offset) : buff.getString(offset);
+      return (type == INTEGER) ? (Object) pg.getInt(offset) : pg.getString(offset);
+   }
+
+   /**
+    * Begins a snapshot at the current time.
+    * @return the time at which the snapshot began
+    */
+   long beginSnapshot() {
+      while (true) {
+         long time = clock;
+         snapshots.merge(time, 1, Integer::sum);
+         if (clock == time)
+            return time;
+         // a transaction ended meanwhile, and a prune may have missed the registration
+         deregister(time);
+      }
+   }
+
+   /**
+    * Ends the snapshot that began at the specified time.
+    * @param snapshot the time at which the snapshot began
+    */
+   void endSnapshot(long snapshot) {
+      boolean oldest = (snapshot == snapshots.firstKey());
+      deregister(snapshot);
+      if (oldest)
+         prune();
+   }
+
+   private void deregister(long snapshot) {
+      snapshots.merge(snapshot, -1, (count, one) -> (count + one == 0) ? null : count + one);
+   }
+
+   /**
+    * Records that the specified transaction has committed,
+    * making its updates visible to later snapshots.
+    * This method must be called before the transaction
+    * releases its locks.
+    * @param txnum the committing transaction
+    */
+   void commit(int txnum) {
+      end(txnum, true);
+   }
+
+   /**
+    * Records that the specified transaction has rolled back.
+    * Its versions stay invisible to every snapshot;
+    * since its updates have been undone,
+    * restoring their before-images changes nothing.
+    * @param txnum the transaction that rolled back
+    */
+   void rollback(int txnum) {
+      end(txnum, false);
+   }
+
+   private void end(int txnum, boolean committed) {
+      long time;
+      synchronized (clockLock) {
+         time = clock + 1;
+         ended.put(txnum, committed ? time : -time);
+         clock = time;
+      }
+      if (time % PRUNE_INTERVAL == 0)
+         prune();
+   }
+
+   /**
+    * Determines whether the updates of the specified transaction
+    * are visible to the snapshot that began at the specified time.
+    */
+   private boolean visible(int txnum, long snapshot) {
+      Long time = ended.get(txnum);
+      return time != null && time > 0 && time <= snapshot;
+   }
+
+   /**
+    * Discards the versions of every transaction that ended
+    * before the oldest active snapshot began,
+    * and then forgets those transactions.
+    * The clock is read before the snapshots; see {@link #beginSnapshot()}.
+    */
+   private synchronized void prune() {
+      long now = clock;
+      Map.Entry<Long,Integer> oldest = snapshots.firstEntry();
+      long horizon = (oldest == null) ? now : Math.min(now, oldest.getKey());
+      for (Map.Entry<Block,Chain> e : chains.entrySet())
+         if (e.getValue().prune(horizon))
+            chains.remove(e.getKey(), e.getValue());
+      ended.values().removeIf(time -> Math.abs(time) <= horizon);
+   }
+
+   /**
+    * The versions saved for one block, oldest first.
+    */
+   private class Chain {
+      private List<Version> versions = new ArrayList<Version>();
+      private int adds = 0;
+      private boolean discarded = false;
+
+      synchronized boolean add(Version v) {
+         if (discarded)
+            return false;
+         versions.add(v);
+         adds++;
+         return true;
+      }
+
+      /**
+       * Restores the block as the snapshot sees it,
+       * in the calling thread's page.
+       * @return the restored page, or null if the snapshot
+       * can see every version, so the buffer is up to date
+       */
+      synchronized Page restore(Buffer buff, long snapshot) {
+         Restored r = restored.get();
+         if (r.chain == this && r.snapshot == snapshot && r.adds == adds)
+            return r.changed ? r.page : null;
+         r.chain = this;
+         r.snapshot = snapshot;
+         r.adds = adds;
+         r.changed = false;
+         for (int i=versions.size()-1; i>=0; i--) {
+            Version v = versions.get(i);
+            // updates to a block are ordered by its XLock,
+            // so once one is visible, all older ones are too
+            if (visible(v.txnum, snapshot))
+               break;
+            if (!r.changed)
+               buff.copyTo(r.page);
+            r.changed = true;
+            if (v.oldval instanceof Integer)
+               r.page.setInt(v.offset, (Integer) v.oldval);
+            else if (v.oldval instanceof byte[]) {
+               byte[] b = (byte[]) v.oldval;
+               r.page.setBytes(v.offset, b, 0, b.length);
+            }
+            else
+               r.page.setString(v.offset, (String) v.oldval);
+         }
+         return r.changed ? r.page : null;
+      }
+
+      /**
+       * Removes the versions of transactions that ended
+       * at or before the specified time.
+       * An empty chain is discarded, and may no longer be added to.
+       * @return true if the chain was discarded
+       */
+      synchronized boolean prune(long horizon) {
+         versions.removeIf(v -> {
+            Long time = ended.get(v.txnum);
+            return time != null && Math.abs(time) <= horizon;
+         });
+         discarded = versions.isEmpty();
+         return discarded;
+      }
+   }
+
+   /**
+    * The block that a thread last restored.
+    */
+   private static class Restored {
+      Chain chain;
+      long snapshot;
+      int adds;
+      boolean changed;
+      Page page = new Page();
+   }
+
+   private static class Version {
+      int offset;
+      Object oldval;
+      int txnum;
+
+      Version(int offset, Object oldval, int txnum) {
+         this.offset = offset;
+         this.oldval = oldval;
+         this.txnum = txnum;
+      }
+   }
+}
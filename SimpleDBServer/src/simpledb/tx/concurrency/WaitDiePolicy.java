@@ -0,0 +1,28 @@
+package simpledb.tx.concurrency;
+
+import java.util.Set;
+
+/**
+ * The wait-die policy.
+ * Transaction numbers increase with age, so a transaction
+ * may wait only for transactions younger than itself;
+ * a transaction that would wait for an older one aborts instead.
+ * Every wait is thus from an older to a younger transaction,
+ * and no cycle of waits can form.
+ * The policy keeps no state.
+ */
+class WaitDiePolicy extends DeadlockPolicy {
+
+   boolean waitFor(int txnum, Set<Integer> blockers) {
+      for (int other : blockers)
+         if (other < txnum)
+            return false;
+      return true;
+   }
+
+   boolean updateWaits(int txnum, Set<Integer> blockers) {
+      return waitFor(txnum, blockers);
+   }
+
+   void stopWaiting(int txnum) {}
+}
@@ -0,0 +1,61 @@
+package simpledb.tx.concurrency;
+
+import java.util.*;
+
+/**
+ * The waits-for graph policy.
+ * The policy keeps a graph with an edge from each waiting
+ * transaction to each transaction that it waits for.
+ * A transaction may wait unless its wait would close
+ * a cycle in the graph, in which case it aborts.
+ * The same check is made when the transactions that a
+ * waiter waits for change, since the new edges can also
+ * close a cycle.
+ * Unlike wait-die, the policy aborts a transaction only
+ * when there is an actual deadlock.
+ */
+class WaitsForPolicy extends DeadlockPolicy {
+   private Map<Integer,Set<Integer>> waitsFor = new HashMap<Integer,Set<Integer>>();
+
+   synchronized boolean waitFor(int txnum, Set<Integer> blockers) {
+      if (reaches(blockers, txnum))
+         return false;
+      waitsFor.put(txnum, blockers);
+      return true;
+   }
+
+   synchronized boolean updateWaits(int txnum, Set<Integer> blockers) {
+      if (!waitsFor.containsKey(txnum))
+         return true;
+      if (reaches(blockers, txnum)) {
+         waitsFor.remove(txnum);
+         return false;
+      }
+      waitsFor.put(txnum, blockers);
+      return true;
+   }
+
+   synchronized void stopWaiting(int txnum) {
+      waitsFor.remove(txnum);
+   }
+
+   /**
+    * Determines whether the target transaction can be reached
+    * from any of the start transactions by following edges.
+    */
+   private boolean reaches(Set<Integer> start, int target) {
+      Set<Integer> visited = new HashSet<Integer>();
+      Deque<Integer> pending = new ArrayDeque<Integer>(start);
+      while (!pending.isEmpty()) {
+         int tx = pending.pop();
+         if (tx == target)
+            return true;
+         if (visited.add(tx)) {
+            Set<Integer> next = waitsFor.get(tx);
+            if (next != null)
+               pending.addAll(next);
+         }
+      }
+      return false;
+   }
+}
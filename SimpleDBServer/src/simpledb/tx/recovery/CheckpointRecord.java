@@ -1,6 +1,7 @@
 package simpledb.tx.recovery;
 
 import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
 
 /**
  * The CHECKPOINT log record.
@@ -20,15 +21,14 @@ class CheckpointRecord implements LogRecord {
     */
    public CheckpointRecord(BasicLogRecord rec) {}
    
-   /** 
-    * Writes a checkpoint record to the log.
+   /**
+    * Encodes the record in the specified log buffer.
     * This log record contains the CHECKPOINT operator,
     * and nothing else.
-    * @return the LSN of the last log value
+    * @param buf the log buffer
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {CHECKPOINT};
-      return logMgr.append(rec);
+   public void writeTo(LogBuffer buf) {
+      buf.startRecord(CHECKPOINT);
    }
    
    public int op() {
@@ -48,6 +48,12 @@ class CheckpointRecord implements LogRecord {
     * contains no undo information.
     */
    public void undo(int txnum) {}
+
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no redo information.
+    */
+   public void redo(int txnum) {}
    
    public String toString() {
       return "<CHECKPOINT>";
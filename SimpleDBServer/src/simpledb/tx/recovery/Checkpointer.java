@@ -0,0 +1,75 @@
+package simpledb.tx.recovery;
+
+import simpledb.server.SimpleDB;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A background thread that takes fuzzy checkpoints.
+ * A checkpoint is taken once a fixed time has passed
+ * since the previous one, or once a fixed number of bytes
+ * have been written to the log since the previous one,
+ * whichever comes first.
+ * No checkpoint is taken while the log is idle.
+ * A checkpoint that fails is logged, and the next one
+ * is taken as usual.
+ * @see RecoveryMgr#checkpoint()
+ */
+class Checkpointer extends Thread {
+   private static final long POLL_INTERVAL = 100; // milliseconds
+   private static final Logger logger = Logger.getLogger(Checkpointer.class.getName());
+
+   private long interval;
+   private int logBytes;
+   private volatile boolean stopped = false;
+
+   /**
+    * Creates a checkpointer.
+    * The checkpointer is a daemon thread, and must be started
+    * by the caller.
+    * @param interval the time between checkpoints, in milliseconds, or 0
+    * @param logBytes the log volume between checkpoints, in bytes, or 0
+    */
+   Checkpointer(long interval, int logBytes) {
+      super("simpledb-checkpointer");
+      this.interval = interval;
+      this.logBytes = logBytes;
+      setDaemon(true);
+   }
+
+   public void run() {
+      long lastTime = System.currentTimeMillis();
+      long lastLSN = SimpleDB.logMgr().lastLSN();
+      while (!stopped) {
+         try {
+            Thread.sleep(POLL_INTERVAL);
+         }
+         catch (InterruptedException e) {
+            continue; // stopped
+         }
+         long now = System.currentTimeMillis();
+         long lsn = SimpleDB.logMgr().lastLSN();
+         boolean due = (interval > 0 && now - lastTime >= interval)
+               || (logBytes > 0 && lsn - lastLSN >= logBytes);
+         if (!due)
+            continue;
+         if (lsn != lastLSN)
+            try {
+               RecoveryMgr.checkpoint();
+            }
+            catch (RuntimeException e) {
+               logger.log(Level.WARNING, "checkpoint failed", e);
+            }
+         lastTime = now;
+         lastLSN = SimpleDB.logMgr().lastLSN();
+      }
+   }
+
+   /**
+    * Stops the checkpointer after its current checkpoint.
+    */
+   void shutdown() {
+      stopped = true;
+      interrupt();
+   }
+}
@@ -0,0 +1,167 @@
+package simpledb.tx.recovery;
+
+import simpledb.server.SimpleDB;
+import simpledb.buffer.*;
+import simpledb.file.Block;
+import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
+
+/**
+ * The COMPENSATION log record, which is written whenever
+ * an update is undone, and holds the value that the undo restored.
+ * Compensation records are redo-only:
+ * recovery redoes them along with every other update,
+ * so that a rolled-back transaction's changes are undone again
+ * after a crash, but never undoes them.
+ * <p>
+ * The record also holds the undo-next LSN: the LSN of the
+ * undone update's predecessor in the transaction's chain,
+ * which is the next update to undo.
+ * A transaction whose rollback was interrupted by a crash
+ * is therefore undone by recovery from that LSN, and the
+ * updates it had already compensated are not undone again.
+ */
+class CompensationRecord implements UpdateRecord {
+   private int txnum, offset;
+   private Object val;
+   private Block blk;
+   private long undoNext;
+
+   /**
+    * Creates a new compensation record.
+    * @param txnum the ID of the transaction whose update was undone
+    * @param blk the block containing the value
+    * @param offset the offset of the value in the block
+    * @param val the restored value, an Integer, a String or a byte array
+    * @param undoNext the LSN of the next update to undo, or -1
+    */
+   public CompensationRecord(int txnum, Block blk, int offset, Object val, long undoNext) {
+      this.txnum = txnum;
+      this.blk = blk;
+      this.offset = offset;
+      this.val = val;
+      this.undoNext = undoNext;
+   }
+
+   /**
+    * Creates a log record by reading seven other values from the log.
+    * @param rec the basic log record
+    */
+   public CompensationRecord(BasicLogRecord rec) {
+      txnum = rec.nextInt();
+      blk = RecoveryMgr.fileTable.readBlock(rec);
+      offset = rec.nextInt();
+      int op = rec.nextInt();
+      if (op == SETINT)
+         val = rec.nextInt();
+      else if (op == SETSTRING)
+         val = rec.nextString();
+      else
+         val = rec.nextBytes();
+      undoNext = rec.nextLong();
+   }
+
+   /**
+    * Encodes the record in the specified log buffer.
+    * This log record contains the COMPENSATION operator,
+    * followed by the transaction id, the file id, number,
+    * and offset of the modified block, the operator of the
+    * undone record (SETINT, SETSTRING or SETBYTES), the restored value,
+    * and the undo-next LSN.
+    * @param buf the log buffer
+    */
+   public void writeTo(LogBuffer buf) {
+      buf.startRecord(COMPENSATION);
+      buf.putInt(txnum);
+      RecoveryMgr.fileTable.writeBlock(buf, blk);
+      buf.putInt(offset);
+      if (val instanceof String) {
+         buf.putInt(SETSTRING);
+         buf.putString((String) val);
+      }
+      else if (val instanceof byte[]) {
+         buf.putInt(SETBYTES);
+         buf.putBytes((byte[]) val);
+      }
+      else {
+         buf.putInt(SETINT);
+         buf.putInt((Integer) val);
+      }
+      buf.putLong(undoNext);
+   }
+
+   public int op() {
+      return COMPENSATION;
+   }
+
+   public int txNumber() {
+      return txnum;
+   }
+
+   public Block block() {
+      return blk;
+   }
+
+   /**
+    * Returns -1, because compensation records are not
+    * part of the chain of a transaction's updates.
+    */
+   public long prevLSN() {
+      return -1;
+   }
+
+   /**
+    * Returns the LSN of the next update of the transaction
+    * to undo, or -1 if every update has been undone.
+    * @return the undo-next LSN
+    */
+   long undoNextLSN() {
+      return undoNext;
+   }
+
+   public String toString() {
+      Object shown = (val instanceof byte[]) ? ((byte[]) val).length : val;
+      return "<COMPENSATION " + txnum + " " + blk + " " + offset + " " + shown + " " + undoNext + ">";
+   }
+
+   /**
+    * Does nothing, because a compensation record is never undone.
+    */
+   public void undo(int txnum) {}
+
+   /**
+    * Returns null, because a compensation record is never undone.
+    */
+   public CompensationRecord compensation() {
+      return null;
+   }
+
+   /**
+    * Stores the restored value in the specified buffer,
+    * which must be pinned to the record's block.
+    * @param buff the buffer holding the block
+    * @param txnum the ID of the transaction performing the undo
+    * @param lsn the LSN of this record
+    */
+   void apply(Buffer buff, int txnum, long lsn) {
+      if (val instanceof String)
+         buff.setString(offset, (String) val, txnum, lsn);
+      else if (val instanceof byte[])
+         buff.setBytes(offset, (byte[]) val, txnum, lsn);
+      else
+         buff.setInt(offset, (Integer) val, txnum, lsn);
+   }
+
+   /**
+    * Restores the value saved in the log record.
+    * The method pins a buffer to the specified block,
+    * stores the value (using a dummy LSN), and unpins the buffer.
+    * @see simpledb.tx.recovery.LogRecord#redo(int)
+    */
+   public void redo(int txnum) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      apply(buff, txnum, -1);
+      buffMgr.unpin(buff);
+   }
+}
@@ -0,0 +1,90 @@
+package simpledb.tx.recovery;
+
+import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
+
+/**
+ * The FILEID log record, which assigns an id to a file.
+ * Compact log records refer to a file by its id
+ * instead of its name; the record assigning an id
+ * is written before any record that uses it.
+ */
+class FileIdRecord implements LogRecord {
+   private int id;
+   private String filename;
+
+   /**
+    * Creates a new file id record.
+    * @param id the id of the file
+    * @param filename the name of the file
+    */
+   public FileIdRecord(int id, String filename) {
+      this.id = id;
+      this.filename = filename;
+   }
+
+   /**
+    * Creates a log record by reading two other values from the log.
+    * @param rec the basic log record
+    */
+   public FileIdRecord(BasicLogRecord rec) {
+      id = rec.nextInt();
+      filename = rec.nextString();
+   }
+
+   /**
+    * Encodes the record in the specified log buffer.
+    * This log record contains the FILEID operator,
+    * followed by the id and the name of the file.
+    * @param buf the log buffer
+    */
+   public void writeTo(LogBuffer buf) {
+      buf.startRecord(FILEID);
+      buf.putInt(id);
+      buf.putString(filename);
+   }
+
+   public int op() {
+      return FILEID;
+   }
+
+   /**
+    * File id records have no associated transaction,
+    * and so the method returns a "dummy", negative txid.
+    */
+   public int txNumber() {
+      return -1; // dummy value
+   }
+
+   /**
+    * Returns the id of the file.
+    * @return the file id
+    */
+   int fileId() {
+      return id;
+   }
+
+   /**
+    * Returns the name of the file.
+    * @return the file name
+    */
+   String fileName() {
+      return filename;
+   }
+
+   /**
+    * Does nothing, because a file id record
+    * contains no undo information.
+    */
+   public void undo(int txnum) {}
+
+   /**
+    * Does nothing, because a file id record
+    * contains no redo information.
+    */
+   public void redo(int txnum) {}
+
+   public String toString() {
+      return "<FILEID " + id + " " + filename + ">";
+   }
+}
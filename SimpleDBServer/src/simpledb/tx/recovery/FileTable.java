@@ -0,0 +1,115 @@
+package simpledb.tx.recovery;
+
+import simpledb.file.Block;
+import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The table of file ids used by compact log records.
+ * A file is given an id the first time one of its blocks is logged,
+ * and a {@link FileIdRecord} is written to record the assignment.
+ * <p>
+ * The records assigning ids may be discarded with old log segments,
+ * so each fuzzy checkpoint also holds the whole table.
+ * Recovery loads the table from the last checkpoint,
+ * and adds the assignments that the analysis phase reads after it.
+ */
+class FileTable {
+   private Map<String,Integer> ids = new ConcurrentHashMap<String,Integer>();
+   private Map<Integer,String> names = new ConcurrentHashMap<Integer,String>();
+   private int nextId = 0;
+
+   /**
+    * Returns the id of the specified file,
+    * assigning a new id if the file has none.
+    * @param filename the name of the file
+    * @return the id of the file
+    */
+   int id(String filename) {
+      Integer id = ids.get(filename);
+      return (id != null) ? id : assign(filename);
+   }
+
+   /**
+    * Returns the name of the file that has the specified id.
+    * @param id the id of a file
+    * @return the name of the file
+    */
+   String name(int id) {
+      String filename = names.get(id);
+      if (filename == null)
+         throw new RuntimeException("cannot find the file with log id " + id);
+      return filename;
+   }
+
+   /**
+    * Adds an assignment read from the log to the table.
+    * @param id the id of the file
+    * @param filename the name of the file
+    */
+   synchronized void add(int id, String filename) {
+      ids.put(filename, id);
+      names.put(id, filename);
+      nextId = Math.max(nextId, id + 1);
+   }
+
+   /**
+    * Replaces the table with the specified assignments.
+    * @param files a map from file ids to file names
+    */
+   synchronized void load(Map<Integer,String> files) {
+      ids.clear();
+      names.clear();
+      nextId = 0;
+      for (Map.Entry<Integer,String> e : files.entrySet())
+         add(e.getKey(), e.getValue());
+   }
+
+   /**
+    * Returns a copy of the table.
+    * @return a map from file ids to file names
+    */
+   Map<Integer,String> snapshot() {
+      return new HashMap<Integer,String>(names);
+   }
+
+   /**
+    * Encodes a block as its file id and block number.
+    * @param buf the log buffer
+    * @param blk the block
+    */
+   void writeBlock(LogBuffer buf, Block blk) {
+      buf.putInt(id(blk.fileName()));
+      buf.putInt(blk.number());
+   }
+
+   /**
+    * Reads a block from the specified log record.
+    * A compact record holds the block's file id,
+    * and a fixed-width record the name of its file.
+    * @param rec the basic log record
+    * @return the block
+    */
+   Block readBlock(BasicLogRecord rec) {
+      String filename = rec.isCompact() ? name(rec.nextInt()) : rec.nextString();
+      return new Block(filename, rec.nextInt());
+   }
+
+   /**
+    * Assigns the next id to the specified file.
+    * The assignment is logged before it is entered in the table,
+    * so no other record that uses the id can precede it in the log.
+    */
+   private synchronized int assign(String filename) {
+      Integer id = ids.get(filename);
+      if (id == null) {
+         id = nextId;
+         new FileIdRecord(id, filename).writeToLog();
+         add(id, filename);
+      }
+      return id;
+   }
+}
@@ -0,0 +1,285 @@
+package simpledb.tx.recovery;
+
+import static simpledb.file.Page.*;
+import static simpledb.log.LogBuffer.*;
+import simpledb.file.Block;
+import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
+
+import java.util.*;
+
+/**
+ * The FUZZYCHECKPOINT log record.
+ * A fuzzy checkpoint records the active-transaction table,
+ * which maps each active transaction to the LSN of its start record
+ * and to its undo-next LSN, the LSN of the next update that
+ * rolling it back would undo, and the dirty page table, which maps each dirty block to the LSN
+ * of its first change that is not yet on disk.
+ * A checkpoint in the compact format also holds the
+ * {@link FileTable table of file ids}, as of the time it is written.
+ * The first two tables are as of the checkpoint's begin LSN:
+ * every transaction that started, and every change that was logged,
+ * at or before that LSN is in the tables unless it has since
+ * finished or been written to disk.
+ * <p>
+ * Since a log record must fit in a log page, a checkpoint whose
+ * tables are large is written as a sequence of records,
+ * each holding part of the tables and numbered within the sequence.
+ * The checkpoint is complete once its last record is in the log.
+ */
+class FuzzyCheckpointRecord implements LogRecord {
+   // op, begin LSN, index, count, and the three table sizes
+   private static final int HEADER_SIZE = MAX_LONG_SIZE + 6 * MAX_INT_SIZE;
+
+   private long begin;
+   private int index, count;
+   private Map<Integer,Long> txs, undo;
+   private Map<Block,Long> dirty;
+   private Map<Integer,String> files;
+
+   /**
+    * Creates one record of a fuzzy checkpoint.
+    * @param begin the begin LSN of the checkpoint
+    * @param index the position of this record in the checkpoint's sequence
+    * @param count the number of records in the sequence
+    * @param txs part of the active-transaction table, with start LSNs
+    * @param undo the undo-next LSNs of the same transactions
+    * @param dirty part of the dirty page table
+    * @param files part of the table of file ids
+    */
+   public FuzzyCheckpointRecord(long begin, int index, int count, Map<Integer,Long> txs,
+                                Map<Integer,Long> undo, Map<Block,Long> dirty,
+                                Map<Integer,String> files) {
+      this.begin = begin;
+      this.index = index;
+      this.count = count;
+      this.txs = txs;
+      this.undo = undo;
+      this.dirty = dirty;
+      this.files = files;
+   }
+
+   /**
+    * Creates a log record by reading the checkpoint's
+    * values from the basic log record.
+    * A record in the fixed-width format has no table of file ids.
+    * @param rec the basic log record
+    */
+   public FuzzyCheckpointRecord(BasicLogRecord rec) {
+      begin = rec.nextLong();
+      index = rec.nextInt();
+      count = rec.nextInt();
+      txs = new HashMap<Integer,Long>();
+      undo = new HashMap<Integer,Long>();
+      int ntxs = rec.nextInt();
+      for (int i=0; i<ntxs; i++) {
+         int txnum = rec.nextInt();
+         txs.put(txnum, rec.nextLong());
+         undo.put(txnum, rec.nextLong());
+      }
+      dirty = new HashMap<Block,Long>();
+      int npages = rec.nextInt();
+      for (int i=0; i<npages; i++) {
+         String filename = rec.nextString();
+         dirty.put(new Block(filename, rec.nextInt()), rec.nextLong());
+      }
+      files = new HashMap<Integer,String>();
+      if (rec.isCompact()) {
+         int nfiles = rec.nextInt();
+         for (int i=0; i<nfiles; i++)
+            files.put(rec.nextInt(), rec.nextString());
+      }
+   }
+
+   /**
+    * Writes a fuzzy checkpoint to the log,
+    * using as many records as its tables need.
+    * @param begin the begin LSN of the checkpoint
+    * @param txs the active-transaction table, with start LSNs
+    * @param undo the undo-next LSNs of the active transactions
+    * @param dirty the dirty page table
+    * @param files the table of file ids
+    * @return the LSN of the checkpoint's last record
+    */
+   static long writeCheckpoint(long begin, Map<Integer,Long> txs, Map<Integer,Long> undo,
+                              Map<Block,Long> dirty, Map<Integer,String> files) {
+      // the largest record that fits in a log page,
+      // beside the page's header and the record's back pointer
+      int limit = BLOCK_SIZE - 2 * INT_SIZE;
+      List<FuzzyCheckpointRecord> parts = new ArrayList<FuzzyCheckpointRecord>();
+      FuzzyCheckpointRecord part = new FuzzyCheckpointRecord(begin);
+      int size = HEADER_SIZE;
+      for (Map.Entry<Integer,Long> e : txs.entrySet()) {
+         if (size + MAX_INT_SIZE + 2 * MAX_LONG_SIZE >= limit) {
+            parts.add(part);
+            part = new FuzzyCheckpointRecord(begin);
+            size = HEADER_SIZE;
+         }
+         part.txs.put(e.getKey(), e.getValue());
+         part.undo.put(e.getKey(), undo.get(e.getKey()));
+         size += MAX_INT_SIZE + 2 * MAX_LONG_SIZE;
+      }
+      for (Map.Entry<Block,Long> e : dirty.entrySet()) {
+         int entrysize = MAX_STR_SIZE(e.getKey().fileName().length()) + MAX_INT_SIZE + MAX_LONG_SIZE;
+         if (size + entrysize >= limit) {
+            parts.add(part);
+            part = new FuzzyCheckpointRecord(begin);
+            size = HEADER_SIZE;
+         }
+         part.dirty.put(e.getKey(), e.getValue());
+         size += entrysize;
+      }
+      for (Map.Entry<Integer,String> e : files.entrySet()) {
+         int entrysize = MAX_INT_SIZE + MAX_STR_SIZE(e.getValue().length());
+         if (size + entrysize >= limit) {
+            parts.add(part);
+            part = new FuzzyCheckpointRecord(begin);
+            size = HEADER_SIZE;
+         }
+         part.files.put(e.getKey(), e.getValue());
+         size += entrysize;
+      }
+      parts.add(part);
+      // the records are appended together, in a single batch
+      LogBuffer buf = new LogBuffer();
+      for (int i=0; i<parts.size(); i++) {
+         parts.get(i).index = i;
+         parts.get(i).count = parts.size();
+         parts.get(i).writeTo(buf);
+      }
+      return logMgr.append(buf);
+   }
+
+   /**
+    * Creates an empty record of the checkpoint with
+    * the specified begin LSN, to be filled by writeCheckpoint.
+    */
+   private FuzzyCheckpointRecord(long begin) {
+      this(begin, 0, 1, new HashMap<Integer,Long>(), new HashMap<Integer,Long>(),
+           new HashMap<Block,Long>(), new HashMap<Integer,String>());
+   }
+
+   /**
+    * Encodes the record in the specified log buffer.
+    * This log record contains the FUZZYCHECKPOINT operator,
+    * the begin LSN, the record's position in its sequence,
+    * the length of the sequence,
+    * and then the entries of the three tables, each table
+    * preceded by its number of entries.
+    * An entry of the active-transaction table holds the
+    * transaction number, the start LSN and the undo-next LSN.
+    * @param buf the log buffer
+    */
+   public void writeTo(LogBuffer buf) {
+      buf.startRecord(FUZZYCHECKPOINT);
+      buf.putLong(begin);
+      buf.putInt(index);
+      buf.putInt(count);
+      buf.putInt(txs.size());
+      for (Map.Entry<Integer,Long> e : txs.entrySet()) {
+         buf.putInt(e.getKey());
+         buf.putLong(e.getValue());
+         buf.putLong(undo.get(e.getKey()));
+      }
+      buf.putInt(dirty.size());
+      for (Map.Entry<Block,Long> e : dirty.entrySet()) {
+         buf.putString(e.getKey().fileName());
+         buf.putInt(e.getKey().number());
+         buf.putLong(e.getValue());
+      }
+      buf.putInt(files.size());
+      for (Map.Entry<Integer,String> e : files.entrySet()) {
+         buf.putInt(e.getKey());
+         buf.putString(e.getValue());
+      }
+   }
+
+   public int op() {
+      return FUZZYCHECKPOINT;
+   }
+
+   /**
+    * Checkpoint records have no associated transaction,
+    * and so the method returns a "dummy", negative txid.
+    */
+   public int txNumber() {
+      return -1; // dummy value
+   }
+
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no undo information.
+    */
+   public void undo(int txnum) {}
+
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no redo information.
+    */
+   public void redo(int txnum) {}
+
+   /**
+    * Returns the begin LSN of the checkpoint.
+    * @return the begin LSN
+    */
+   long beginLSN() {
+      return begin;
+   }
+
+   /**
+    * Returns the position of this record in the checkpoint's sequence.
+    * @return the index of the record
+    */
+   int index() {
+      return index;
+   }
+
+   /**
+    * Returns the number of records in the checkpoint's sequence.
+    * @return the number of records
+    */
+   int count() {
+      return count;
+   }
+
+   /**
+    * Returns the part of the active-transaction table in this record.
+    * A transaction whose start record was not yet written
+    * is mapped to -1.
+    * @return a map from transaction numbers to start LSNs
+    */
+   Map<Integer,Long> activeTxs() {
+      return txs;
+   }
+
+   /**
+    * Returns the undo-next LSNs of the transactions in
+    * this record's part of the active-transaction table.
+    * A transaction that has no update to undo is mapped to -1.
+    * @return a map from transaction numbers to undo-next LSNs
+    */
+   Map<Integer,Long> undoNextLSNs() {
+      return undo;
+   }
+
+   /**
+    * Returns the part of the dirty page table in this record.
+    * @return a map from blocks to recovery LSNs
+    */
+   Map<Block,Long> dirtyPages() {
+      return dirty;
+   }
+
+   /**
+    * Returns the part of the table of file ids in this record.
+    * @return a map from file ids to file names
+    */
+   Map<Integer,String> fileIds() {
+      return files;
+   }
+
+   public String toString() {
+      return "<FUZZYCHECKPOINT " + begin + " " + index + "/" + count
+            + " " + txs + " " + undo + " " + dirty + " " + files + ">";
+   }
+}
@@ -0,0 +1,92 @@
+package simpledb.tx.recovery;
+
+import static simpledb.tx.recovery.LogRecord.*;
+import simpledb.buffer.*;
+import simpledb.file.Block;
+import simpledb.log.BasicLogRecord;
+import simpledb.server.SimpleDB;
+
+import java.util.*;
+
+/**
+ * The recovery of a log in the
+ * {@link simpledb.log.LogMgr#LEGACY_FORMAT legacy format}.
+ * In that format, the modified buffers of a transaction were
+ * flushed when it committed, and an update record held only
+ * the old value, as the fixed-width values
+ * SETINT or SETSTRING, the transaction id, the file name,
+ * block number and offset of the modified block, and the old value.
+ * The log is therefore recovered by reading it backwards
+ * and undoing the updates of the unfinished transactions.
+ * <p>
+ * The recovery stops at a CHECKPOINT record,
+ * since no transaction was active when it was written.
+ * At an NQCHECKPOINT record, which lists the transactions active
+ * when it was written, the recovery continues only until it has
+ * read the start records of those that did not finish.
+ */
+class LegacyRecovery {
+   private int txnum;
+
+   /**
+    * Creates the recovery of the legacy log,
+    * performed by the specified transaction.
+    * @param txnum the ID of the recovering transaction
+    */
+   LegacyRecovery(int txnum) {
+      this.txnum = txnum;
+   }
+
+   /**
+    * Undoes the updates of the transactions that were
+    * unfinished when the legacy log was last written.
+    * The restored values are not logged;
+    * the caller must flush the recovering transaction's buffers
+    * before the legacy log is discarded.
+    */
+   void undoUnfinished() {
+      Set<Integer> finished = new HashSet<Integer>();
+      Set<Integer> unstarted = null; // active at the checkpoint, and not finished
+      for (BasicLogRecord rec : SimpleDB.logMgr()) {
+         int op = rec.nextInt();
+         if (op == CHECKPOINT)
+            return;
+         if (op == NQCHECKPOINT) {
+            if (unstarted == null) {
+               unstarted = new HashSet<Integer>(new NQCheckpointRecord(rec).getActiveTx());
+               unstarted.removeAll(finished);
+               if (unstarted.isEmpty())
+                  return;
+            }
+            continue;
+         }
+         int tx = rec.nextInt();
+         if (op == COMMIT || op == ROLLBACK)
+            finished.add(tx);
+         else if (op == START && unstarted != null) {
+            unstarted.remove(tx);
+            if (unstarted.isEmpty())
+               return;
+         }
+         else if ((op == SETINT || op == SETSTRING) && !finished.contains(tx))
+            undo(op, rec);
+      }
+   }
+
+   /**
+    * Restores the old value held in the specified update record.
+    * @param op the operator of the record, SETINT or SETSTRING
+    * @param rec the basic log record, positioned after the transaction id
+    */
+   private void undo(int op, BasicLogRecord rec) {
+      Block blk = new Block(rec.nextString(), rec.nextInt());
+      int offset = rec.nextInt();
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      if (op == SETINT)
+         buff.setInt(offset, rec.nextInt(), txnum, -1);
+      else
+         buff.setString(offset, rec.nextString(), txnum, -1);
+      buffMgr.unpin(buff);
+   }
+}
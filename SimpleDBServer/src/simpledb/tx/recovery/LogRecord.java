@@ -1,5 +1,6 @@
 package simpledb.tx.recovery;
 
+import simpledb.log.LogBuffer;
 import simpledb.log.LogMgr;
 import simpledb.server.SimpleDB;
 
@@ -9,11 +10,13 @@ import simpledb.server.SimpleDB;
  */
 public interface LogRecord {
    /**
-    * The six different types of log record
+    * The different types of log record
     */
    static final int CHECKPOINT = 0, START = 1,
       COMMIT = 2, ROLLBACK  = 3,
-      SETINT = 4, SETSTRING = 5, NQCHECKPOINT = 6;
+      SETINT = 4, SETSTRING = 5, NQCHECKPOINT = 6,
+      FUZZYCHECKPOINT = 7, COMPENSATION = 8, FILEID = 9,
+      SETBYTES = 10;
    
    static final LogMgr logMgr = SimpleDB.logMgr();
    
@@ -21,7 +24,18 @@ public interface LogRecord {
     * Writes the record to the log and returns its LSN.
     * @return the LSN of the record in the log
     */
-   int writeToLog();
+   default long writeToLog() {
+      LogBuffer buf = new LogBuffer();
+      writeTo(buf);
+      return logMgr.append(buf);
+   }
+   
+   /**
+    * Encodes the record at the end of the specified log buffer,
+    * in the compact log format.
+    * @param buf the log buffer
+    */
+   void writeTo(LogBuffer buf);
    
    /**
     * Returns the log record's type. 
@@ -39,8 +53,17 @@ public interface LogRecord {
    /**
     * Undoes the operation encoded by this log record.
     * The only log record types for which this method
-    * does anything interesting are SETINT and SETSTRING.
+    * does anything interesting are SETINT, SETSTRING and SETBYTES.
     * @param txnum the id of the transaction that is performing the undo.
     */
    void undo(int txnum);
+   
+   /**
+    * Redoes the operation encoded by this log record.
+    * The only log record types for which this method
+    * does anything interesting are SETINT, SETSTRING and SETBYTES,
+    * and the compensation records that undo them.
+    * @param txnum the id of the transaction that is performing the redo.
+    */
+   void redo(int txnum);
 }
\ No newline at end of file
@@ -7,14 +7,34 @@ import simpledb.server.SimpleDB;
 
 /**
  * A class that provides the ability to read records
- * from the log in reverse order.
+ * from the log in reverse order, or in log order
+ * from a given LSN.
  * Unlike the similar class 
  * {@link simpledb.log.LogIterator LogIterator},  
  * this class understands the meaning of the log records.
  * @author Edward Sciore
  */
 class LogRecordIterator implements Iterator<LogRecord> {
-   private Iterator<BasicLogRecord> iter = SimpleDB.logMgr().iterator();
+   private Iterator<BasicLogRecord> iter;
+   private long lsn = -1;
+   
+   /**
+    * Creates an iterator that reads the log backwards
+    * from the most recent record.
+    */
+   public LogRecordIterator() {
+      iter = SimpleDB.logMgr().iterator();
+   }
+   
+   /**
+    * Creates an iterator that reads the log forwards,
+    * starting from the first record whose LSN is at or
+    * after the specified LSN.
+    * @param start the LSN at which to start
+    */
+   public LogRecordIterator(long start) {
+      iter = SimpleDB.logMgr().iterator(start);
+   }
    
    public boolean hasNext() {
       return iter.hasNext();
@@ -23,14 +43,26 @@ class LogRecordIterator implements Iterator<LogRecord> {
    /**
     * Constructs a log record from the values in the 
     * current basic log record.
+    * @return the next log record, or null if no more records
+    * @see #parse(BasicLogRecord)
+    */
+   public LogRecord next() {
+      BasicLogRecord rec = iter.next();
+      lsn = rec.lsn();
+      return parse(rec);
+   }
+   
+   /**
+    * Constructs a log record from the values in the
+    * specified basic log record.
     * The method first reads an integer, which denotes
     * the type of the log record.  Based on that type,
     * the method calls the appropriate LogRecord constructor
     * to read the remaining values.
-    * @return the next log record, or null if no more records
+    * @param rec the basic log record
+    * @return the log record, or null if its type is unknown
     */
-   public LogRecord next() {
-      BasicLogRecord rec = iter.next();
+   static LogRecord parse(BasicLogRecord rec) {
       int op = rec.nextInt();
       switch (op) {
          case CHECKPOINT:
@@ -45,13 +77,30 @@ class LogRecordIterator implements Iterator<LogRecord> {
             return new SetIntRecord(rec);
          case SETSTRING:
             return new SetStringRecord(rec);
+         case SETBYTES:
+            return new SetBytesRecord(rec);
          case NQCHECKPOINT:
             return new NQCheckpointRecord(rec);
+         case FUZZYCHECKPOINT:
+            return new FuzzyCheckpointRecord(rec);
+         case COMPENSATION:
+            return new CompensationRecord(rec);
+         case FILEID:
+            return new FileIdRecord(rec);
          default:
             return null;
       }
    } 
    
+   /**
+    * Returns the LSN of the log record most recently
+    * returned by {@link #next()}.
+    * @return the LSN of the current log record
+    */
+   public long lsn() {
+      return lsn;
+   }
+   
    public void remove() {
       throw new UnsupportedOperationException();
    }
@@ -1,23 +1,25 @@
 package simpledb.tx.recovery;
 
 import simpledb.log.BasicLogRecord;
-import simpledb.tx.Transaction;
+import simpledb.log.LogBuffer;
 
 import java.util.*;
 
 /**
  * The NQCHECKPOINT log record.
+ * Nonquiescent checkpoints have been replaced by
+ * {@link FuzzyCheckpointRecord fuzzy checkpoints};
+ * the record is still read by recovery from older logs.
  * @author Edward Sciore
  */
 class NQCheckpointRecord implements LogRecord {
     private List<Integer> activeTx = new ArrayList<>();
     /**
      * Creates a nonquiescent checkpoint record.
+     * @param txs the numbers of the active transactions
      */
-    public NQCheckpointRecord(List<Transaction> tx) {
-        for (Transaction t : tx) {
-            activeTx.add(Integer.valueOf(t.toString()));
-        }
+    public NQCheckpointRecord(Collection<Integer> txs) {
+        activeTx.addAll(txs);
     }
 
     /**
@@ -28,15 +30,14 @@ class NQCheckpointRecord implements LogRecord {
     public NQCheckpointRecord(BasicLogRecord rec) { this.activeTx = listfyString(rec.nextString());}
 
     /**
-     * Writes a checkpoint record to the log.
+     * Encodes the record in the specified log buffer.
      * This log record contains the NQCHECKPOINT operator,
      * and the set of active transactions encoded in String.
-     * @return the LSN of the last log value
+     * @param buf the log buffer
      */
-    public int writeToLog() {
-        String writableList = stringfyList(activeTx);
-        Object[] rec = new Object[] {NQCHECKPOINT, writableList};
-        return logMgr.append(rec);
+    public void writeTo(LogBuffer buf) {
+        buf.startRecord(NQCHECKPOINT);
+        buf.putString(stringfyList(activeTx));
     }
 
     /**
@@ -88,6 +89,12 @@ class NQCheckpointRecord implements LogRecord {
      */
     public void undo(int txnum) {}
 
+    /**
+     * Does nothing, because a checkpoint record
+     * contains no redo information.
+     */
+    public void redo(int txnum) {}
+
     public String toString() {
         return "<NQCHECKPOINT " + stringfyList(activeTx) + ">";
     }
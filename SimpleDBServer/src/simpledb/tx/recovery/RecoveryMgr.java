@@ -2,63 +2,244 @@ package simpledb.tx.recovery;
 
 import static simpledb.tx.recovery.LogRecord.*;
 import simpledb.file.Block;
+import simpledb.file.Page;
+import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
+import simpledb.log.LogMgr;
 import simpledb.buffer.Buffer;
 import simpledb.server.SimpleDB;
-import simpledb.tx.Transaction;
 
 import java.util.*;
-import java.util.stream.Collector;
-import java.util.stream.Collectors;
+import java.util.concurrent.*;
 
 /**
  * The recovery manager.  Each transaction has its own recovery manager.
+ * <p>
+ * A transaction's records are encoded in its own log buffer,
+ * and appended to the log from there.
+ * The start record is held in the buffer until the transaction's
+ * first update, and is appended in the same batch;
+ * a transaction that updates nothing writes no records at all.
+ * Each update record is appended at once, since its LSN
+ * is needed to stamp the modified buffer.
+ * <p>
+ * Update records hold both the old and the new value,
+ * so a transaction's modified buffers need not be written
+ * to disk when it commits: only the log is flushed.
+ * The modified buffers reach disk later, when they are replaced,
+ * written by the background writer, or flushed by a checkpoint.
+ * Undoing an update, whether during rollback or recovery,
+ * writes a compensation record that holds the restored value,
+ * so rolled-back transactions need not force their buffers either.
+ * <p>
+ * Recovery follows ARIES, in three phases.
+ * Analysis reads the log forward from the last checkpoint,
+ * rebuilding the tables of active transactions and dirty pages.
+ * Redo then repeats history: it reapplies every logged change,
+ * compensations included, that may not have reached disk.
+ * Finally, undo rolls back the transactions that were active
+ * at the crash, following each one's chain of updates back from
+ * its undo-next LSN, so that updates already compensated before
+ * the crash are skipped; the compensations are logged in LSN order,
+ * grouped by block, and applied to the blocks in parallel by several threads.
+ * <p>
+ * The class also keeps the table of active transactions,
+ * and takes fuzzy checkpoints, either on request or
+ * periodically in a background {@link Checkpointer}.
+ * A fuzzy checkpoint writes neither the buffer pool nor
+ * waits for transactions to finish; instead it logs the
+ * active-transaction and dirty page tables, from which recovery
+ * determines how far back in the log it must read.
  * @author Edward Sciore
  */
 public class RecoveryMgr {
+   private static final int UNDO_THREADS = 4;
+   static final FileTable fileTable = new FileTable();
+   // txnum -> the recovery manager of the active transaction
+   private static Map<Integer,RecoveryMgr> activeTxs = new ConcurrentHashMap<Integer,RecoveryMgr>();
+   // held while a transaction appends records and updates its entry in the table
+   private static final Object appendLock = new Object();
+   private static Checkpointer checkpointer = null;
+   private static long lastCheckpoint = -1;
    private int txnum;
+   private long lastLSN = -1; // the transaction's most recent update record
+   // the entry in the active-transaction table, guarded by appendLock:
+   private long startLSN = -1;    // the first batch of records, or -1 if nothing is logged
+   private long undoNextLSN = -1; // the next update to undo, or -1 if there is none
+   private LogBuffer logbuf = new LogBuffer();
 
    /**
-    * Creates a recovery manager for the specified transaction.
+    * Creates a recovery manager for the specified transaction,
+    * which encodes the transaction's start record in its log buffer.
+    * The transaction is entered in the active-transaction table
+    * before its start record is appended, so that a checkpoint
+    * that begins after the start record lists the transaction.
     * @param txnum the ID of the specified transaction
     */
    public RecoveryMgr(int txnum) {
       this.txnum = txnum;
-      new StartRecord(txnum).writeToLog();
+      activeTxs.put(txnum, this);
+      new StartRecord(txnum).writeTo(logbuf);
    }
 
    /**
     * Writes a commit record to the log, and flushes it to disk.
+    * The transaction's modified buffers are also flushed
+    * if {@link SimpleDB#FORCE_AT_COMMIT} is set.
+    * A transaction that logged no updates has nothing to commit,
+    * and writes nothing.
     */
    public void commit() {
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new CommitRecord(txnum).writeToLog();
-      SimpleDB.logMgr().flush(lsn);
+      if (SimpleDB.FORCE_AT_COMMIT)
+         SimpleDB.bufferMgr().flushAll(txnum);
+      if (lastLSN < 0) {
+         activeTxs.remove(txnum);
+         return;
+      }
+      long lsn = append(new CommitRecord(txnum));
+      SimpleDB.logMgr().commit(lsn);
    }
 
    /**
-    * Writes a rollback record to the log, and flushes it to disk.
+    * Undoes the transaction's updates, writing a compensation
+    * record for each, and then writes a rollback record
+    * to the log and flushes it to disk.
+    * A transaction that logged no updates writes nothing.
     */
    public void rollback() {
+      if (lastLSN < 0) {
+         activeTxs.remove(txnum);
+         return;
+      }
       doRollback();
-      SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new RollbackRecord(txnum).writeToLog();
-      SimpleDB.logMgr().flush(lsn);
+      long lsn = append(new RollbackRecord(txnum));
+      SimpleDB.logMgr().commit(lsn);
    }
 
-   public static void checkpoint() {
-      int lsn = new NQCheckpointRecord(Transaction.getActiveTx()).writeToLog();
+   /**
+    * Takes a fuzzy checkpoint.
+    * The begin LSN of the checkpoint is read first,
+    * and then the active-transaction and dirty page tables
+    * are copied and written to the log;
+    * transactions keep running throughout.
+    * <p>
+    * Before the tables are copied, the buffers whose first
+    * unwritten change was logged before the begin LSN of the
+    * previous checkpoint are flushed.
+    * Most such buffers will have been written long since,
+    * so the flush is usually cheap, and it ensures that recovery
+    * never reads back past the second-to-last checkpoint.
+    * <p>
+    * A buffer leaves the dirty page table when its page is written,
+    * which need not force the page to disk.
+    * The database files are therefore forced after the dirty page
+    * table is copied and before the checkpoint is written, so that
+    * every page missing from the table is on disk.
+    * <p>
+    * Once the checkpoint is on disk, the log segments before
+    * the oldest record that recovery or rollback could need
+    * are discarded: that is the earliest of the begin LSN,
+    * the recovery LSNs of the dirty pages, and the start records
+    * of the active transactions.
+    * Checkpoints are serialized.
+    * <p>
+    * The begin LSN is read and the active-transaction table copied
+    * while no transaction is appending records, so the table
+    * is exactly as of the begin LSN: a transaction listed without
+    * a start LSN has no record before it, and the undo-next LSN
+    * of each transaction accounts for every record before it.
+    * The lock is not held while buffers are latched,
+    * since a transaction appends while it holds a buffer's latch.
+    */
+   public static synchronized void checkpoint() {
+      if (lastCheckpoint >= 0)
+         SimpleDB.bufferMgr().flushOlderThan(lastCheckpoint);
+      long begin;
+      Map<Integer,Long> txs = new HashMap<Integer,Long>();
+      Map<Integer,Long> undo = new HashMap<Integer,Long>();
+      synchronized (appendLock) {
+         begin = SimpleDB.logMgr().lastLSN();
+         for (RecoveryMgr mgr : activeTxs.values()) {
+            txs.put(mgr.txnum, mgr.startLSN);
+            undo.put(mgr.txnum, mgr.undoNextLSN);
+         }
+      }
+      Map<Block,Long> dirty = SimpleDB.bufferMgr().dirtyPages();
+      SimpleDB.fileMgr().force();
+      long lsn = FuzzyCheckpointRecord.writeCheckpoint(begin, txs, undo, dirty, fileTable.snapshot());
       SimpleDB.logMgr().flush(lsn);
+      lastCheckpoint = begin;
+      long oldest = begin;
+      for (long reclsn : dirty.values())
+         oldest = Math.min(oldest, reclsn);
+      for (long startlsn : txs.values())
+         if (startlsn >= 0)
+            oldest = Math.min(oldest, startlsn);
+      SimpleDB.logMgr().truncate(oldest);
+   }
+
+   /**
+    * Starts a background thread that takes a fuzzy checkpoint
+    * whenever the specified time has passed, or the specified
+    * number of bytes has been written to the log,
+    * since the previous checkpoint.
+    * A value of 0 disables the corresponding trigger.
+    * The method has no effect if the thread is already running.
+    * @param interval the time between checkpoints, in milliseconds
+    * @param logBytes the log volume between checkpoints, in bytes
+    */
+   public static synchronized void startCheckpointer(long interval, int logBytes) {
+      if (checkpointer != null)
+         return;
+      checkpointer = new Checkpointer(interval, logBytes);
+      checkpointer.start();
+   }
+
+   /**
+    * Stops the background checkpoint thread, if it is running.
+    */
+   public static synchronized void stopCheckpointer() {
+      if (checkpointer == null)
+         return;
+      checkpointer.shutdown();
+      checkpointer = null;
    }
 
    /**
     * Recovers uncompleted transactions from the log,
-    * then writes a quiescent checkpoint record to the log and flushes it.
+    * then writes a checkpoint to the log and flushes it.
+    * Since every page is then on disk and no other transaction
+    * is active, the checkpoint has empty active-transaction
+    * and dirty page tables; it is written as a fuzzy checkpoint
+    * so that it can hold the table of file ids.
+    * The log segments before the checkpoint are then discarded,
+    * since no record in them will be needed again,
+    * and the checkpoint becomes the previous checkpoint of the next
+    * {@link #checkpoint() checkpoint}.
+    * <p>
+    * A log in the {@link LogMgr#LEGACY_FORMAT legacy format}
+    * is recovered by {@link LegacyRecovery}; once the restored
+    * pages are on disk, the legacy log is replaced by an empty log
+    * of the current format, which is stored with the database.
     */
    public void recover() {
-      doRecover();
+      if (SimpleDB.fileMgr().logFormat() == LogMgr.LEGACY_FORMAT) {
+         new LegacyRecovery(txnum).undoUnfinished();
+         SimpleDB.bufferMgr().flushAll(txnum);
+         SimpleDB.logMgr().restart();
+         SimpleDB.fileMgr().setLogFormat(LogMgr.CURRENT_FORMAT);
+      }
+      else
+         doRecover();
       SimpleDB.bufferMgr().flushAll(txnum);
-      int lsn = new CheckpointRecord().writeToLog();
+      long begin = SimpleDB.logMgr().lastLSN();
+      long lsn = FuzzyCheckpointRecord.writeCheckpoint(begin, new HashMap<Integer,Long>(),
+            new HashMap<Integer,Long>(), new HashMap<Block,Long>(), fileTable.snapshot());
       SimpleDB.logMgr().flush(lsn);
+      SimpleDB.logMgr().truncate(begin);
+      synchronized (RecoveryMgr.class) {
+         lastCheckpoint = begin;
+      }
    }
 
    /**
@@ -69,13 +250,13 @@ public class RecoveryMgr {
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setInt(Buffer buff, int offset, int newval) {
+   public synchronized long setInt(Buffer buff, int offset, int newval) {
       int oldval = buff.getInt(offset);
       Block blk = buff.block();
       if (isTempBlock(blk))
          return -1;
-      else
-         return new SetIntRecord(txnum, blk, offset, oldval).writeToLog();
+      lastLSN = append(new SetIntRecord(txnum, blk, offset, oldval, newval, lastLSN));
+      return lastLSN;
    }
 
    /**
@@ -86,81 +267,302 @@ public class RecoveryMgr {
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setString(Buffer buff, int offset, String newval) {
+   public synchronized long setString(Buffer buff, int offset, String newval) {
       String oldval = buff.getString(offset);
       Block blk = buff.block();
       if (isTempBlock(blk))
          return -1;
-      else
-         return new SetStringRecord(txnum, blk, offset, oldval).writeToLog();
+      lastLSN = append(new SetStringRecord(txnum, blk, offset, oldval, newval, lastLSN));
+      return lastLSN;
+   }
+
+   /**
+    * Writes a setbytes record to the log, and returns its lsn.
+    * Updates to temporary files are not logged; instead, a
+    * "dummy" negative lsn is returned.
+    * @param buff the buffer containing the page
+    * @param offset the offset of the bytes in the page
+    * @param newval the bytes to be written
+    */
+   public synchronized long setBytes(Buffer buff, int offset, byte[] newval) {
+      byte[] oldval = new byte[newval.length];
+      buff.getBytes(offset, oldval);
+      Block blk = buff.block();
+      if (isTempBlock(blk))
+         return -1;
+      lastLSN = append(new SetBytesRecord(txnum, blk, offset, oldval, newval, lastLSN));
+      return lastLSN;
+   }
+
+   /**
+    * Encodes the specified record in the transaction's log buffer,
+    * and appends the buffer to the log.
+    * The first append also writes the transaction's start record.
+    * The transaction's entry in the active-transaction table is
+    * updated with the append, so that a checkpoint cannot begin
+    * between the two: the first append sets the start LSN,
+    * an update or compensation record sets the undo-next LSN,
+    * and a commit or rollback record removes the entry.
+    * @param rec the log record
+    * @return the LSN of the record
+    */
+   private synchronized long append(LogRecord rec) {
+      rec.writeTo(logbuf);
+      synchronized (appendLock) {
+         long lsn = SimpleDB.logMgr().append(logbuf);
+         if (startLSN < 0)
+            startLSN = lsn;
+         if (rec instanceof CompensationRecord)
+            undoNextLSN = ((CompensationRecord) rec).undoNextLSN();
+         else if (rec instanceof UpdateRecord)
+            undoNextLSN = lsn;
+         else if (rec.op() == COMMIT || rec.op() == ROLLBACK)
+            activeTxs.remove(txnum);
+         return lsn;
+      }
    }
 
    /**
     * Rolls back the transaction.
-    * The method iterates through the log records,
-    * calling undo() for each log record it finds
-    * for the transaction,
-    * until it finds the transaction's START record.
+    * Each update record holds the LSN of the transaction's
+    * previous update record, so the method follows that chain
+    * back from the most recent update, logging the compensation
+    * record of each update and then restoring its old value.
+    * Only the transaction's own records are read.
     */
    private void doRollback() {
-      Iterator<LogRecord> iter = new LogRecordIterator();
-      while (iter.hasNext()) {
-         LogRecord rec = iter.next();
-         if (rec.txNumber() == txnum) {
-            if (rec.op() == START)
-               return;
-            rec.undo(txnum);
+      Page pg = new Page();
+      long lsn = lastLSN;
+      while (lsn >= 0) {
+         BasicLogRecord basic = SimpleDB.logMgr().record(lsn, pg);
+         UpdateRecord rec = (UpdateRecord) LogRecordIterator.parse(basic);
+         CompensationRecord clr = rec.compensation();
+         Buffer buff = SimpleDB.bufferMgr().pin(rec.block());
+         // snapshot transactions read the buffer without locking the block,
+         // and a checkpoint must not flush it between logging and updating it
+         buff.latchExclusive();
+         try {
+            clr.apply(buff, txnum, append(clr));
          }
+         finally {
+            buff.unlatchExclusive();
+            SimpleDB.bufferMgr().unpin(buff);
+         }
+         lsn = rec.prevLSN();
       }
    }
 
    /**
     * Does a complete database recovery.
-    * The method iterates through the log records.
-    * Whenever it finds a log record for an unfinished
-    * transaction, it calls undo() on that record.
-    * The method stops when it encounters a CHECKPOINT record
-    * or the end of the log.
-    * In case it encounters NQCHECKPOINT record, the method will
-    * stop when the START, COMMIT, ROLLBACK record of first txNum in
-    * the activeTx list is found in the log.
-    * (Note the record only has to look at first txNum because
-    * the tx numbers are in a chronological order, oldest to latest)
+    * The active-transaction and dirty page tables of the last
+    * checkpoint are brought up to date by the analysis phase;
+    * the redo phase then restores the state of the database
+    * at the crash, and the undo phase rolls back the
+    * transactions that were active at the crash.
+    * The recovering transaction itself is not rolled back.
     */
    private void doRecover() {
-      Collection<Integer> finishedTxs = new ArrayList<Integer>();
-      Iterator<LogRecord> iter = new LogRecordIterator();
-       Integer nqCkptEndpoint = -1;
+      FuzzyCheckpointRecord ckpt = lastCheckpoint();
+      Map<Integer,Long> undo = new HashMap<Integer,Long>(ckpt.undoNextLSNs());
+      Map<Block,Long> dirty = new HashMap<Block,Long>(ckpt.dirtyPages());
+      doAnalysis(ckpt.beginLSN(), undo, dirty);
+      undo.remove(txnum);
+      doRedo(dirty);
+      doUndo(undo);
+   }
+
+   /**
+    * Finds the most recent checkpoint in the log.
+    * A complete fuzzy checkpoint has its records merged into one.
+    * A fuzzy checkpoint whose last record is missing was
+    * interrupted by a crash, and is ignored.
+    * A CHECKPOINT record, written after every update before it
+    * was on disk and no transaction was active,
+    * is returned as a fuzzy checkpoint with empty tables.
+    * If the log contains neither, the returned checkpoint
+    * has empty tables and precedes the whole log.
+    * <p>
+    * The table of file ids is loaded from the checkpoint.
+    * Only the operator of every other record is read,
+    * since the file ids in a record may not be known
+    * until the analysis phase has read the log after the checkpoint.
+    * @return the most recent checkpoint
+    */
+   private FuzzyCheckpointRecord lastCheckpoint() {
+      Map<Integer,Long> txs = new HashMap<Integer,Long>();
+      Map<Integer,Long> undo = new HashMap<Integer,Long>();
+      Map<Block,Long> dirty = new HashMap<Block,Long>();
+      Map<Integer,String> files = new HashMap<Integer,String>();
+      long begin = -1;
+      FuzzyCheckpointRecord ckpt = null;
+      Iterator<BasicLogRecord> iter = SimpleDB.logMgr().iterator();
+      while (ckpt == null && iter.hasNext()) {
+         BasicLogRecord rec = iter.next();
+         int op = rec.nextInt();
+         if (op == CHECKPOINT && begin < 0)
+            ckpt = new FuzzyCheckpointRecord(rec.lsn(), 0, 1, txs, undo, dirty, files);
+         if (op != FUZZYCHECKPOINT)
+            continue;
+         FuzzyCheckpointRecord part = new FuzzyCheckpointRecord(rec);
+         if (begin < 0 && part.index() == part.count() - 1)
+            begin = part.beginLSN();
+         if (part.beginLSN() != begin)
+            continue;
+         txs.putAll(part.activeTxs());
+         undo.putAll(part.undoNextLSNs());
+         dirty.putAll(part.dirtyPages());
+         files.putAll(part.fileIds());
+         if (part.index() == 0)
+            ckpt = new FuzzyCheckpointRecord(begin, 0, 1, txs, undo, dirty, files);
+      }
+      if (ckpt == null)
+         ckpt = new FuzzyCheckpointRecord(0, 0, 1, txs, undo, dirty, files);
+      fileTable.load(files);
+      return ckpt;
+   }
+
+   /**
+    * The analysis phase.
+    * The method reads the log forward from the begin LSN
+    * of the checkpoint, adding each transaction that starts
+    * to the active-transaction table and removing each that
+    * commits or rolls back.
+    * The undo-next LSN of a transaction becomes the LSN of
+    * its latest update, or the undo-next LSN of its latest
+    * compensation record.
+    * A block that is changed and is not already in the dirty
+    * page table is added to it, with the LSN of the change.
+    * File ids assigned after the checkpoint are added to the
+    * table of file ids.
+    * @param begin the begin LSN of the checkpoint
+    * @param undo the checkpoint's active transactions, mapped to their undo-next LSNs
+    * @param dirty the checkpoint's dirty page table
+    */
+   private void doAnalysis(long begin, Map<Integer,Long> undo, Map<Block,Long> dirty) {
+      LogRecordIterator iter = new LogRecordIterator(begin + 1);
       while (iter.hasNext()) {
          LogRecord rec = iter.next();
-          if ((Arrays.asList(START, COMMIT, ROLLBACK).contains(rec.op())) &&
-                  nqCkptEndpoint == rec.txNumber())
-              return;
-
-         if (rec.op() == CHECKPOINT)
-            return;
-         if (rec.op() == NQCHECKPOINT) {
-             // get the activeTx list from NQCheckpointRecord.
-             // filter out finishedTxs from activeTx (since they are committed already)
-             // keep recovering until the all the tx to look for are looked at.
-                // keep going until START,COMMIT,ROLLBACK of txs[0]
-             // undo any actions that are in not in finishedTxs.
-             NQCheckpointRecord nq = (NQCheckpointRecord) rec;
-             List<Integer> filteredTxs = nq.getActiveTx()
-                     .stream()
-                     .filter(p -> !finishedTxs.contains(p))
-                     .collect(Collectors.toList());
-             // everything has been committed. No need to continue.
-             if (filteredTxs.size() == 0) {
-                 return;
-             } else {
-                 nqCkptEndpoint = filteredTxs.get(0);
-             }
+         if (rec.op() == START)
+            undo.put(rec.txNumber(), -1L);
+         else if (rec.op() == COMMIT || rec.op() == ROLLBACK)
+            undo.remove(rec.txNumber());
+         else if (rec instanceof UpdateRecord) {
+            dirty.putIfAbsent(((UpdateRecord) rec).block(), iter.lsn());
+            if (rec.op() == COMPENSATION)
+               undo.put(rec.txNumber(), ((CompensationRecord) rec).undoNextLSN());
+            else
+               undo.put(rec.txNumber(), iter.lsn());
          }
-         if (rec.op() == COMMIT || rec.op() == ROLLBACK)
-            finishedTxs.add(rec.txNumber());
-         else if (!finishedTxs.contains(rec.txNumber()))
-            rec.undo(txnum);
+         else if (rec.op() == FILEID) {
+            FileIdRecord fileid = (FileIdRecord) rec;
+            fileTable.add(fileid.fileId(), fileid.fileName());
+         }
+      }
+   }
+
+   /**
+    * The redo phase.
+    * The method reads the log forward from the oldest
+    * recovery LSN in the dirty page table, and redoes every
+    * change to a dirty block that was logged at or after
+    * the block's recovery LSN.
+    * Changes by every transaction are redone, including
+    * those that will be undone, and compensations.
+    * @param dirty the dirty page table
+    */
+   private void doRedo(Map<Block,Long> dirty) {
+      if (dirty.isEmpty())
+         return;
+      LogRecordIterator iter = new LogRecordIterator(Collections.min(dirty.values()));
+      while (iter.hasNext()) {
+         LogRecord rec = iter.next();
+         if (!(rec instanceof UpdateRecord))
+            continue;
+         Long reclsn = dirty.get(((UpdateRecord) rec).block());
+         if (reclsn != null && iter.lsn() >= reclsn)
+            rec.redo(txnum);
+      }
+   }
+
+   /**
+    * The undo phase.
+    * The method reads only the updates that remain to be undone,
+    * following the chains of the unfinished transactions back
+    * from their undo-next LSNs, newest update first.
+    * The compensation record of each update is written at once,
+    * so that the compensation records carry correct undo-next LSNs
+    * even though the blocks are not changed in the same order:
+    * the compensations are grouped by block, and applied by a pool
+    * of threads, each of which pins a block once and applies all
+    * of its compensations, in the order they were logged.
+    * A crash before they are all applied is harmless, since
+    * recovery redoes the logged compensations.
+    * Finally, a rollback record is written for each transaction.
+    * @param undo the unfinished transactions, mapped to their undo-next LSNs
+    */
+   private void doUndo(Map<Integer,Long> undo) {
+      if (undo.isEmpty())
+         return;
+      PriorityQueue<Long> next = new PriorityQueue<Long>(Collections.reverseOrder());
+      for (long lsn : undo.values())
+         if (lsn >= 0)
+            next.add(lsn);
+      Map<Block,SortedMap<Long,CompensationRecord>> blocks =
+            new LinkedHashMap<Block,SortedMap<Long,CompensationRecord>>();
+      Page pg = new Page();
+      while (!next.isEmpty()) {
+         BasicLogRecord basic = SimpleDB.logMgr().record(next.poll(), pg);
+         UpdateRecord rec = (UpdateRecord) LogRecordIterator.parse(basic);
+         CompensationRecord clr = rec.compensation();
+         blocks.computeIfAbsent(rec.block(), b -> new TreeMap<Long,CompensationRecord>())
+               .put(clr.writeToLog(), clr);
+         if (rec.prevLSN() >= 0)
+            next.add(rec.prevLSN());
+      }
+      undoBlocks(blocks);
+      LogBuffer buf = new LogBuffer();
+      for (int tx : undo.keySet())
+         new RollbackRecord(tx).writeTo(buf);
+      SimpleDB.logMgr().append(buf);
+   }
+
+   /**
+    * Applies the specified compensations, using a pool of threads.
+    * Each block's compensations are applied in LSN order
+    * by a single thread.
+    * @param blocks the compensations to apply, grouped by block and keyed by LSN
+    */
+   private void undoBlocks(Map<Block,SortedMap<Long,CompensationRecord>> blocks) {
+      ExecutorService undoers = Executors.newFixedThreadPool(UNDO_THREADS, r -> {
+         Thread t = new Thread(r, "simpledb-undo");
+         t.setDaemon(true);
+         return t;
+      });
+      try {
+         List<Future<?>> results = new ArrayList<Future<?>>();
+         for (Map.Entry<Block,SortedMap<Long,CompensationRecord>> e : blocks.entrySet())
+            results.add(undoers.submit(() -> undoBlock(e.getKey(), e.getValue())));
+         for (Future<?> result : results)
+            result.get();
+      }
+      catch (InterruptedException | ExecutionException e) {
+         throw new RuntimeException("cannot undo unfinished transactions");
+      }
+      finally {
+         undoers.shutdown();
+      }
+   }
+
+   private void undoBlock(Block blk, SortedMap<Long,CompensationRecord> clrs) {
+      Buffer buff = SimpleDB.bufferMgr().pin(blk);
+      buff.latchExclusive();
+      try {
+         for (Map.Entry<Long,CompensationRecord> e : clrs.entrySet())
+            e.getValue().apply(buff, txnum, e.getKey());
+      }
+      finally {
+         buff.unlatchExclusive();
+         SimpleDB.bufferMgr().unpin(buff);
       }
    }
 
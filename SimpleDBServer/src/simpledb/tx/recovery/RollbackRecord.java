@@ -1,6 +1,7 @@
 package simpledb.tx.recovery;
 
 import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
 
 /**
  * The ROLLBACK log record.
@@ -25,15 +26,15 @@ class RollbackRecord implements LogRecord {
       txnum = rec.nextInt();
    }
    
-   /** 
-    * Writes a rollback record to the log.
+   /**
+    * Encodes the record in the specified log buffer.
     * This log record contains the ROLLBACK operator,
     * followed by the transaction id.
-    * @return the LSN of the last log value
+    * @param buf the log buffer
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {ROLLBACK, txnum};
-      return logMgr.append(rec);
+   public void writeTo(LogBuffer buf) {
+      buf.startRecord(ROLLBACK);
+      buf.putInt(txnum);
    }
    
    public int op() {
@@ -49,6 +50,12 @@ class RollbackRecord implements LogRecord {
     * contains no undo information.
     */
    public void undo(int txnum) {}
+
+   /**
+    * Does nothing, because a rollback record
+    * contains no redo information.
+    */
+   public void redo(int txnum) {}
    
    public String toString() {
       return "<ROLLBACK " + txnum + ">";
@@ -0,0 +1,132 @@
+package simpledb.tx.recovery;
+
+import simpledb.server.SimpleDB;
+import simpledb.buffer.*;
+import simpledb.file.Block;
+import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
+
+/**
+ * The SETBYTES log record, which changes a range of bytes in a block,
+ * such as the records that a slotted page moves when it is compacted.
+ */
+class SetBytesRecord implements UpdateRecord {
+   private int txnum, offset;
+   private long prevLSN;
+   private byte[] val, newval;
+   private Block blk;
+   
+   /**
+    * Creates a new setbytes log record.
+    * @param txnum the ID of the specified transaction
+    * @param blk the block containing the bytes
+    * @param offset the offset of the bytes in the block
+    * @param val the previous bytes
+    * @param newval the new bytes, as many as the previous ones
+    * @param prevLSN the LSN of the transaction's previous update record, or -1
+    */
+   public SetBytesRecord(int txnum, Block blk, int offset, byte[] val, byte[] newval, long prevLSN) {
+      this.txnum = txnum;
+      this.blk = blk;
+      this.offset = offset;
+      this.val = val;
+      this.newval = newval;
+      this.prevLSN = prevLSN;
+   }
+   
+   /**
+    * Creates a log record by reading seven other values from the log.
+    * @param rec the basic log record
+    */
+   public SetBytesRecord(BasicLogRecord rec) {
+      txnum = rec.nextInt();
+      blk = RecoveryMgr.fileTable.readBlock(rec);
+      offset = rec.nextInt();
+      val = rec.nextBytes();
+      newval = rec.nextBytes();
+      prevLSN = rec.nextLong();
+   }
+   
+   /** 
+    * Encodes the record in the specified log buffer.
+    * This log record contains the SETBYTES operator,
+    * followed by the transaction id, the file id, number,
+    * and offset of the modified block, the previous
+    * bytes at that offset, the new bytes,
+    * and the LSN of the transaction's previous update record.
+    * @param buf the log buffer
+    */
+   public void writeTo(LogBuffer buf) {
+      buf.startRecord(SETBYTES);
+      buf.putInt(txnum);
+      RecoveryMgr.fileTable.writeBlock(buf, blk);
+      buf.putInt(offset);
+      buf.putBytes(val);
+      buf.putBytes(newval);
+      buf.putLong(prevLSN);
+   }
+   
+   public int op() {
+      return SETBYTES;
+   }
+   
+   public int txNumber() {
+      return txnum;
+   }
+
+   public Block block() {
+      return blk;
+   }
+
+   public long prevLSN() {
+      return prevLSN;
+   }
+   
+   public String toString() {
+      return "<SETBYTES " + txnum + " " + blk + " " + offset + " " + val.length + " " + prevLSN + ">";
+   }
+   
+   /** 
+    * Replaces the bytes with the bytes saved in the log record.
+    * The method pins a buffer to the specified block,
+    * undoes the change to it, logging a compensation record,
+    * and unpins the buffer.
+    * @see simpledb.tx.recovery.LogRecord#undo(int)
+    */
+   public void undo(int txnum) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      // snapshot transactions read the buffer without locking the block
+      buff.latchExclusive();
+      try {
+         CompensationRecord clr = compensation();
+         clr.apply(buff, txnum, clr.writeToLog());
+      }
+      finally {
+         buff.unlatchExclusive();
+      }
+      buffMgr.unpin(buff);
+   }
+
+   /**
+    * Returns the compensation record that restores the saved bytes.
+    * @see simpledb.tx.recovery.UpdateRecord#compensation()
+    */
+   public CompensationRecord compensation() {
+      return new CompensationRecord(txnum, blk, offset, val, prevLSN);
+   }
+
+   /**
+    * Replaces the bytes with the new bytes saved in the log record.
+    * The method pins a buffer to the specified block,
+    * calls setBytes to store the new bytes
+    * (using a dummy LSN), and unpins the buffer.
+    * @see simpledb.tx.recovery.LogRecord#redo(int)
+    */
+   public void redo(int txnum) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      buff.setBytes(offset, newval, txnum, -1);
+      buffMgr.unpin(buff);
+   }
+}
@@ -4,9 +4,11 @@ import simpledb.server.SimpleDB;
 import simpledb.buffer.*;
 import simpledb.file.Block;
 import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
 
-class SetIntRecord implements LogRecord {
-   private int txnum, offset, val;
+class SetIntRecord implements UpdateRecord {
+   private int txnum, offset, val, newval;
+   private long prevLSN;
    private Block blk;
 
    /**
@@ -14,40 +16,51 @@ class SetIntRecord implements LogRecord {
     * @param txnum the ID of the specified transaction
     * @param blk the block containing the value
     * @param offset the offset of the value in the block
-    * @param val the new value
+    * @param val the previous value
+    * @param newval the new value
+    * @param prevLSN the LSN of the transaction's previous update record, or -1
     */
-   public SetIntRecord(int txnum, Block blk, int offset, int val) {
+   public SetIntRecord(int txnum, Block blk, int offset, int val, int newval, long prevLSN) {
       this.txnum = txnum;
       this.blk = blk;
       this.offset = offset;
       this.val = val;
+      this.newval = newval;
+      this.prevLSN = prevLSN;
    }
 
    /**
-    * Creates a log record by reading five other values from the log.
+    * Creates a log record by reading seven other values from the log.
+    * Update records of the legacy log format, which lack the new value
+    * and the prev LSN, are never read here; see {@link LegacyRecovery}.
     * @param rec the basic log record
     */
    public SetIntRecord(BasicLogRecord rec) {
       txnum = rec.nextInt();
-      String filename = rec.nextString();
-      int blknum = rec.nextInt();
-      blk = new Block(filename, blknum);
+      blk = RecoveryMgr.fileTable.readBlock(rec);
       offset = rec.nextInt();
       val = rec.nextInt();
+      newval = rec.nextInt();
+      prevLSN = rec.nextLong();
    }
 
    /**
-    * Writes a setInt record to the log.
+    * Encodes the record in the specified log buffer.
     * This log record contains the SETINT operator,
-    * followed by the transaction id, the filename, number,
-    * and offset of the modified block, and the previous
-    * integer value at that offset.
-    * @return the LSN of the last log value
+    * followed by the transaction id, the file id, number,
+    * and offset of the modified block, the previous
+    * integer value at that offset, the new value,
+    * and the LSN of the transaction's previous update record.
+    * @param buf the log buffer
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {SETINT, txnum, blk.fileName(),
-         blk.number(), offset, val};
-      return logMgr.append(rec);
+   public void writeTo(LogBuffer buf) {
+      buf.startRecord(SETINT);
+      buf.putInt(txnum);
+      RecoveryMgr.fileTable.writeBlock(buf, blk);
+      buf.putInt(offset);
+      buf.putInt(val);
+      buf.putInt(newval);
+      buf.putLong(prevLSN);
    }
 
    public int op() {
@@ -58,22 +71,59 @@ class SetIntRecord implements LogRecord {
       return txnum;
    }
 
+   public Block block() {
+      return blk;
+   }
+
+   public long prevLSN() {
+      return prevLSN;
+   }
+
    public String toString() {
-      return "<SETINT " + txnum + " " + blk + " " + offset + " " + val + ">";
+      return "<SETINT " + txnum + " " + blk + " " + offset + " " + val + " " + newval + " " + prevLSN + ">";
    }
 
    /**
     * Replaces the specified data value with the value saved in the log record.
     * The method pins a buffer to the specified block,
-    * calls setInt to restore the saved value
-    * (using a dummy LSN), and unpins the buffer.
+    * undoes the change to it, logging a compensation record,
+    * and unpins the buffer.
     * @see simpledb.tx.recovery.LogRecord#undo(int)
     */
    public void undo(int txnum) {
-      System.out.println("Undoing record");
       BufferMgr buffMgr = SimpleDB.bufferMgr();
       Buffer buff = buffMgr.pin(blk);
-      buff.setInt(offset, val, txnum, -1);
+      // snapshot transactions read the buffer without locking the block
+      buff.latchExclusive();
+      try {
+         CompensationRecord clr = compensation();
+         clr.apply(buff, txnum, clr.writeToLog());
+      }
+      finally {
+         buff.unlatchExclusive();
+      }
+      buffMgr.unpin(buff);
+   }
+
+   /**
+    * Returns the compensation record that restores the saved value.
+    * @see simpledb.tx.recovery.UpdateRecord#compensation()
+    */
+   public CompensationRecord compensation() {
+      return new CompensationRecord(txnum, blk, offset, val, prevLSN);
+   }
+
+   /**
+    * Replaces the specified data value with the new value saved in the log record.
+    * The method pins a buffer to the specified block,
+    * calls setInt to store the new value
+    * (using a dummy LSN), and unpins the buffer.
+    * @see simpledb.tx.recovery.LogRecord#redo(int)
+    */
+   public void redo(int txnum) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      buff.setInt(offset, newval, txnum, -1);
       buffMgr.unpin(buff);
    }
 }
@@ -4,10 +4,12 @@ import simpledb.server.SimpleDB;
 import simpledb.buffer.*;
 import simpledb.file.Block;
 import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
 
-class SetStringRecord implements LogRecord {
+class SetStringRecord implements UpdateRecord {
    private int txnum, offset;
-   private String val;
+   private long prevLSN;
+   private String val, newval;
    private Block blk;
    
    /**
@@ -15,40 +17,51 @@ class SetStringRecord implements LogRecord {
     * @param txnum the ID of the specified transaction
     * @param blk the block containing the value
     * @param offset the offset of the value in the block
-    * @param val the new value
+    * @param val the previous value
+    * @param newval the new value
+    * @param prevLSN the LSN of the transaction's previous update record, or -1
     */
-   public SetStringRecord(int txnum, Block blk, int offset, String val) {
+   public SetStringRecord(int txnum, Block blk, int offset, String val, String newval, long prevLSN) {
       this.txnum = txnum;
       this.blk = blk;
       this.offset = offset;
       this.val = val;
+      this.newval = newval;
+      this.prevLSN = prevLSN;
    }
    
    /**
-    * Creates a log record by reading five other values from the log.
+    * Creates a log record by reading seven other values from the log.
+    * Update records of the legacy log format, which lack the new value
+    * and the prev LSN, are never read here; see {@link LegacyRecovery}.
     * @param rec the basic log record
     */
    public SetStringRecord(BasicLogRecord rec) {
       txnum = rec.nextInt();
-      String filename = rec.nextString();
-      int blknum = rec.nextInt();
-      blk = new Block(filename, blknum);
+      blk = RecoveryMgr.fileTable.readBlock(rec);
       offset = rec.nextInt();
       val = rec.nextString();
+      newval = rec.nextString();
+      prevLSN = rec.nextLong();
    }
    
    /** 
-    * Writes a setString record to the log.
+    * Encodes the record in the specified log buffer.
     * This log record contains the SETSTRING operator,
-    * followed by the transaction id, the filename, number,
-    * and offset of the modified block, and the previous
-    * string value at that offset.
-    * @return the LSN of the last log value
+    * followed by the transaction id, the file id, number,
+    * and offset of the modified block, the previous
+    * string value at that offset, the new value,
+    * and the LSN of the transaction's previous update record.
+    * @param buf the log buffer
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {SETSTRING, txnum, blk.fileName(),
-         blk.number(), offset, val};
-      return logMgr.append(rec);
+   public void writeTo(LogBuffer buf) {
+      buf.startRecord(SETSTRING);
+      buf.putInt(txnum);
+      RecoveryMgr.fileTable.writeBlock(buf, blk);
+      buf.putInt(offset);
+      buf.putString(val);
+      buf.putString(newval);
+      buf.putLong(prevLSN);
    }
    
    public int op() {
@@ -58,22 +71,60 @@ class SetStringRecord implements LogRecord {
    public int txNumber() {
       return txnum;
    }
+
+   public Block block() {
+      return blk;
+   }
+
+   public long prevLSN() {
+      return prevLSN;
+   }
    
    public String toString() {
-      return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + val + ">";
+      return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + val + " " + newval + " " + prevLSN + ">";
    }
    
    /** 
     * Replaces the specified data value with the value saved in the log record.
     * The method pins a buffer to the specified block,
-    * calls setString to restore the saved value
-    * (using a dummy LSN), and unpins the buffer.
+    * undoes the change to it, logging a compensation record,
+    * and unpins the buffer.
     * @see simpledb.tx.recovery.LogRecord#undo(int)
     */
    public void undo(int txnum) {
       BufferMgr buffMgr = SimpleDB.bufferMgr();
       Buffer buff = buffMgr.pin(blk);
-      buff.setString(offset, val, txnum, -1);
+      // snapshot transactions read the buffer without locking the block
+      buff.latchExclusive();
+      try {
+         CompensationRecord clr = compensation();
+         clr.apply(buff, txnum, clr.writeToLog());
+      }
+      finally {
+         buff.unlatchExclusive();
+      }
+      buffMgr.unpin(buff);
+   }
+
+   /**
+    * Returns the compensation record that restores the saved value.
+    * @see simpledb.tx.recovery.UpdateRecord#compensation()
+    */
+   public CompensationRecord compensation() {
+      return new CompensationRecord(txnum, blk, offset, val, prevLSN);
+   }
+
+   /**
+    * Replaces the specified data value with the new value saved in the log record.
+    * The method pins a buffer to the specified block,
+    * calls setString to store the new value
+    * (using a dummy LSN), and unpins the buffer.
+    * @see simpledb.tx.recovery.LogRecord#redo(int)
+    */
+   public void redo(int txnum) {
+      BufferMgr buffMgr = SimpleDB.bufferMgr();
+      Buffer buff = buffMgr.pin(blk);
+      buff.setString(offset, newval, txnum, -1);
       buffMgr.unpin(buff);
    }
 }
@@ -1,6 +1,7 @@
 package simpledb.tx.recovery;
 
 import simpledb.log.BasicLogRecord;
+import simpledb.log.LogBuffer;
 
 class StartRecord implements LogRecord {
    private int txnum;
@@ -21,15 +22,15 @@ class StartRecord implements LogRecord {
       txnum = rec.nextInt();
    }
    
-   /** 
-    * Writes a start record to the log.
+   /**
+    * Encodes the record in the specified log buffer.
     * This log record contains the START operator,
     * followed by the transaction id.
-    * @return the LSN of the last log value
+    * @param buf the log buffer
     */
-   public int writeToLog() {
-      Object[] rec = new Object[] {START, txnum};
-      return logMgr.append(rec);
+   public void writeTo(LogBuffer buf) {
+      buf.startRecord(START);
+      buf.putInt(txnum);
    }
    
    public int op() {
@@ -45,6 +46,12 @@ class StartRecord implements LogRecord {
     * contains no undo information.
     */
    public void undo(int txnum) {}
+
+   /**
+    * Does nothing, because a start record
+    * contains no redo information.
+    */
+   public void redo(int txnum) {}
    
    public String toString() {
       return "<START " + txnum + ">";
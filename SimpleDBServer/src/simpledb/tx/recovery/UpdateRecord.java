@@ -0,0 +1,35 @@
+package simpledb.tx.recovery;
+
+import simpledb.file.Block;
+
+/**
+ * A log record that changes a value in a block:
+ * a SETINT, SETSTRING or SETBYTES record, or the
+ * {@link CompensationRecord compensation record}
+ * that undoes one of them.
+ * Each such record concerns a single block, so recovery can
+ * group the records by block and apply each group separately.
+ */
+interface UpdateRecord extends LogRecord {
+   /**
+    * Returns the block changed by the record.
+    * @return a reference to the block
+    */
+   Block block();
+
+   /**
+    * Returns the LSN of the previous update record written by
+    * the same transaction, or -1 if there is none.
+    * These links form the chain that rollback follows.
+    * @return the LSN of the previous update record
+    */
+   long prevLSN();
+
+   /**
+    * Returns the compensation record that undoes the change,
+    * or null if the record is never undone.
+    * The compensation record's undo-next LSN is this record's prev LSN.
+    * @return the compensation record
+    */
+   CompensationRecord compensation();
+}